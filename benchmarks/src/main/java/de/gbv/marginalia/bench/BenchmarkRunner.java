@@ -0,0 +1,26 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so the allocation rate of each
+ * benchmark is reported together with its time. Takes the usual JMH command
+ * line arguments, for instance a regular expression to select benchmarks.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        new Runner( new OptionsBuilder()
+            .parent( new CommandLineOptions(args) )
+            .addProfiler( GCProfiler.class )
+            .build() ).run();
+    }
+}
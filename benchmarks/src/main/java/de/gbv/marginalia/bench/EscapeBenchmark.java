@@ -0,0 +1,81 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+
+import de.gbv.marginalia.Annotation;
+import de.gbv.xml.SimpleXMLCreator;
+import de.gbv.xml.SimpleXMLWriter;
+
+/**
+ * Escaping throughput of {@link SimpleXMLWriter} for attribute values and
+ * character data, with text that needs no escaping and text that is full
+ * of markup characters. Each operation writes 4 KB of text.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EscapeBenchmark {
+
+    @Param({ "plain", "markup" })
+    public String text;
+
+    @Param({ "stream", "writer" })
+    public String target;
+
+    private static final int SIZE = 4096;
+
+    private String value;
+    private char[] chars;
+    private SimpleXMLWriter writer;
+    private SimpleXMLCreator xml;
+
+    @Setup
+    public void setup() throws SAXException {
+        String unit = "markup".equals(text)
+            ? "a < b && \"c\" > d\r\n" : "The quick brown fox jumps over the lazy dog. ";
+        StringBuilder s = new StringBuilder(SIZE);
+        while ( s.length() < SIZE ) s.append(unit);
+        s.setLength(SIZE);
+        value = s.toString();
+        chars = value.toCharArray();
+
+        writer = "stream".equals(target)
+               ? new SimpleXMLWriter( Fixtures.nullStream() )
+               : new SimpleXMLWriter( Fixtures.nullWriter() );
+        writer.startDocument();
+        xml = new SimpleXMLCreator( writer, Annotation.namespaces );
+        xml.startElement("root");
+    }
+
+    @Benchmark
+    public void attribute() throws SAXException {
+        xml.attr( "contents", value );
+        xml.emptyElement("a");
+    }
+
+    @Benchmark
+    public void characters() throws SAXException {
+        writer.characters( chars, 0, chars.length );
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import com.itextpdf.text.pdf.PdfDictionary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.gbv.marginalia.Annotation;
+
+/**
+ * Decoding of single annotation fields to attribute values. The quad
+ * points of the highlight used for <code>coords</code> have 16 quads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FieldBenchmark {
+
+    @Param({ "coords", "color", "flags", "rect" })
+    public String field;
+
+    private Annotation.Field decoder;
+    private PdfDictionary dict;
+
+    @Setup
+    public void setup() {
+        decoder = Annotation.FIELDS.get(field);
+        dict = Fixtures.annotation("Highlight");
+    }
+
+    @Benchmark
+    public String getFrom() {
+        return decoder.getFrom(dict);
+    }
+}
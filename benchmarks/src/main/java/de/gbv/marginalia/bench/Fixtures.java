@@ -0,0 +1,116 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia.bench;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfString;
+
+/**
+ * Annotation dictionaries and output sinks shared by the benchmarks.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * Subtypes that {@link #annotation} can create.
+     */
+    static final String[] SUBTYPES = { "Highlight", "Text", "Ink", "Square", "FreeText" };
+
+    /**
+     * Create a typical annotation dictionary of a subtype.
+     * Highlights have 16 quads, ink annotations 4 gestures of 100 points.
+     */
+    static PdfDictionary annotation(String subtype) {
+        PdfDictionary dict = new PdfDictionary(PdfName.ANNOT);
+        dict.put( PdfName.SUBTYPE, new PdfName(subtype) );
+        dict.put( PdfName.RECT, numbers( 52.56f, 437.86f, 286.37f, 528.28f ) );
+        dict.put( PdfName.C, numbers( 1, 0.8f, 0 ) );
+        dict.put( PdfName.F, new PdfNumber(4) );
+        dict.put( PdfName.T, new PdfString("Alice") );
+        dict.put( PdfName.M, new PdfString("D:20100714120000+02'00'") );
+        dict.put( PdfName.NM, new PdfString("3d1b4f2e-8c1a-4a8e-9d53-0f5c3e2a9b71") );
+        dict.put( PdfName.CONTENTS, new PdfString("Compare with <Table 3> & the appendix") );
+        if ( "Highlight".equals(subtype) ) {
+            dict.put( PdfName.QUADPOINTS, quads(16) );
+        } else if ( "Text".equals(subtype) ) {
+            dict.put( PdfName.NAME, new PdfName("Comment") );
+        } else if ( "Ink".equals(subtype) ) {
+            PdfArray inklist = new PdfArray();
+            for ( int g = 0; g < 4; g++ ) {
+                float[] path = new float[200];
+                for ( int i = 0; i < path.length; i += 2 ) {
+                    path[i] = 100 + i * 0.75f;
+                    path[i+1] = 200 + g * 10 + (float)Math.sin(i) * 5;
+                }
+                inklist.add( numbers(path) );
+            }
+            dict.put( new PdfName("InkList"), inklist );
+        } else if ( "Square".equals(subtype) ) {
+            dict.put( new PdfName("IC"), numbers( 0.5f, 0.5f, 1 ) );
+            dict.put( new PdfName("RD"), numbers( 1, 1, 1, 1 ) );
+        } else if ( "FreeText".equals(subtype) ) {
+            dict.put( new PdfName("RD"), numbers( 2, 2, 2, 2 ) );
+            dict.put( PdfName.DA, new PdfString("/Helv 12 Tf 0 g") );
+        }
+        return dict;
+    }
+
+    /**
+     * Create a quad points array of text lines.
+     */
+    static PdfArray quads(int n) {
+        float[] c = new float[8 * n];
+        for ( int i = 0; i < n; i++ ) {
+            float top = 700 - i * 14.2f, bottom = top - 11.8f;
+            float[] q = { 72.3f, top, 523.7f, top, 72.3f, bottom, 523.7f, bottom };
+            System.arraycopy( q, 0, c, 8 * i, 8 );
+        }
+        return numbers(c);
+    }
+
+    static PdfArray numbers(float... values) {
+        PdfArray array = new PdfArray();
+        for ( float v : values ) array.add( new PdfNumber(v) );
+        return array;
+    }
+
+    /**
+     * A stream that discards all bytes.
+     */
+    static OutputStream nullStream() {
+        return new OutputStream() {
+            public void write(int b) {
+            }
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+    }
+
+    /**
+     * A writer that discards all characters.
+     */
+    static PrintWriter nullWriter() {
+        return new PrintWriter( new Writer() {
+            public void write(char[] c, int off, int len) {
+            }
+            public void write(String s, int off, int len) {
+            }
+            public void flush() {
+            }
+            public void close() {
+            }
+        });
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia.bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import com.itextpdf.text.pdf.PdfReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+
+import de.gbv.marginalia.Marginalia;
+import de.gbv.marginalia.Options;
+import de.gbv.marginalia.SampleDocument;
+
+/**
+ * End-to-end inspection of generated PDF files of different size, from
+ * parsing the file to writing XML.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InspectBenchmark {
+
+    @Param({ "1", "10", "100" })
+    public int pages;
+
+    @Param({ "false", "true" })
+    public boolean stream;
+
+    private byte[] pdf;
+    private PrintWriter out;
+    private Options options;
+
+    @Setup
+    public void setup() throws IOException {
+        pdf = SampleDocument.create(pages);
+        out = Fixtures.nullWriter();
+        options = new Options();
+        options.stream = stream;
+    }
+
+    @Benchmark
+    public void inspect() throws IOException, SAXException {
+        PdfReader reader = new PdfReader(pdf);
+        try {
+            Marginalia.inspect( out, reader, options );
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import com.itextpdf.text.pdf.PdfDictionary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+
+import de.gbv.marginalia.Annotation;
+import de.gbv.xml.SimpleXMLCreator;
+import de.gbv.xml.SimpleXMLWriter;
+
+/**
+ * Serialization of a single annotation to XML, per subtype.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializeBenchmark {
+
+    @Param({ "Highlight", "Text", "Ink", "Square", "FreeText" })
+    public String subtype;
+
+    private Annotation annotation;
+    private SimpleXMLCreator xml;
+
+    @Setup
+    public void setup() throws SAXException {
+        PdfDictionary dict = Fixtures.annotation(subtype);
+        annotation = new Annotation( dict, 1 );
+        SimpleXMLWriter writer = new SimpleXMLWriter( Fixtures.nullStream() );
+        writer.startDocument();
+        xml = new SimpleXMLCreator( writer, Annotation.namespaces, true );
+        xml.startElement("annots");
+    }
+
+    @Benchmark
+    public void serializeXML() throws SAXException {
+        annotation.serializeXML(xml);
+    }
+}
@@ -9,6 +9,7 @@ import com.itextpdf.text.pdf.PdfObject;
 import com.itextpdf.text.pdf.PdfArray;
 import com.itextpdf.text.pdf.PdfBoolean;
 import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfIndirectReference;
 import com.itextpdf.text.pdf.PdfName;
 import com.itextpdf.text.pdf.PdfString;
 import com.itextpdf.text.pdf.PdfNumber;
@@ -19,9 +20,12 @@ import java.io.PrintWriter;
 
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Locale;
 import java.util.Set;
 
+import de.gbv.xml.FloatFormat;
 import de.gbv.xml.SimpleXMLCreator;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
@@ -45,6 +49,15 @@ public class Annotation {
 
     protected int pageNum;
 
+    protected String text; // covered text of markup annotations
+
+    protected int[] refs; // indexes into a ValueTable
+
+    protected PdfIndirectReference reference; // where the annotation was read from
+    protected String inReplyTo; // name of the parent annotation
+    protected Annotation popupAnnotation; // popup nested in this annotation
+    protected boolean nested; // whether this is nested in another annotation
+
     /**
      * Constructs a new Annotation from a given PdfDictionary.
      * Of course the PdfDictionary should contain an annotation.
@@ -73,6 +86,145 @@ public class Annotation {
         this.dict = annot;
     }
 
+    public PdfDictionary getDictionary() {
+        return this.dict;
+    }
+
+    public PdfName getSubtype() {
+        return this.subtype;
+    }
+
+    public int getPageNumber() {
+        return this.pageNum;
+    }
+
+    /**
+     * Get the text covered by the annotation, if it has been resolved.
+     * @see TextResolver
+     */
+    public String getText() {
+        return this.text;
+    }
+
+    public void setText(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Get the indirect reference the annotation has been read from, if known.
+     * @see ReplyIndex
+     */
+    public PdfIndirectReference getReference() {
+        return this.reference;
+    }
+
+    public void setReference(PdfIndirectReference reference) {
+        this.reference = reference;
+    }
+
+    /**
+     * Get the name of the annotation. Annotations without <code>/NM</code>
+     * are named by their object reference, if known.
+     * @return the name or null
+     */
+    public String getName() {
+        return getName( this.dict, this.reference );
+    }
+
+    /**
+     * Get the name of an annotation dictionary.
+     * @param ref Reference of the dictionary or null
+     */
+    public static String getName(PdfDictionary dict, PdfIndirectReference ref) {
+        String name = NAME.getFrom(dict);
+        if ( name == null && ref != null ) {
+            name = ref.getNumber() + " " + ref.getGeneration() + " R";
+        }
+        return name;
+    }
+
+    /**
+     * Get the name of the annotation this is a reply to, if it has been
+     * resolved.
+     */
+    public String getInReplyTo() {
+        return this.inReplyTo;
+    }
+
+    public void setInReplyTo(String name) {
+        this.inReplyTo = name;
+    }
+
+    /**
+     * Nest a popup annotation in this annotation. The popup is then only
+     * serialized as part of this annotation.
+     */
+    public void setPopup(Annotation popup) {
+        this.popupAnnotation = popup;
+        popup.nested = true;
+    }
+
+    /**
+     * Whether the annotation is serialized as part of another annotation.
+     */
+    public boolean isNested() {
+        return this.nested;
+    }
+
+    /**
+     * Set the indexes of shared values, so they are serialized as
+     * references instead of values.
+     * @param refs Index of each attribute in {@link ValueTable#ATTRS} or -1
+     * @see ValueTable
+     */
+    public void setValueRefs(int[] refs) {
+        this.refs = refs;
+    }
+
+    /**
+     * Get the name of the subtype as used for XFDF elements. Subtypes that
+     * are not listed in {@link #subtypes} are mapped to lowercase.
+     */
+    public String getSubtypeName() {
+        return getSubtypeName(this.subtype);
+    }
+
+    /**
+     * Get the XFDF element name of an annotation subtype.
+     * @param subtype value of /Subtype or <code>null</code>
+     */
+    public static String getSubtypeName(PdfName subtype) {
+        String name = subtypes.get(subtype);
+        if (name == null) {
+            name = subtype == null ? "annotation"
+                 : PdfName.decodeName( subtype.toString() ).toLowerCase(Locale.ROOT);
+        }
+        return name;
+    }
+
+    /**
+     * Get the points of each path of an ink annotation.
+     * @return array of paths with alternating x and y coordinates or null
+     */
+    public float[][] getInkList() {
+        PdfArray inklist = this.dict.getAsArray(INKLIST);
+        if ( inklist == null ) return null;
+        float[][] paths = new float[inklist.size()][];
+        for(int i=0; i<inklist.size(); i++) {
+            PdfArray pathArray = inklist.getAsArray(i);
+            if ( pathArray == null ) {
+                paths[i] = new float[0];
+                continue;
+            }
+            paths[i] = new float[ pathArray.size() & ~1 ];
+            for(int j=0; j<paths[i].length; j++) {
+                PdfNumber p = pathArray.getAsNumber(j);
+                paths[i][j] = p == null ? 0f : p.floatValue();
+            }
+        }
+        return paths;
+    }
+
     /**
      * PDF Annotation keys that directly map to XML attributes.
      */
@@ -91,6 +243,32 @@ public class Annotation {
             if ( object == null ) return null;
             return object.toString();
         }
+        /**
+         * Convert an attribute value back to a PDF object, the reverse
+         * of {@link #getFrom}.
+         * @return the object or null if the value is not valid
+         */
+        public PdfObject parse(String value) {
+            return new PdfString( value, PdfObject.TEXT_UNICODE );
+        }
+        /**
+         * Parse a comma-separated list of numbers.
+         * @param count expected number of values or 0 for any number
+         * @return the values or null if the list is not valid
+         */
+        static float[] parseFloats(String value, int count) {
+            String[] parts = value.split(",");
+            if ( count > 0 && parts.length != count ) return null;
+            float[] c = new float[parts.length];
+            try {
+                for ( int i = 0; i < c.length; i++ ) {
+                    c[i] = Float.parseFloat( parts[i].trim() );
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return c;
+        }
     }
 
     public static class NumberField extends Field {
@@ -98,6 +276,10 @@ public class Annotation {
         protected PdfObject getObjectFrom( PdfDictionary dict ) {
             return dict.getAsNumber( this.name );
         }
+        public PdfObject parse(String value) {
+            float[] c = parseFloats( value, 1 );
+            return c == null ? null : new PdfNumber( c[0] );
+        }
     }
 
     public static class StringField extends Field {
@@ -126,10 +308,22 @@ public class Annotation {
             }
             return new PdfRectangle(c[0], c[1], c[2], c[3]);
         }
+        public PdfRectangle getRectangle(PdfDictionary dict) {
+            return (PdfRectangle)this.getObjectFrom( dict );
+        }
+        public PdfObject parse(String value) {
+            float[] c = parseFloats( value, 4 );
+            return c == null ? null : new PdfArray(c);
+        }
         public String getFrom(PdfDictionary dict) {
             PdfRectangle r = (PdfRectangle)this.getObjectFrom( dict );
             if ( r == null ) return null;
-            return r.left()+","+r.bottom()+","+r.right()+","+r.top();
+            StringBuilder s = new StringBuilder(40);
+            FloatFormat.append( s, r.left() ).append(',');
+            FloatFormat.append( s, r.bottom() ).append(',');
+            FloatFormat.append( s, r.right() ).append(',');
+            FloatFormat.append( s, r.top() );
+            return s.toString();
         }
     }
 
@@ -146,36 +340,73 @@ public class Annotation {
 // such vertices) and the next vertex in a counterclockwise direction, regard-
 // less of whether these are the first two points in the QuadPoints array.
         public String toString() {
-            return c[0]+","+c[1]+","+c[2]+","+c[3]+","
-                 + c[4]+","+c[5]+","+c[6]+","+c[7];
+            return appendTo( new StringBuilder(80) ).toString();
+        }
+        public StringBuilder appendTo(StringBuilder s) {
+            for ( int i = 0; i < 8; i++ ) {
+                if ( i > 0 ) s.append(',');
+                FloatFormat.append( s, c[i] );
+            }
+            return s;
         }
     }
 
     public static class CoordsField extends Field {
         CoordsField(String attr, String name) { super(attr, name); }
+        /**
+         * Get the coordinates of all quads, eight values per quad.
+         */
+        public float[] getCoords( PdfDictionary dict ) {
+            PdfArray array = dict.getAsArray( this.name );
+            if ( array == null ) return null;
+            if ( array.size() % 8 != 0 ) return null;
+            float[] c = new float[ array.size() ];
+            for(int i=0; i<c.length; i++) {
+                PdfNumber p = array.getAsNumber(i);
+                if (p == null) return null;
+                c[i] = p.floatValue();
+            }
+            return c;
+        }
         public String getFrom( PdfDictionary dict ) {
             PdfArray array = dict.getAsArray( this.name );
             if ( array == null ) return null;
             if ( array.size() % 8 != 0 ) return null;
-            int n = array.size() / 8;
-            String s = null;
-            for(int i=0; i<n; i++) {
-		float c[] = new float[8];
-		for(int j=0; j<8; j++) {
-		    PdfNumber p = array.getAsNumber(i*8+j);
-		    if (p == null) return null;
-     		    c[j] = p.floatValue();
-		}
-                QuadPoint q = new QuadPoint(c);
-                if (s == null) { s = q.toString();
-                } else { s = s + "," + q.toString(); }
+            if ( array.size() == 0 ) return null;
+            // same as joining QuadPoint.toString() of all quads with ","
+            StringBuilder s = new StringBuilder( array.size() * 10 );
+            for(int i=0; i<array.size(); i++) {
+                PdfNumber p = array.getAsNumber(i);
+                if (p == null) return null;
+                if (i > 0) s.append(',');
+                FloatFormat.append( s, p.floatValue() );
             }
-            return s;
+            return s.toString();
+        }
+        public PdfObject parse(String value) {
+            float[] c = parseFloats( value, 0 );
+            if ( c == null || c.length % 8 != 0 ) return null;
+            return new PdfArray(c);
         }
     }
 
     public static class ColorField extends Field {
         ColorField(String attr, String name) { super(attr, name); }
+        /**
+         * Get the color as 0xRRGGBB or -1 if there is no RGB color.
+         */
+        public int getRGB( PdfDictionary dict ) {
+            PdfArray array = dict.getAsArray( this.name );
+            if ( array == null || array.size() != 3 ) return -1;
+            int rgb = 0;
+            for( int i=0; i<3; i++) {
+                PdfNumber p = array.getAsNumber(i);
+                if (p == null) return -1;
+                int c = (int)(255 * p.floatValue());
+                rgb = (rgb << 8) | Math.max( 0, Math.min( 255, c ) );
+            }
+            return rgb;
+        }
         public String getFrom( PdfDictionary dict ) {
             PdfArray array = dict.getAsArray( this.name );
             if ( array == null ) return null;
@@ -194,6 +425,18 @@ public class Annotation {
             // this.setAttr("color",s);  // TODO: => #xxxxxx
             return s;
         }
+        public PdfObject parse(String value) {
+            if ( value.length() != 7 || value.charAt(0) != '#' ) return null;
+            float[] c = new float[3];
+            try {
+                for ( int i = 0; i < 3; i++ ) {
+                    c[i] = Integer.parseInt( value.substring( 1 + 2*i, 3 + 2*i ), 16 ) / 255f;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return new PdfArray(c);
+        }
     }
 
     /**
@@ -219,6 +462,10 @@ public class Annotation {
 
     public static class FlagField extends Field {
         FlagField(String attr, String name) { super(attr, name); }
+        public int getFlags( PdfDictionary dict ) {
+            PdfNumber number = dict.getAsNumber( this.name );
+            return number == null ? 0 : number.intValue();
+        }
         public String getFrom( PdfDictionary dict ) {
             PdfNumber number = dict.getAsNumber( this.name );
             if ( number == null ) return null;
@@ -234,6 +481,16 @@ public class Annotation {
             }
             return s.toString();
         }
+        public PdfObject parse(String value) {
+            int flags = 0;
+            for ( String part : value.split(",") ) {
+                part = part.trim();
+                for ( Flag f : Flag.values() ) {
+                    if ( f.name.equals(part) ) flags |= f.bit;
+                }
+            }
+            return new PdfNumber(flags);
+        }
     }
 
     /**
@@ -254,7 +511,7 @@ public class Annotation {
         FIELDS.put("subject",new StringField ("subject","Subj"));
         FIELDS.put("intent",new StringField ("intent ","IT"));
         FIELDS.put("coords",new CoordsField ("coords","QuadPoints"));
-        // TODO: inreplyto : IRT.name
+        // inreplyto : IRT.name is resolved with a ReplyIndex
         FIELDS.put("replyTo",new StringField ("replyType","RT"));
         FIELDS.put("icon",new StringField ("icon","Name"));
         FIELDS.put("state",new StringField ("state","State"));
@@ -279,6 +536,16 @@ public class Annotation {
         // TODO: overlay-text-repeat : Repeat = true / false
     };
 
+    private static final Field PAGE = FIELDS.get("page");
+    private static final Field NAME = FIELDS.get("name");
+    static final PdfName INKLIST = new PdfName("InkList");
+
+    public static final RectField RECT = (RectField)FIELDS.get("rect");
+    public static final CoordsField COORDS = (CoordsField)FIELDS.get("coords");
+    public static final ColorField COLOR = (ColorField)FIELDS.get("color");
+    public static final FlagField FLAGS = (FlagField)FIELDS.get("flags");
+    public static final StringField TITLE = (StringField)FIELDS.get("title");
+
     /* Border effect attributes */
     // new NumberField ("intensity","I"),
     // style : S (with value-mapping)
@@ -303,57 +570,173 @@ public class Annotation {
         subtypes = Collections.unmodifiableMap(map);
     }
 
+    /**
+     * List of fields to extract from an annotation of a given subtype.
+     * Plans are computed once, so serializing an annotation only looks up
+     * the fields that may apply to its subtype, in a fixed order.
+     */
+    public static class Plan {
+        public final String[] attrs;
+        public final Field[] fields;
+        /** Index of each field in {@link ValueTable#ATTRS} or -1 */
+        final int[] slots;
+        Plan(String... attrs) {
+            this.attrs = attrs;
+            this.fields = new Field[attrs.length];
+            this.slots = new int[attrs.length];
+            for ( int i = 0; i < attrs.length; i++ ) {
+                this.fields[i] = FIELDS.get( attrs[i] );
+                this.slots[i] = Arrays.asList( ValueTable.ATTRS ).indexOf( attrs[i] );
+            }
+        }
+        Plan(Plan base, String... attrs) {
+            this( concat( base.attrs, attrs ) );
+        }
+        private static String[] concat(String[] a, String[] b) {
+            String[] c = new String[a.length + b.length];
+            System.arraycopy( a, 0, c, 0, a.length );
+            System.arraycopy( b, 0, c, a.length, b.length );
+            return c;
+        }
+    }
+
+    /**
+     * Fields common to all annotation subtypes.
+     */
+    public static final Plan COMMON_PLAN = new Plan(
+        "page", "color", "date", "flags", "name", "rect", "title",
+        "creationdate", "opacity", "subject", "intent", "replyTo", "rotation" );
+
+    /**
+     * Plan for annotations of unknown subtype: all fields.
+     */
+    public static final Plan DEFAULT_PLAN;
+
+    public static final Map<PdfName, Plan> PLANS;
+    static {
+        DEFAULT_PLAN = new Plan( FIELDS.keySet().toArray( new String[0] ) );
+
+        Plan markup = new Plan( COMMON_PLAN, "coords" );
+        HashMap<PdfName, Plan> map = new HashMap<PdfName, Plan>();
+        map.put(PdfName.TEXT, new Plan( COMMON_PLAN, "icon", "state", "statemodel" ));
+        map.put(PdfName.HIGHLIGHT, markup);
+        map.put(PdfName.UNDERLINE, markup);
+        map.put(PdfName.STRIKEOUT, markup);
+        map.put(PdfName.SQUIGGLY, markup);
+        map.put(PdfName.INK, COMMON_PLAN);
+        map.put(PdfName.POPUP, COMMON_PLAN);
+        map.put(PdfName.FREETEXT, new Plan( COMMON_PLAN, "fringe" ));
+        map.put(new PdfName("Caret"), new Plan( COMMON_PLAN, "fringe" ));
+        map.put(PdfName.LINE, new Plan( COMMON_PLAN, "interior-color",
+            "leaderLength", "leaderExtend", "caption", "leader-offset", "caption-style" ));
+        map.put(PdfName.SQUARE, new Plan( COMMON_PLAN, "interior-color", "fringe" ));
+        map.put(PdfName.CIRCLE, new Plan( COMMON_PLAN, "interior-color", "fringe" ));
+        map.put(PdfName.POLYGON, new Plan( COMMON_PLAN, "interior-color" ));
+        map.put(PdfName.POLYLINE, new Plan( COMMON_PLAN, "interior-color" ));
+        map.put(PdfName.STAMP, new Plan( COMMON_PLAN, "icon" ));
+        map.put(PdfName.FILEATTACHMENT, new Plan( COMMON_PLAN, "icon" ));
+        map.put(PdfName.SOUND, new Plan( COMMON_PLAN, "icon" ));
+        map.put(PdfName.LINK, new Plan( COMMON_PLAN, "Highlight", "coords" ));
+        map.put(new PdfName("Redact"), new Plan( COMMON_PLAN,
+            "interior-color", "overlay-text", "coords" ));
+        PLANS = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Subtypes by XFDF element name, the reverse of {@link #getSubtypeName}
+     * for all subtypes with a {@link Plan}.
+     */
+    public static final Map<String, PdfName> ELEMENTS;
+    static {
+        HashMap<String, PdfName> map = new HashMap<String, PdfName>();
+        for ( PdfName subtype : PLANS.keySet() ) {
+            map.put( getSubtypeName(subtype), subtype );
+        }
+        ELEMENTS = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Get the extraction plan for an annotation subtype.
+     */
+    public static Plan getPlan(PdfName subtype) {
+        Plan plan = subtype == null ? null : PLANS.get(subtype);
+        return plan == null ? DEFAULT_PLAN : plan;
+    }
+
     /**
      * Serialize the annotation in XML format.
      * The annotation is emitted as stream of SAX events to a ContentHandler.
      * The XML is XFDF with additional Marginalia elements in its own namespace.
      */
     public void serializeXML(ContentHandler handler) throws SAXException {
-	SimpleXMLCreator xml = new SimpleXMLCreator( handler, namespaces );
+        serializeXML( new SimpleXMLCreator( handler, namespaces ) );
+    }
 
-        Set<PdfName> allkeys = this.dict.getKeys();
-        allkeys.remove( PdfName.TYPE );
-        allkeys.remove( PdfName.SUBTYPE );
-        allkeys.remove( PdfName.PARENT );
-        allkeys.remove( PdfName.CONTENTS );
-        allkeys.remove( PdfName.POPUP );
+    /**
+     * Serialize the annotation in XML format with a given SimpleXMLCreator.
+     * The creator should be reused for all annotations of a document.
+     * Only the fields in the {@link Plan} of the annotation's subtype are
+     * extracted, so attributes are emitted in the order of the plan.
+     */
+    public void serializeXML(SimpleXMLCreator xml) throws SAXException {
+        serializeXML( xml, null );
+    }
 
-        Map<String,String> attrs = new HashMap<String,String>();
-        for ( String aName : this.FIELDS.keySet() ) {
-            Field f = this.FIELDS.get(aName);
-            String value = f.getFrom( this.dict );
+    /**
+     * Serialize the annotation in XML format and record the time spent on
+     * decoding fields and on writing. If shared values have been set with
+     * {@link #setValueRefs}, they are written as references.
+     * @param metrics Metrics to record to, or <code>null</code>
+     */
+    public void serializeXML(SimpleXMLCreator xml, Metrics metrics) throws SAXException {
+        long time = metrics == null ? 0 : System.nanoTime();
+        boolean hasPage = false;
+        boolean hasName = false;
+        Plan plan = getPlan(this.subtype);
+        for ( int i = 0; i < plan.fields.length; i++ ) {
+            if ( this.refs != null && plan.slots[i] >= 0 ) {
+                int ref = this.refs[ plan.slots[i] ];
+                if ( ref >= 0 ) xml.attr( ValueTable.REFS[ plan.slots[i] ], ref );
+                continue;
+            }
+            String value = plan.fields[i].getFrom( this.dict );
             if (value != null) { // TODO: encoding & exception
-                attrs.put( aName, value );
-//                allkeys.remove( f.name );
+                xml.attr( plan.attrs[i], value );
+                if ( plan.fields[i] == PAGE ) hasPage = true;
+                if ( plan.fields[i] == NAME ) hasName = true;
             }
         }
+        if ( !hasName && this.reference != null ) xml.attr( "name", getName() );
+        if ( this.inReplyTo != null ) xml.attr( "inreplyto", this.inReplyTo );
+        if ( metrics != null ) {
+            long now = System.nanoTime();
+            metrics.record( Metrics.Phase.DECODE, now - time );
+            time = now;
+        }
 
-        PdfDictionary pg = getAsDictionary(this.dict,PdfName.P);
-        allkeys.remove( PdfName.P );
 		//CropBox=[0, 0, 595, 842]
 		//Rotate
 		//MediaBox=[0, 0, 595, 842]
         // TODO: find out where page number is stored
-        if ( attrs.get("page") == null ) attrs.put("page",""+this.pageNum);
+        if ( !hasPage ) xml.attr( "page", this.pageNum );
 
-        String element = subtypes.get(this.subtype);
-        if (element == null) { // TODO
-            element = this.subtype.toString();
-        }
+        String element = getSubtypeName();
 
-        xml.startElement( element, attrs );
+        xml.startElement( element );
 
 	if (element.equals("ink")) {
-	    PdfArray inklist = this.dict.getAsArray(new PdfName("InkList"));
+	    PdfArray inklist = this.dict.getAsArray(INKLIST);
             if (inklist != null) {
                 xml.startElement("inklist");
+                StringBuilder s = new StringBuilder();
                 for(int i=0; i<inklist.size(); i++) {
 		    PdfArray pathArray = inklist.getAsArray(i);
-                    String s = "";
+                    s.setLength(0);
                     for(int j=0; j<pathArray.size(); j+=2) {
-                        if (j>0) s+= ";";
-                        s += ""+pathArray.getAsNumber(j).floatValue()+",";
-                        s += ""+pathArray.getAsNumber(j+1).floatValue();
+                        if (j>0) s.append(';');
+                        FloatFormat.append( s, pathArray.getAsNumber(j).floatValue() );
+                        s.append(',');
+                        FloatFormat.append( s, pathArray.getAsNumber(j+1).floatValue() );
                     }
                     xml.contentElement("gesture",s);
                 }
@@ -361,37 +744,36 @@ public class Annotation {
             }
 	}
 
-	if ( attrs.get("rect") != null ) {
-            Map<String,String> a = new HashMap<String,String>();
-            RectField rf = (RectField)this.FIELDS.get("rect");
-            PdfRectangle r = null;
-            if (rf != null) r = (PdfRectangle)rf.getObjectFrom( this.dict );
-            if (r != null) {
-              a.put("left", ""+r.left());
-              a.put("bottom", ""+r.bottom() );
-              a.put("right", ""+r.right());
-              a.put("top", ""+r.top());
-              xml.emptyElement("m","rect",a);
-           }
+        PdfRectangle r = (PdfRectangle)RECT.getObjectFrom( this.dict );
+        if (r != null) {
+            xml.attr("left", r.left());
+            xml.attr("bottom", r.bottom() );
+            xml.attr("right", r.right());
+            xml.attr("top", r.top());
+            xml.emptyElement("m","rect");
 	}
 
         if ( this.content != null && !this.content.equals("") ) {
             // TODO: encode content if not UTF-8 ?
             xml.contentElement( "content", content.toString() );
         }
+
+        if ( this.text != null ) {
+            xml.contentElement( "m", "text", this.text );
+        }
         // TODO: contents-richtext
-        // TODO: popup
-/*
-		if ( this.popup != null ) {
-		  out.println("<!--popup>");
-		  for ( PdfName n : this.popup.getKeys() ) {
-			  out.println( n + "=" + this.popup.getDirectObject(n) );
-		  }
-		  out.println("</popup-->");
-		}
-*/
+        if ( this.popupAnnotation != null ) {
+            this.popupAnnotation.serializePopup(xml);
+        }
         // remaining dictionary elements
 /*
+        Set<PdfName> allkeys = this.dict.getKeys();
+        allkeys.remove( PdfName.TYPE );
+        allkeys.remove( PdfName.SUBTYPE );
+        allkeys.remove( PdfName.PARENT );
+        allkeys.remove( PdfName.CONTENTS );
+        allkeys.remove( PdfName.POPUP );
+        allkeys.remove( PdfName.P );
         for ( PdfName name : allkeys ) {
             Map<String,String> a = new HashMap<String,String>();
             a.put("name",name.toString());
@@ -400,6 +782,24 @@ public class Annotation {
         }
 */
         xml.endElement();
+        if ( metrics != null ) {
+            metrics.record( Metrics.Phase.WRITE, System.nanoTime() - time );
+        }
+    }
+
+    /**
+     * Serialize the annotation as XFDF <code>popup</code> element, to be
+     * nested in the annotation it belongs to.
+     */
+    void serializePopup(SimpleXMLCreator xml) throws SAXException {
+        String flags = FLAGS.getFrom( this.dict );
+        if ( flags != null ) xml.attr( "flags", flags );
+        PdfBoolean open = this.dict.getAsBoolean(PdfName.OPEN);
+        if ( open != null ) xml.attr( "open", open.booleanValue() ? "yes" : "no" );
+        xml.attr( "page", this.pageNum );
+        String rect = RECT.getFrom( this.dict );
+        if ( rect != null ) xml.attr( "rect", rect );
+        xml.emptyElement("popup");
     }
 
     /**
@@ -0,0 +1,250 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfString;
+
+/**
+ * Selects annotations by page, subtype, author and modification date.
+ *
+ * The filter only looks at the keys it needs (<code>/Subtype</code>,
+ * <code>/T</code> and <code>/M</code>) of an annotation dictionary, so
+ * annotations can be selected without decoding them, and pages outside of
+ * the page ranges can be skipped without reading them. Criteria that are
+ * not set match all annotations.
+ */
+public class AnnotationFilter {
+    /** Pairs of first and last page, or null for all pages */
+    private int[] pages;
+    /** Subtype names as used for XFDF elements, or null for all */
+    private Set<String> subtypes;
+    /** Authors, or null for all */
+    private Set<String> authors;
+    /** Normalized dates, or null for any */
+    private String after, before;
+
+    /** Missing parts of a date: month, day, hours, minutes and seconds */
+    private static final String DATE_DEFAULTS = "00000101000000";
+
+    /**
+     * Set the pages to match.
+     * @param spec comma-separated list of page numbers and ranges such as
+     *        <code>1-5,10,20-</code>, where an open range ends at the last page
+     * @throws IllegalArgumentException if the list cannot be parsed
+     */
+    public void setPages(String spec) {
+        String[] parts = spec.split(",");
+        int[] ranges = new int[ 2 * parts.length ];
+        try {
+            for ( int i = 0; i < parts.length; i++ ) {
+                String part = parts[i].trim();
+                int dash = part.indexOf('-');
+                if ( dash < 0 ) {
+                    ranges[2*i] = ranges[2*i+1] = Integer.parseInt(part);
+                } else {
+                    ranges[2*i] = Integer.parseInt( part.substring(0, dash).trim() );
+                    String last = part.substring(dash + 1).trim();
+                    ranges[2*i+1] = last.length() == 0 ? Integer.MAX_VALUE
+                                  : Integer.parseInt(last);
+                }
+                if ( ranges[2*i] < 1 || ranges[2*i+1] < ranges[2*i] ) {
+                    throw new IllegalArgumentException("invalid page range: " + part);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid page range: " + spec);
+        }
+        this.pages = ranges;
+    }
+
+    /**
+     * Set the subtypes to match.
+     * @param spec comma-separated list of subtype names as used for XFDF
+     *        elements, for instance <code>highlight,ink</code>
+     */
+    public void setSubtypes(String spec) {
+        this.subtypes = split( spec.toLowerCase(Locale.ROOT) );
+    }
+
+    /**
+     * Set the authors (<code>/T</code>) to match.
+     * @param spec comma-separated list of names
+     */
+    public void setAuthors(String spec) {
+        this.authors = split(spec);
+    }
+
+    /**
+     * Set the range of modification dates (<code>/M</code>) to match.
+     * Dates are given as <code>YYYY[-MM[-DD[THH:MM[:SS]]]]</code>, time
+     * zones are ignored. Annotations without date do not match.
+     * @param after earliest date or null
+     * @param before date that all dates must be earlier than, or null
+     * @throws IllegalArgumentException if a date cannot be parsed
+     */
+    public void setDates(String after, String before) {
+        this.after = after == null ? null : normalizeDate(after, true);
+        this.before = before == null ? null : normalizeDate(before, true);
+    }
+
+    /**
+     * Normalize a date to 14 digits. Only the leading digits are used, so
+     * this works for both PDF dates (<code>D:YYYYMMDDHHmmSS...</code>) and
+     * ISO 8601 dates.
+     * @param strict whether to throw an exception for invalid dates
+     * @return the normalized date, or null for an invalid date
+     */
+    static String normalizeDate(String date, boolean strict) {
+        StringBuilder digits = new StringBuilder(14);
+        int i = date.startsWith("D:") ? 2 : 0;
+        for ( ; i < date.length() && digits.length() < 14; i++ ) {
+            char c = date.charAt(i);
+            if ( c >= '0' && c <= '9' ) {
+                digits.append(c);
+            } else if ( !( c == '-' || c == ':' || c == 'T' || c == ' ' ) ) {
+                break;
+            }
+        }
+        if ( digits.length() < 4 || digits.length() % 2 != 0 ) {
+            if ( strict ) throw new IllegalArgumentException("invalid date: " + date);
+            return null;
+        }
+        return digits.append( DATE_DEFAULTS.substring( digits.length() ) ).toString();
+    }
+
+    /**
+     * Whether any criteria have been set.
+     */
+    public boolean isEmpty() {
+        return pages == null && subtypes == null && authors == null
+            && after == null && before == null;
+    }
+
+    /**
+     * Whether the subtypes to match have been set explicitly.
+     */
+    public boolean hasSubtypes() {
+        return subtypes != null;
+    }
+
+    /**
+     * Whether annotations on a page may match.
+     */
+    public boolean acceptsPage(int pageNum) {
+        if ( pages == null ) return true;
+        for ( int i = 0; i < pages.length; i += 2 ) {
+            if ( pageNum >= pages[i] && pageNum <= pages[i+1] ) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the first page that may contain matching annotations, starting
+     * at a given page.
+     * @param filter Filter or <code>null</code> to accept all pages
+     * @return page number or {@link Integer#MAX_VALUE} if no page after the
+     *         given one is accepted
+     */
+    public static int nextPage(AnnotationFilter filter, int pageNum) {
+        if ( filter == null || filter.pages == null ) return pageNum;
+        int next = Integer.MAX_VALUE;
+        for ( int i = 0; i < filter.pages.length; i += 2 ) {
+            if ( pageNum <= filter.pages[i+1] ) {
+                next = Math.min( next, Math.max( pageNum, filter.pages[i] ) );
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Whether an annotation dictionary matches subtype, author and date.
+     * The page must be checked with {@link #acceptsPage}.
+     */
+    public boolean accepts(PdfDictionary annot) {
+        if ( subtypes != null
+             && !subtypes.contains( Annotation.getSubtypeName( annot.getAsName(PdfName.SUBTYPE) ) ) ) {
+            return false;
+        }
+        if ( authors != null ) {
+            PdfString author = annot.getAsString(PdfName.T);
+            if ( author == null || !authors.contains( author.toUnicodeString() ) ) {
+                return false;
+            }
+        }
+        if ( after != null || before != null ) {
+            PdfString m = annot.getAsString(PdfName.M);
+            String date = m == null ? null : normalizeDate( m.toString(), false );
+            if ( date == null ) return false;
+            if ( after != null && date.compareTo(after) < 0 ) return false;
+            if ( before != null && date.compareTo(before) >= 0 ) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get a string that identifies the criteria, independent of the order
+     * in which they have been given.
+     */
+    public String getKey() {
+        StringBuilder s = new StringBuilder();
+        if ( pages != null ) {
+            s.append("pages");
+            for ( long[] range : pageRanges() ) {
+                s.append(' ').append(range[0]).append('-').append(range[1]);
+            }
+        }
+        if ( subtypes != null ) s.append(";subtypes ").append( new TreeSet<String>(subtypes) );
+        if ( authors != null ) s.append(";authors ").append( new TreeSet<String>(authors) );
+        if ( after != null ) s.append(";after ").append(after);
+        if ( before != null ) s.append(";before ").append(before);
+        return s.toString();
+    }
+
+    /**
+     * Get the page ranges sorted, with overlapping and adjacent ranges merged.
+     */
+    private List<long[]> pageRanges() {
+        List<long[]> ranges = new ArrayList<long[]>();
+        for ( int i = 0; i < pages.length; i += 2 ) {
+            ranges.add( new long[] { pages[i], pages[i+1] } );
+        }
+        Collections.sort( ranges, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+            }
+        });
+        List<long[]> merged = new ArrayList<long[]>();
+        for ( long[] range : ranges ) {
+            long[] last = merged.isEmpty() ? null : merged.get( merged.size() - 1 );
+            if ( last != null && range[0] <= last[1] + 1 ) {
+                last[1] = Math.max( last[1], range[1] );
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    private static Set<String> split(String spec) {
+        Set<String> set = new HashSet<String>();
+        for ( String s : spec.split(",") ) {
+            s = s.trim();
+            if ( s.length() > 0 ) set.add(s);
+        }
+        return set;
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.itextpdf.text.pdf.PRIndirectReference;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfIndirectReference;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+
+/**
+ * Removes annotations from PDF files with an incremental update.
+ *
+ * Annotations that match a filter are removed from the <code>/Annots</code>
+ * array of their page and their objects are marked as free. Popups of
+ * removed annotations are removed as well. Unless subtypes are given
+ * explicitly, links, form fields (widgets) and popups of other annotations
+ * are kept.
+ *
+ * Only the changed page dictionaries are written: the update is appended
+ * to the file in place or to a copy of the file, so the bytes of the
+ * original file are never rewritten and the time depends on the number of
+ * changed pages, not on the size of the file. As with any incremental
+ * update, the removed annotations can still be found in the earlier
+ * revision of the file. Files are processed in parallel.
+ */
+public class AnnotationStripper {
+    private final AnnotationFilter filter;
+    private final int threads;
+    private final File outputDir;
+
+    /**
+     * @param filter Annotations to remove
+     * @param threads Number of worker threads, or 0 for one per processor
+     * @param outputDir Directory to write updated copies to, or
+     *        <code>null</code> to append to the files in place
+     */
+    public AnnotationStripper(AnnotationFilter filter, int threads, File outputDir) {
+        if ( threads <= 0 ) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.filter = filter;
+        this.threads = threads;
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * Remove annotations from all files and print the number of removed
+     * annotations of each file, in the order of the files.
+     * @param out Stream for the tab-separated name and number of each file
+     * @param filenames Paths to the PDF files, each file must only be
+     *        given once
+     * @return number of files that could not be updated
+     * @throws IOException if two files would be written to the same file
+     *         in the output directory
+     */
+    public int stripAll(PrintStream out, String[] filenames)
+      throws InterruptedException, IOException {
+        if ( outputDir != null ) BatchInspector.checkOutputNames(filenames, null);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        int failed = 0;
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>(filenames.length);
+            for ( final String filename : filenames ) {
+                results.add( pool.submit( new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        return strip(filename);
+                    }
+                } ) );
+            }
+            for ( int i = 0; i < filenames.length; i++ ) {
+                try {
+                    out.println( filenames[i] + "\t" + results.get(i).get() );
+                } catch (ExecutionException e) {
+                    failed++;
+                    System.err.println(filenames[i] + ": " + e.getCause());
+                }
+            }
+            out.flush();
+        } finally {
+            pool.shutdownNow();
+        }
+        return failed;
+    }
+
+    /**
+     * Remove annotations from a file.
+     * @return number of removed annotations
+     */
+    public int strip(String filename) throws IOException {
+        File source = new File(filename);
+        File target = source;
+        if ( outputDir != null ) {
+            target = new File( outputDir, source.getName() );
+            if ( target.getCanonicalFile().equals( source.getCanonicalFile() ) ) {
+                throw new IOException("output file is the input file");
+            }
+        }
+
+        PdfReader reader = Marginalia.openReader(filename, true);
+        IncrementalUpdate update;
+        int removed;
+        try {
+            update = new IncrementalUpdate(reader);
+            removed = strip(reader, update);
+        } finally {
+            reader.close();
+        }
+
+        if ( target != source ) copy(source, target);
+        if ( !update.isEmpty() ) update.appendTo(target);
+        return removed;
+    }
+
+    /**
+     * Remove annotations from the pages of an opened file and add the
+     * changed pages to an update.
+     * @return number of removed annotations
+     */
+    int strip(PdfReader reader, IncrementalUpdate update) throws IOException {
+        int removed = 0;
+        int pages = reader.getNumberOfPages();
+        for ( int pageNum = AnnotationFilter.nextPage(filter, 1); pageNum <= pages;
+              pageNum = AnnotationFilter.nextPage(filter, pageNum + 1) ) {
+            PdfDictionary page = reader.getPageN(pageNum);
+            int n = strip(page, update);
+            if ( n > 0 ) {
+                PRIndirectReference pageRef = reader.getPageOrigRef(pageNum);
+                update.put( pageRef.getNumber(), pageRef.getGeneration(), page );
+                removed += n;
+            }
+            reader.releasePage(pageNum);
+        }
+        return removed;
+    }
+
+    /**
+     * Remove matching annotations from the <code>/Annots</code> array of a
+     * page dictionary and free their objects. The page must be accepted
+     * by the filter and is not added to the update.
+     * @return number of removed annotations
+     */
+    int strip(PdfDictionary page, IncrementalUpdate update) {
+        PdfArray annots = page.getAsArray(PdfName.ANNOTS);
+        if ( annots == null || annots.isEmpty() ) return 0;
+
+        boolean[] remove = new boolean[ annots.size() ];
+        Set<Integer> numbers = new HashSet<Integer>();
+        boolean any = false;
+        for ( int i = 0; i < annots.size(); i++ ) {
+            PdfObject obj = annots.getDirectObject(i);
+            if ( obj == null || !obj.isDictionary() || !matches( (PdfDictionary)obj ) ) continue;
+            remove[i] = any = true;
+            PdfObject ref = annots.getPdfObject(i);
+            if ( ref.isIndirect() ) numbers.add( ((PdfIndirectReference)ref).getNumber() );
+        }
+        if ( !any ) return 0;
+
+        // popups belong to the annotation they are the parent of
+        for ( int i = 0; i < annots.size(); i++ ) {
+            if ( remove[i] ) continue;
+            PdfObject obj = annots.getDirectObject(i);
+            if ( obj == null || !obj.isDictionary() ) continue;
+            PdfObject parent = ((PdfDictionary)obj).get(PdfName.PARENT);
+            if ( parent != null && parent.isIndirect()
+                 && numbers.contains( ((PdfIndirectReference)parent).getNumber() ) ) {
+                remove[i] = true;
+            }
+        }
+
+        int removed = 0;
+        PdfArray kept = new PdfArray();
+        for ( int i = 0; i < annots.size(); i++ ) {
+            PdfObject ref = annots.getPdfObject(i);
+            if ( !remove[i] ) {
+                kept.add(ref);
+                continue;
+            }
+            removed++;
+            if ( ref.isIndirect() ) {
+                PdfIndirectReference r = (PdfIndirectReference)ref;
+                update.free( r.getNumber(), r.getGeneration() );
+            }
+        }
+        if ( kept.isEmpty() ) {
+            page.remove(PdfName.ANNOTS);
+        } else {
+            page.put(PdfName.ANNOTS, kept);
+        }
+        return removed;
+    }
+
+    /**
+     * Get the filter of annotations to remove.
+     */
+    AnnotationFilter getFilter() {
+        return filter;
+    }
+
+    private boolean matches(PdfDictionary annot) {
+        if ( !filter.hasSubtypes() ) {
+            PdfName subtype = annot.getAsName(PdfName.SUBTYPE);
+            if ( PdfName.LINK.equals(subtype) || PdfName.WIDGET.equals(subtype)
+                 || PdfName.POPUP.equals(subtype) ) {
+                return false;
+            }
+        }
+        return filter.accepts(annot);
+    }
+
+    /**
+     * Copy a file without looking at its content.
+     */
+    static void copy(File source, File target) throws IOException {
+        FileChannel in = new FileInputStream(source).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(target).getChannel();
+            try {
+                long size = in.size();
+                long position = 0;
+                while ( position < size ) {
+                    position += in.transferTo( position, size - position, out );
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
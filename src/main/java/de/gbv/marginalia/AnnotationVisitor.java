@@ -0,0 +1,30 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.IOException;
+
+import com.itextpdf.text.pdf.PdfReader;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Receives the pages and annotations of a PDF file in page order.
+ * @see Marginalia#walk
+ */
+public interface AnnotationVisitor {
+
+    /**
+     * Called for each page before the annotations of this page.
+     */
+    void page(PdfReader reader, int pageNum) throws IOException, SAXException;
+
+    /**
+     * Called for each annotation. The annotation is only valid until the
+     * next call, because its page may be released afterwards.
+     */
+    void annotation(Annotation annotation) throws IOException, SAXException;
+}
@@ -0,0 +1,163 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Inspects many PDF files in parallel on a fixed pool of worker threads.
+ *
+ * Each file is inspected independently, so a broken file is reported and
+ * skipped without aborting the other files. Output is either written to
+ * one file per input in an output directory, or to a single writer in the
+ * order of the input files. In the latter case each worker renders into a
+ * buffer and only a limited number of files is processed ahead of the one
+ * that is currently written.
+ */
+public class BatchInspector {
+    private final int threads;
+    private final Options options;
+    private final File outputDir;
+
+    /**
+     * @param threads Number of worker threads, or 0 for one per processor
+     * @param options Options to inspect each file with
+     * @param outputDir Directory to write one file per input to, or
+     *        <code>null</code> to write all results to a single writer
+     */
+    public BatchInspector(int threads, Options options, File outputDir) {
+        if ( threads <= 0 ) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.threads = threads;
+        this.options = options;
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * Inspect all files and write the results.
+     * @param out Stream for results if no output directory was given
+     * @param filenames Paths to the PDF files
+     * @return number of files that could not be inspected
+     * @throws IOException if two files would be written to the same file
+     *         in the output directory
+     */
+    public int inspectAll(OutputStream out, String[] filenames)
+      throws InterruptedException, IOException {
+        if ( outputDir != null ) checkOutputNames(filenames, options.format.extension);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        int failed = 0;
+        try {
+            int window = 2 * threads;
+            LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+            LinkedList<String> names = new LinkedList<String>();
+            int next = 0;
+            while ( next < filenames.length || !pending.isEmpty() ) {
+                while ( next < filenames.length && pending.size() < window ) {
+                    pending.add( pool.submit( new Task(filenames[next]) ) );
+                    names.add( filenames[next] );
+                    next++;
+                }
+                Future<byte[]> f = pending.removeFirst();
+                String filename = names.removeFirst();
+                try {
+                    byte[] result = f.get();
+                    if ( result != null ) {
+                        out.write(result);
+                        out.flush();
+                    }
+                } catch (ExecutionException e) {
+                    failed++;
+                    System.err.println(filename + ": " + e.getCause());
+                } catch (IOException e) {
+                    failed++;
+                    System.err.println(filename + ": " + e);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return failed;
+    }
+
+    /**
+     * Inspects a single file. Returns the serialized result if it must be
+     * written in order, or <code>null</code> if it has been written to a
+     * file in the output directory.
+     */
+    private class Task implements Callable<byte[]> {
+        private final String filename;
+
+        Task(String filename) {
+            this.filename = filename;
+        }
+
+        public byte[] call() throws Exception {
+            if ( outputDir == null ) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                Marginalia.export(buffer, filename, options);
+                return buffer.toByteArray();
+            }
+
+            File target = new File( outputDir,
+                outputName(filename, options.format.extension) );
+            OutputStream out = new BufferedOutputStream( new FileOutputStream(target) );
+            try {
+                Marginalia.export(out, filename, options);
+            } finally {
+                out.close();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Get the name of the output file for an input file.
+     */
+    public static String outputName(String filename, String extension) {
+        String name = new File(filename).getName();
+        if ( name.toLowerCase(Locale.ROOT).endsWith(".pdf") ) {
+            name = name.substring( 0, name.length() - 4 );
+        }
+        return name + "." + extension;
+    }
+
+    /**
+     * Check that no two input files are written to the same output file,
+     * such as <code>a/x.pdf</code> and <code>b/x.pdf</code>.
+     * @param extension Extension of the output files, or <code>null</code>
+     *        if output files are named like the input files
+     * @throws IOException naming the first two files that collide
+     */
+    public static void checkOutputNames(String[] filenames, String extension)
+      throws IOException {
+        Map<String,String> names = new HashMap<String,String>();
+        for ( String filename : filenames ) {
+            String name = extension == null
+                        ? new File(filename).getName() : outputName(filename, extension);
+            String other = names.put(name, filename);
+            if ( other != null ) {
+                throw new IOException(other + " and " + filename
+                    + " would both be written to " + name);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads binary column blocks written by {@link ColumnWriter}.
+ *
+ * Each block is memory-mapped and columns are returned as views on the
+ * mapped buffer, so numbers are not copied. Only the dictionaries of
+ * subtypes and authors are decoded when a block is opened.
+ */
+public class ColumnReader {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private long position = 0;
+
+    public ColumnReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+    }
+
+    /**
+     * Get the next document block or null at the end of the file.
+     */
+    public Block next() throws IOException {
+        if ( position + 12 > channel.size() ) return null;
+        ByteBuffer header = ByteBuffer.allocate(12);
+        while ( header.hasRemaining() ) {
+            if ( channel.read( header, position + header.position() ) < 0 ) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        header.flip();
+        if ( header.getInt() != ColumnWriter.MAGIC ) {
+            throw new IOException("not a Marginalia column file");
+        }
+        int version = header.getInt();
+        if ( version != ColumnWriter.VERSION ) {
+            throw new IOException("unsupported version " + version);
+        }
+        int length = header.getInt();
+        ByteBuffer data = channel.map( FileChannel.MapMode.READ_ONLY, position + 12, length );
+        position += 12 + length;
+        return new Block(data);
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Columns of a single document.
+     */
+    public static class Block {
+        public final String filename;
+        public final int size;
+
+        private final IntBuffer page, flags, subtype, author, color;
+        private final FloatBuffer rect;
+        private final IntBuffer quadOffsets, gestureOffsets, inkOffsets;
+        private final FloatBuffer quads, ink;
+        private final String[] subtypes, authors;
+
+        Block(ByteBuffer data) {
+            filename = readString(data);
+            size = data.getInt();
+            int q = data.getInt();
+            int g = data.getInt();
+            int k = data.getInt();
+            page = ints(data, size);
+            flags = ints(data, size);
+            subtype = ints(data, size);
+            author = ints(data, size);
+            color = ints(data, size);
+            rect = floats(data, 4 * size);
+            quadOffsets = ints(data, size + 1);
+            quads = floats(data, q);
+            gestureOffsets = ints(data, size + 1);
+            inkOffsets = ints(data, g + 1);
+            ink = floats(data, k);
+            subtypes = readDictionary(data);
+            authors = readDictionary(data);
+        }
+
+        private static IntBuffer ints(ByteBuffer data, int n) {
+            ByteBuffer b = data.slice();
+            b.limit( 4 * n );
+            data.position( data.position() + 4 * n );
+            return b.asIntBuffer();
+        }
+
+        private static FloatBuffer floats(ByteBuffer data, int n) {
+            ByteBuffer b = data.slice();
+            b.limit( 4 * n );
+            data.position( data.position() + 4 * n );
+            return b.asFloatBuffer();
+        }
+
+        private static String readString(ByteBuffer data) {
+            byte[] bytes = new byte[ data.getInt() ];
+            data.get(bytes);
+            try {
+                return new String( bytes, "UTF-8" );
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static String[] readDictionary(ByteBuffer data) {
+            String[] values = new String[ data.getInt() ];
+            for ( int i = 0; i < values.length; i++ ) {
+                values[i] = readString(data);
+            }
+            return values;
+        }
+
+        /** Page numbers of all annotations. */
+        public IntBuffer pages() { return page.duplicate(); }
+
+        /** Annotation flags of all annotations. */
+        public IntBuffer flags() { return flags.duplicate(); }
+
+        /** Colors of all annotations as 0xRRGGBB or -1. */
+        public IntBuffer colors() { return color.duplicate(); }
+
+        /** Rectangles of all annotations, four values each. */
+        public FloatBuffer rects() { return rect.duplicate(); }
+
+        public int page(int i) { return page.get(i); }
+        public int flags(int i) { return flags.get(i); }
+        public int color(int i) { return color.get(i); }
+        public String subtype(int i) { return subtypes[ subtype.get(i) ]; }
+
+        public String author(int i) {
+            int a = author.get(i);
+            return a < 0 ? null : authors[a];
+        }
+
+        /** Distinct subtypes of this document. */
+        public String[] subtypes() { return subtypes.clone(); }
+
+        /** Distinct authors of this document. */
+        public String[] authors() { return authors.clone(); }
+
+        /**
+         * Get one of the rectangle coordinates of an annotation.
+         * @param k 0 for left, 1 for bottom, 2 for right, 3 for top
+         */
+        public float rect(int i, int k) { return rect.get( 4 * i + k ); }
+
+        /** Quad points of an annotation, eight values per quad. */
+        public FloatBuffer quadPoints(int i) {
+            return range( quads, quadOffsets.get(i), quadOffsets.get(i+1) );
+        }
+
+        /** Number of ink gestures of an annotation. */
+        public int gestures(int i) {
+            return gestureOffsets.get(i+1) - gestureOffsets.get(i);
+        }
+
+        /** Points of an ink gesture, alternating x and y coordinates. */
+        public FloatBuffer gesture(int i, int j) {
+            int g = gestureOffsets.get(i) + j;
+            return range( ink, inkOffsets.get(g), inkOffsets.get(g+1) );
+        }
+
+        private static FloatBuffer range(FloatBuffer b, int from, int to) {
+            FloatBuffer d = b.duplicate();
+            d.position(from);
+            d.limit(to);
+            return d.slice();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfRectangle;
+import com.itextpdf.text.pdf.PdfReader;
+
+/**
+ * Writes the geometry of annotations as binary column blocks.
+ *
+ * Each document is written as one block of columns with one entry per
+ * annotation, so a corpus can be loaded without parsing XML. All numbers
+ * are big-endian. A block consists of:
+ *
+ * <pre>
+ * int MAGIC, int VERSION, int length of the rest of the block in bytes
+ * string filename
+ * int n (annotations), int q (quad floats), int g (gestures), int k (ink floats)
+ * int[n] page, int[n] flags, int[n] subtype, int[n] author, int[n] color
+ * float[4n] rect (left, bottom, right, top; NaN if missing)
+ * int[n+1] quad offsets, float[q] quad points
+ * int[n+1] gesture offsets, int[g+1] ink offsets, float[k] ink points
+ * dictionary of subtypes, dictionary of authors
+ * </pre>
+ *
+ * Strings are written as int length and UTF-8 bytes, dictionaries as int
+ * count and strings. Subtypes and authors are indexes into the dictionaries,
+ * the author index is -1 if there is no author. Colors are 0xRRGGBB or -1.
+ *
+ * @see ColumnReader
+ */
+public class ColumnWriter implements AnnotationVisitor {
+    public static final int MAGIC = 0x4d434f4c; // "MCOL"
+    public static final int VERSION = 1;
+
+    private final OutputStream out;
+
+    private final IntColumn page = new IntColumn();
+    private final IntColumn flags = new IntColumn();
+    private final IntColumn subtype = new IntColumn();
+    private final IntColumn author = new IntColumn();
+    private final IntColumn color = new IntColumn();
+    private final FloatColumn rect = new FloatColumn();
+    private final IntColumn quadOffsets = new IntColumn();
+    private final FloatColumn quads = new FloatColumn();
+    private final IntColumn gestureOffsets = new IntColumn();
+    private final IntColumn inkOffsets = new IntColumn();
+    private final FloatColumn ink = new FloatColumn();
+
+    private final StringDictionary subtypes = new StringDictionary();
+    private final StringDictionary authors = new StringDictionary();
+
+    public ColumnWriter(OutputStream out) {
+        this.out = out;
+        reset();
+    }
+
+    /**
+     * Growable array of ints.
+     */
+    static class IntColumn {
+        int[] values = new int[64];
+        int size;
+        void add(int v) {
+            if ( size == values.length ) {
+                int[] a = new int[ 2 * size ];
+                System.arraycopy( values, 0, a, 0, size );
+                values = a;
+            }
+            values[size++] = v;
+        }
+        void write(DataOutputStream out) throws IOException {
+            for ( int i = 0; i < size; i++ ) out.writeInt( values[i] );
+        }
+    }
+
+    /**
+     * Growable array of floats.
+     */
+    static class FloatColumn {
+        float[] values = new float[256];
+        int size;
+        void add(float v) {
+            if ( size == values.length ) {
+                float[] a = new float[ 2 * size ];
+                System.arraycopy( values, 0, a, 0, size );
+                values = a;
+            }
+            values[size++] = v;
+        }
+        void write(DataOutputStream out) throws IOException {
+            for ( int i = 0; i < size; i++ ) out.writeFloat( values[i] );
+        }
+    }
+
+    /**
+     * Maps strings to consecutive indexes.
+     */
+    static class StringDictionary {
+        final Map<String,Integer> index = new HashMap<String,Integer>();
+        final List<String> values = new ArrayList<String>();
+        int indexOf(String s) {
+            if ( s == null ) return -1;
+            Integer i = index.get(s);
+            if ( i == null ) {
+                i = values.size();
+                index.put( s, i );
+                values.add(s);
+            }
+            return i;
+        }
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt( values.size() );
+            for ( String s : values ) writeString( out, s );
+        }
+        void clear() {
+            index.clear();
+            values.clear();
+        }
+    }
+
+    private void reset() {
+        page.size = flags.size = subtype.size = author.size = color.size = 0;
+        rect.size = quads.size = ink.size = 0;
+        quadOffsets.size = gestureOffsets.size = inkOffsets.size = 0;
+        quadOffsets.add(0);
+        gestureOffsets.add(0);
+        inkOffsets.add(0);
+        subtypes.clear();
+        authors.clear();
+    }
+
+    public void page(PdfReader reader, int pageNum) {
+    }
+
+    public void annotation(Annotation a) {
+        PdfDictionary dict = a.getDictionary();
+        page.add( a.getPageNumber() );
+        flags.add( Annotation.FLAGS.getFlags(dict) );
+        subtype.add( subtypes.indexOf( a.getSubtypeName() ) );
+        author.add( authors.indexOf( Annotation.TITLE.getFrom(dict) ) );
+        color.add( Annotation.COLOR.getRGB(dict) );
+
+        PdfRectangle r = Annotation.RECT.getRectangle(dict);
+        if ( r == null ) {
+            for ( int i = 0; i < 4; i++ ) rect.add( Float.NaN );
+        } else {
+            rect.add( r.left() );
+            rect.add( r.bottom() );
+            rect.add( r.right() );
+            rect.add( r.top() );
+        }
+
+        float[] c = Annotation.COORDS.getCoords(dict);
+        if ( c != null ) {
+            for ( float f : c ) quads.add(f);
+        }
+        quadOffsets.add( quads.size );
+
+        float[][] paths = a.getInkList();
+        if ( paths != null ) {
+            for ( float[] path : paths ) {
+                for ( float f : path ) ink.add(f);
+                inkOffsets.add( ink.size );
+            }
+        }
+        gestureOffsets.add( inkOffsets.size - 1 );
+    }
+
+    /**
+     * Write the collected annotations as one block and start a new block.
+     * @param filename Name of the document to store with the block
+     */
+    public void writeDocument(String filename) throws IOException {
+        // eleven ints per annotation and the first entries of two offset
+        // columns, without the strings of the dictionaries
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+            64 + 4 * ( 11 * page.size + 2 + quads.size + inkOffsets.size + ink.size ) );
+        DataOutputStream data = new DataOutputStream(buffer);
+
+        writeString( data, filename );
+        data.writeInt( page.size );
+        data.writeInt( quads.size );
+        data.writeInt( inkOffsets.size - 1 );
+        data.writeInt( ink.size );
+        page.write(data);
+        flags.write(data);
+        subtype.write(data);
+        author.write(data);
+        color.write(data);
+        rect.write(data);
+        quadOffsets.write(data);
+        quads.write(data);
+        gestureOffsets.write(data);
+        inkOffsets.write(data);
+        ink.write(data);
+        subtypes.write(data);
+        authors.write(data);
+        data.flush();
+
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt( MAGIC );
+        header.writeInt( VERSION );
+        header.writeInt( buffer.size() );
+        buffer.writeTo(out);
+        reset();
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+}
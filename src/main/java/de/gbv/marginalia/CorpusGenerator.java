@@ -0,0 +1,746 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import jargs.gnu.CmdLineParser;
+
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfLiteral;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfString;
+
+/**
+ * Generates annotated PDF files for benchmarks and scaling tests.
+ *
+ * Page count, annotation density, the mix of subtypes and the size of ink
+ * gestures, quad points and contents are configurable. Documents are fully
+ * determined by their seed: the same settings and seed always give the
+ * same bytes. Objects are serialized with the object model of iText but
+ * written directly, page by page, so memory does not grow with the size
+ * of the document and files of several gigabytes can be generated.
+ *
+ * Each incremental update revision adds, rewrites and deletes some of the
+ * annotations of the previous revision. Appearance streams can be omitted,
+ * written for each annotation, or shared by all annotations of a subtype.
+ */
+public class CorpusGenerator {
+
+    /**
+     * How appearance streams are written.
+     */
+    public static enum Appearance {
+        /** No appearance streams */
+        NONE,
+        /** One appearance stream per annotation */
+        OWN,
+        /** One appearance stream per subtype, shared by all annotations */
+        SHARED
+    }
+
+    /** Number of pages per document */
+    public int pages = 10;
+
+    /** Average number of annotations per page */
+    public int density = 5;
+
+    /** Points per ink gesture */
+    public int inkPoints = 200;
+
+    /** Quads per text markup annotation */
+    public int quads = 8;
+
+    /** Average length of the contents of text notes in characters */
+    public int contentLength = 200;
+
+    /** Number of distinct authors */
+    public int authors = 3;
+
+    /** Number of incremental updates after the original revision */
+    public int revisions = 0;
+
+    /** How appearance streams are written */
+    public Appearance appearances = Appearance.NONE;
+
+    private int[] mixSubtypes;
+    private int[] mixWeights;
+    private int mixTotal;
+
+    static final float WIDTH = 595, HEIGHT = 842;
+    static final float MARGIN = 72, LEADING = 14, FONT_SIZE = 11;
+    static final int LINES = (int)( ( HEIGHT - 2 * MARGIN ) / LEADING );
+
+    /** 2010-01-01T00:00:00Z, start of all generated dates */
+    private static final long EPOCH = 1262304000000L;
+
+    private static final String[] WORDS = {
+        "annotation", "margin", "reader", "review", "page", "document",
+        "the", "of", "and", "a", "to", "in", "is", "that", "for", "with",
+        "comment", "highlight", "note", "draft", "section", "figure",
+        "table", "result", "method", "data", "analysis", "source", "text",
+        "version", "change", "revision", "author", "question", "answer"
+    };
+
+    private static final String[] NAMES = {
+        "Alice", "Bob", "Carol", "Dave", "Eve", "Frank", "Grace", "Heidi",
+        "Ivan", "Judy", "Mallory", "Niaj", "Olivia", "Peggy", "Rupert"
+    };
+
+    static final String[] SUBTYPES = {
+        "Highlight", "Underline", "StrikeOut", "Squiggly", "Ink", "Text",
+        "Square", "FreeText"
+    };
+
+    private static final PdfName INKLIST = new PdfName("InkList");
+    private static final PdfName IC = new PdfName("IC");
+    private static final PdfName NM = new PdfName("NM");
+    private static final PdfName CREATIONDATE = new PdfName("CreationDate");
+
+    public CorpusGenerator() {
+        setMix("highlight:4,text:3,ink:2,square:1");
+    }
+
+    /**
+     * Set the mix of subtypes from a comma-separated list of
+     * case-insensitive subtype names with optional weights, for instance
+     * <code>highlight:4,ink:1</code>.
+     * @throws IllegalArgumentException if a subtype is unknown
+     */
+    public void setMix(String spec) {
+        List<Integer> subtypes = new ArrayList<Integer>();
+        List<Integer> weights = new ArrayList<Integer>();
+        for ( String part : spec.split(",") ) {
+            part = part.trim();
+            if ( part.length() == 0 ) continue;
+            int colon = part.indexOf(':');
+            String name = colon < 0 ? part : part.substring(0, colon);
+            int weight = 1;
+            if ( colon >= 0 ) {
+                try {
+                    weight = Integer.parseInt( part.substring(colon + 1) );
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid weight: " + part);
+                }
+            }
+            int subtype = -1;
+            for ( int i = 0; i < SUBTYPES.length; i++ ) {
+                if ( SUBTYPES[i].equalsIgnoreCase(name) ) subtype = i;
+            }
+            if ( subtype < 0 ) {
+                throw new IllegalArgumentException("unknown subtype: " + name);
+            }
+            if ( weight > 0 ) {
+                subtypes.add(subtype);
+                weights.add(weight);
+            }
+        }
+        if ( subtypes.isEmpty() ) {
+            throw new IllegalArgumentException("empty subtype mix");
+        }
+        mixSubtypes = new int[ subtypes.size() ];
+        mixWeights = new int[ subtypes.size() ];
+        mixTotal = 0;
+        for ( int i = 0; i < mixWeights.length; i++ ) {
+            mixSubtypes[i] = subtypes.get(i);
+            mixWeights[i] = weights.get(i);
+            mixTotal += mixWeights[i];
+        }
+    }
+
+    /**
+     * Generate a document.
+     * @param out Stream to write the PDF file to, is not closed
+     * @param seed Seed that determines the document
+     * @return Number of bytes written
+     */
+    public long generate(OutputStream out, long seed) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(out);
+        new Writer( counter, seed ).write();
+        counter.flush();
+        return counter.count;
+    }
+
+    /**
+     * Generate a document in memory.
+     */
+    public byte[] generate(long seed) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        generate(buffer, seed);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Generate documents into a directory, named corpus-00000.pdf and so on.
+     * Document <i>i</i> is generated with seed <code>seed + i</code>.
+     * @param count Maximum number of documents
+     * @param size Stop when this number of bytes has been written, or 0
+     * @return Names of the generated files
+     */
+    public List<File> generate(File dir, long seed, int count, long size)
+        throws IOException {
+        if ( !dir.isDirectory() && !dir.mkdirs() ) {
+            throw new IOException("cannot create directory " + dir);
+        }
+        List<File> files = new ArrayList<File>();
+        long total = 0;
+        for ( int i = 0; i < count && ( size <= 0 || total < size ); i++ ) {
+            File file = new File( dir, String.format( Locale.ROOT, "corpus-%05d.pdf", i ) );
+            OutputStream out = new BufferedOutputStream( new FileOutputStream(file), 65536 );
+            try {
+                total += generate( out, seed + i );
+            } finally {
+                out.close();
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Writes one document with all of its revisions.
+     */
+    private class Writer {
+        private final CountingOutputStream out;
+        private final Random random;
+        private final long seed;
+        private final Deflater deflater = new Deflater();
+
+        private long[] offsets = new long[1024]; // -1 for free objects
+        private int size = 1;                     // next object number
+
+        private final int catalog, pageTree, font, info;
+        private final int[] pageObjects, contentObjects;
+        private final ColumnWriter.IntColumn[] annots;
+        private final int[] sharedAppearance = new int[ SUBTYPES.length ];
+
+        /** Objects written or freed since the last cross-reference section */
+        private ColumnWriter.IntColumn written = new ColumnWriter.IntColumn();
+
+        private long date;
+        private int revision;
+
+        Writer(CountingOutputStream out, long seed) {
+            this.out = out;
+            this.seed = seed;
+            this.random = new Random(seed);
+            this.date = EPOCH + (long)random.nextInt(365 * 24 * 3600) * 1000;
+            catalog = allocate();
+            pageTree = allocate();
+            font = allocate();
+            info = allocate();
+            pageObjects = new int[pages];
+            contentObjects = new int[pages];
+            annots = new ColumnWriter.IntColumn[pages];
+        }
+
+        void write() throws IOException {
+            write("%PDF-1.6\n%\u00e2\u00e3\u00cf\u00d3\n");
+
+            PdfDictionary dict = new PdfDictionary(PdfName.CATALOG);
+            dict.put( PdfName.PAGES, ref(pageTree) );
+            object( catalog, dict );
+
+            dict = new PdfDictionary(PdfName.FONT);
+            dict.put( PdfName.SUBTYPE, PdfName.TYPE1 );
+            dict.put( PdfName.BASEFONT, PdfName.HELVETICA );
+            dict.put( PdfName.ENCODING, PdfName.WIN_ANSI_ENCODING );
+            object( font, dict );
+
+            dict = new PdfDictionary();
+            dict.put( PdfName.PRODUCER, new PdfString("Marginalia corpus generator") );
+            dict.put( PdfName.CREATIONDATE, new PdfString( pdfDate(date) ) );
+            object( info, dict );
+
+            for ( int p = 0; p < pages; p++ ) {
+                pageObjects[p] = allocate();
+                contentObjects[p] = allocate();
+                annots[p] = new ColumnWriter.IntColumn();
+                content(p);
+                int n = random.nextInt( 2 * density + 1 );
+                for ( int i = 0; i < n; i++ ) {
+                    int obj = allocate();
+                    annotation( obj, p );
+                    annots[p].add(obj);
+                }
+                page(p);
+            }
+
+            // page tree, written by hand to not build a huge array
+            offsets[pageTree] = out.count;
+            write(pageTree + " 0 obj\n<</Type/Pages/Count " + pages + "/Kids[");
+            for ( int p = 0; p < pages; p++ ) {
+                write( ( p > 0 ? " " : "" ) + pageObjects[p] + " 0 R" );
+            }
+            write("]>>\nendobj\n");
+
+            int[] all = new int[ size - 1 ];
+            for ( int i = 0; i < all.length; i++ ) all[i] = i + 1;
+            long startxref = xref( all, true, -1 );
+            for ( revision = 1; revision <= revisions; revision++ ) {
+                startxref = update(startxref);
+            }
+        }
+
+        /**
+         * Append an incremental update that adds, rewrites and deletes
+         * annotations on some pages.
+         * @return offset of its cross-reference section
+         */
+        private long update(long prev) throws IOException {
+            date += ( 1 + random.nextInt(72) ) * 3600000L;
+            write("\n");
+            written = new ColumnWriter.IntColumn();
+            boolean[] touched = new boolean[pages];
+            int total = 0;
+            for ( int p = 0; p < pages; p++ ) total += annots[p].size;
+
+            int additions = Math.max( 1, total / 10 );
+            for ( int i = 0; i < additions; i++ ) {
+                int p = random.nextInt(pages);
+                int obj = allocate();
+                annotation( obj, p );
+                annots[p].add(obj);
+                touched[p] = true;
+            }
+
+            int rewrites = total / 20;
+            for ( int i = 0; i < rewrites; i++ ) {
+                int p = random.nextInt(pages);
+                if ( annots[p].size == 0 ) continue;
+                int obj = annots[p].values[ random.nextInt( annots[p].size ) ];
+                annotation( obj, p );
+            }
+
+            int deletions = total / 20;
+            for ( int i = 0; i < deletions; i++ ) {
+                int p = random.nextInt(pages);
+                ColumnWriter.IntColumn list = annots[p];
+                if ( list.size == 0 ) continue;
+                int k = random.nextInt( list.size );
+                int obj = list.values[k];
+                System.arraycopy( list.values, k + 1, list.values, k, list.size - k - 1 );
+                list.size--;
+                offsets[obj] = -1;
+                written.add(obj);
+                touched[p] = true;
+            }
+
+            for ( int p = 0; p < pages; p++ ) {
+                if ( !touched[p] ) continue;
+                page(p);
+            }
+
+            int[] objects = new int[ written.size ];
+            System.arraycopy( written.values, 0, objects, 0, objects.length );
+            Arrays.sort(objects);
+            return xref( objects, false, prev );
+        }
+
+        /**
+         * Write a cross-reference section for some objects and the trailer.
+         * @return offset of the section
+         */
+        private long xref(int[] objects, boolean first, long prev) throws IOException {
+            long start = out.count;
+            StringBuilder s = new StringBuilder(64);
+            write("xref\n");
+            if ( first ) {
+                write("0 " + size + "\n0000000000 65535 f \n");
+            }
+            int i = 0;
+            while ( i < objects.length ) {
+                int j = i;
+                while ( j + 1 < objects.length && objects[j+1] <= objects[j] + 1 ) j++;
+                if ( !first ) write( objects[i] + " " + ( objects[j] - objects[i] + 1 ) + "\n" );
+                int last = -1;
+                for ( int k = i; k <= j; k++ ) {
+                    if ( objects[k] == last ) continue; // duplicate
+                    last = objects[k];
+                    s.setLength(0);
+                    long offset = offsets[ objects[k] ];
+                    if ( offset < 0 ) {
+                        s.append("0000000000 00001 f \n");
+                    } else {
+                        String o = Long.toString(offset);
+                        for ( int z = o.length(); z < 10; z++ ) s.append('0');
+                        s.append(o).append(" 00000 n \n");
+                    }
+                    write( s.toString() );
+                }
+                i = j + 1;
+            }
+
+            PdfDictionary trailer = new PdfDictionary();
+            trailer.put( PdfName.SIZE, new PdfNumber(size) );
+            trailer.put( PdfName.ROOT, ref(catalog) );
+            trailer.put( PdfName.INFO, ref(info) );
+            if ( prev >= 0 ) trailer.put( PdfName.PREV, new PdfLiteral( Long.toString(prev) ) );
+            PdfArray id = new PdfArray();
+            id.add( new PdfLiteral( "<" + hex(seed, 0) + ">" ) );
+            id.add( new PdfLiteral( "<" + hex(seed, revision) + ">" ) );
+            trailer.put( PdfName.ID, id );
+            write("trailer\n");
+            trailer.toPdf( null, out );
+            write("\nstartxref\n" + start + "\n%%EOF\n");
+            return start;
+        }
+
+        /**
+         * Write the content stream of a page: lines of random words.
+         */
+        private void content(int p) throws IOException {
+            StringBuilder s = new StringBuilder( LINES * 100 );
+            s.append("BT /F1 ").append( (int)FONT_SIZE ).append(" Tf ")
+             .append( (int)LEADING ).append(" TL ")
+             .append( (int)MARGIN ).append(' ').append( (int)( HEIGHT - MARGIN + LEADING ) )
+             .append(" Td\n"); // each line is started with ', moving down first
+            for ( int l = 0; l < LINES; l++ ) {
+                s.append('(');
+                words( s, 70 + random.nextInt(20) );
+                s.append(")'\n");
+            }
+            s.append("ET\n");
+            stream( contentObjects[p], new PdfDictionary(), s.toString().getBytes("ISO-8859-1") );
+        }
+
+        /**
+         * Write a page dictionary with the current annotations of the page.
+         */
+        private void page(int p) throws IOException {
+            PdfDictionary dict = new PdfDictionary(PdfName.PAGE);
+            dict.put( PdfName.PARENT, ref(pageTree) );
+            dict.put( PdfName.MEDIABOX, numbers( 0, 0, WIDTH, HEIGHT ) );
+            PdfDictionary fonts = new PdfDictionary();
+            fonts.put( new PdfName("F1"), ref(font) );
+            PdfDictionary resources = new PdfDictionary();
+            resources.put( PdfName.FONT, fonts );
+            dict.put( PdfName.RESOURCES, resources );
+            dict.put( PdfName.CONTENTS, ref( contentObjects[p] ) );
+            if ( annots[p].size > 0 ) {
+                PdfArray array = new PdfArray();
+                for ( int i = 0; i < annots[p].size; i++ ) {
+                    array.add( ref( annots[p].values[i] ) );
+                }
+                dict.put( PdfName.ANNOTS, array );
+            }
+            object( pageObjects[p], dict );
+        }
+
+        /**
+         * Write a random annotation on a page.
+         */
+        private void annotation(int obj, int p) throws IOException {
+            int subtype = pickSubtype();
+            String name = SUBTYPES[subtype];
+            PdfDictionary dict = new PdfDictionary(PdfName.ANNOT);
+            dict.put( PdfName.SUBTYPE, new PdfName(name) );
+            dict.put( PdfName.P, ref( pageObjects[p] ) );
+            dict.put( PdfName.T, new PdfString( NAMES[ random.nextInt( Math.max( 1,
+                Math.min( authors, NAMES.length ) ) ) ] ) );
+            long created = date + random.nextInt(3600) * 1000L;
+            dict.put( PdfName.M, new PdfString( pdfDate(created) ) );
+            dict.put( CREATIONDATE, new PdfString( pdfDate(created) ) );
+            dict.put( NM, new PdfString( hex(seed, obj).substring(0, 16) + "-" + obj ) );
+            dict.put( PdfName.F, new PdfNumber(4) );
+            dict.put( PdfName.C, numbers( random.nextInt(5) / 4f,
+                random.nextInt(5) / 4f, random.nextInt(5) / 4f ) );
+
+            float[] rect;
+            StringBuilder ap = new StringBuilder();
+            if ( subtype <= 3 ) { // text markup
+                int n = Math.max( 1, Math.min( LINES, quads ) );
+                int first = random.nextInt( LINES - n + 1 );
+                float[] q = new float[ 8 * n ];
+                float left = MARGIN + random.nextInt(100);
+                rect = new float[] { WIDTH, HEIGHT, 0, 0 };
+                for ( int i = 0; i < n; i++ ) {
+                    float base = HEIGHT - MARGIN - LEADING * ( first + i );
+                    float right = i == n - 1 ? left + 50 + random.nextInt(300)
+                                : WIDTH - MARGIN;
+                    float l = i == 0 ? left : MARGIN;
+                    float top = base + FONT_SIZE, bottom = base - 3;
+                    float[] quad = { l, top, right, top, l, bottom, right, bottom };
+                    System.arraycopy( quad, 0, q, 8 * i, 8 );
+                    extend( rect, l, bottom );
+                    extend( rect, right, top );
+                }
+                for ( int i = 0; i < q.length; i += 8 ) {
+                    ap.append( (int)( q[i] - rect[0] ) ).append(' ')
+                      .append( (int)( q[i+5] - rect[1] ) ).append(' ')
+                      .append( (int)( q[i+2] - q[i] ) ).append(' ')
+                      .append( (int)( q[i+1] - q[i+5] ) ).append(" re f\n");
+                }
+                dict.put( PdfName.QUADPOINTS, numbers(q) );
+                if ( random.nextInt(3) == 0 ) {
+                    dict.put( PdfName.CONTENTS, new PdfString( words( contentLength / 4 ) ) );
+                }
+            } else if ( "Ink".equals(name) ) {
+                int gestures = 1 + random.nextInt(4);
+                PdfArray inklist = new PdfArray();
+                rect = new float[] { WIDTH, HEIGHT, 0, 0 };
+                float x = MARGIN + random.nextInt( (int)( WIDTH - 3 * MARGIN ) );
+                float y = MARGIN + random.nextInt( (int)( HEIGHT - 3 * MARGIN ) );
+                for ( int g = 0; g < gestures; g++ ) {
+                    float[] path = new float[ 2 * Math.max( 2, inkPoints ) ];
+                    for ( int i = 0; i < path.length; i += 2 ) {
+                        x = Math.max( 0, Math.min( WIDTH, x + random.nextInt(7) - 3 ) );
+                        y = Math.max( 0, Math.min( HEIGHT, y + random.nextInt(7) - 3 ) );
+                        path[i] = x;
+                        path[i+1] = y;
+                        extend( rect, x, y );
+                    }
+                    inklist.add( numbers(path) );
+                }
+                rect[0] -= 1; rect[1] -= 1; rect[2] += 1; rect[3] += 1;
+                for ( int g = 0; g < inklist.size(); g++ ) {
+                    PdfArray path = inklist.getAsArray(g);
+                    for ( int i = 0; i < path.size(); i += 2 ) {
+                        ap.append( (int)( path.getAsNumber(i).floatValue() - rect[0] ) ).append(' ')
+                          .append( (int)( path.getAsNumber(i+1).floatValue() - rect[1] ) )
+                          .append( i == 0 ? " m\n" : " l\n" );
+                    }
+                    ap.append("S\n");
+                }
+                dict.put( INKLIST, inklist );
+            } else {
+                float w = "Text".equals(name) ? 20 : 40 + random.nextInt(200);
+                float h = "Text".equals(name) ? 20 : 20 + random.nextInt(100);
+                float x = random.nextInt( (int)( WIDTH - w ) );
+                float y = random.nextInt( (int)( HEIGHT - h ) );
+                rect = new float[] { x, y, x + w, y + h };
+                ap.append("0 0 ").append( (int)w ).append(' ').append( (int)h ).append(" re S\n");
+                if ( "Text".equals(name) ) {
+                    dict.put( PdfName.NAME, new PdfName("Comment") );
+                    dict.put( PdfName.CONTENTS, new PdfString(
+                        words( contentLength / 2 + random.nextInt( contentLength + 1 ) ) ) );
+                } else if ( "Square".equals(name) ) {
+                    dict.put( IC, numbers( 1, 1, random.nextInt(5) / 4f ) );
+                } else {
+                    dict.put( PdfName.CONTENTS, new PdfString( words( contentLength / 2 ) ) );
+                    dict.put( PdfName.DA, new PdfString("/Helv 12 Tf 0 g") );
+                }
+            }
+            dict.put( PdfName.RECT, numbers(rect) );
+
+            if ( appearances == Appearance.SHARED ) {
+                if ( sharedAppearance[subtype] == 0 ) {
+                    sharedAppearance[subtype] = allocate();
+                    form( sharedAppearance[subtype], 100, 100, "0 0 100 100 re f\n" );
+                }
+                dict.put( PdfName.AP, normal( sharedAppearance[subtype] ) );
+            } else if ( appearances == Appearance.OWN ) {
+                int form = allocate();
+                form( form, rect[2] - rect[0], rect[3] - rect[1], ap.toString() );
+                dict.put( PdfName.AP, normal(form) );
+            }
+
+            object( obj, dict );
+        }
+
+        private PdfDictionary normal(int form) {
+            PdfDictionary ap = new PdfDictionary();
+            ap.put( PdfName.N, ref(form) );
+            return ap;
+        }
+
+        /**
+         * Write a form XObject used as appearance stream.
+         */
+        private void form(int obj, float w, float h, String content) throws IOException {
+            PdfDictionary dict = new PdfDictionary(PdfName.XOBJECT);
+            dict.put( PdfName.SUBTYPE, PdfName.FORM );
+            dict.put( PdfName.BBOX, numbers( 0, 0, w, h ) );
+            stream( obj, dict, content.getBytes("ISO-8859-1") );
+        }
+
+        private int pickSubtype() {
+            int r = random.nextInt(mixTotal);
+            int i = 0;
+            while ( r >= mixWeights[i] ) r -= mixWeights[i++];
+            return mixSubtypes[i];
+        }
+
+        private String words(int length) {
+            return words( new StringBuilder(length + 16), length ).toString();
+        }
+
+        private StringBuilder words(StringBuilder s, int length) {
+            int start = s.length();
+            while ( s.length() - start < length ) {
+                if ( s.length() > start ) s.append(' ');
+                s.append( WORDS[ random.nextInt( WORDS.length ) ] );
+            }
+            return s;
+        }
+
+        private int allocate() {
+            if ( size == offsets.length ) {
+                long[] a = new long[ 2 * size ];
+                System.arraycopy( offsets, 0, a, 0, size );
+                offsets = a;
+            }
+            return size++;
+        }
+
+        private void object(int obj, PdfObject value) throws IOException {
+            offsets[obj] = out.count;
+            written.add(obj);
+            write( obj + " 0 obj\n" );
+            value.toPdf( null, out );
+            write("\nendobj\n");
+        }
+
+        /**
+         * Write a Flate compressed stream object.
+         */
+        private void stream(int obj, PdfDictionary dict, byte[] data) throws IOException {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream( data.length / 2 + 64 );
+            deflater.reset();
+            DeflaterOutputStream deflate = new DeflaterOutputStream( compressed, deflater );
+            deflate.write(data);
+            deflate.finish();
+            dict.put( PdfName.FILTER, PdfName.FLATEDECODE );
+            dict.put( PdfName.LENGTH, new PdfNumber( compressed.size() ) );
+            offsets[obj] = out.count;
+            written.add(obj);
+            write( obj + " 0 obj\n" );
+            dict.toPdf( null, out );
+            write("\nstream\n");
+            compressed.writeTo(out);
+            write("\nendstream\nendobj\n");
+        }
+
+        private void write(String s) throws IOException {
+            out.write( s.getBytes("ISO-8859-1") );
+        }
+    }
+
+    private static PdfLiteral ref(int obj) {
+        return new PdfLiteral( obj + " 0 R" );
+    }
+
+    private static PdfArray numbers(float... values) {
+        PdfArray array = new PdfArray();
+        for ( float v : values ) array.add( new PdfNumber(v) );
+        return array;
+    }
+
+    private static void extend(float[] rect, float x, float y) {
+        rect[0] = Math.min( rect[0], x );
+        rect[1] = Math.min( rect[1], y );
+        rect[2] = Math.max( rect[2], x );
+        rect[3] = Math.max( rect[3], y );
+    }
+
+    /**
+     * Format a time as PDF date in UTC.
+     */
+    static String pdfDate(long time) {
+        Calendar c = Calendar.getInstance( TimeZone.getTimeZone("UTC"), Locale.ROOT );
+        c.setTimeInMillis(time);
+        return String.format( Locale.ROOT, "D:%04d%02d%02d%02d%02d%02dZ",
+            c.get(Calendar.YEAR), c.get(Calendar.MONTH) + 1, c.get(Calendar.DAY_OF_MONTH),
+            c.get(Calendar.HOUR_OF_DAY), c.get(Calendar.MINUTE), c.get(Calendar.SECOND) );
+    }
+
+    /**
+     * 32 hex digits derived from a seed and a number, used for file
+     * identifiers and annotation names.
+     */
+    private static String hex(long seed, long n) {
+        Random r = new Random( seed * 31 + n );
+        return String.format( Locale.ROOT, "%016x%016x", r.nextLong(), r.nextLong() );
+    }
+
+    private static void printUsage() {
+        System.err.println("usage: java -cp marginalia.jar de.gbv.marginalia.CorpusGenerator");
+        System.err.println("           [--seed N] [--count N] [--size MB] [--pages N] [--density N]");
+        System.err.println("           [--mix highlight:4,text:3,ink:2,square:1] [--ink-points N]");
+        System.err.println("           [--quads N] [--content-length N] [--authors N]");
+        System.err.println("           [--revisions N] [--appearances none|own|shared] DIR");
+    }
+
+    public static void main(String[] args) {
+        CmdLineParser parser = new CmdLineParser();
+        CmdLineParser.Option seedOption = parser.addLongOption("seed");
+        CmdLineParser.Option countOption = parser.addIntegerOption('n', "count");
+        CmdLineParser.Option sizeOption = parser.addIntegerOption("size");
+        CmdLineParser.Option pagesOption = parser.addIntegerOption('p', "pages");
+        CmdLineParser.Option densityOption = parser.addIntegerOption('d', "density");
+        CmdLineParser.Option mixOption = parser.addStringOption('m', "mix");
+        CmdLineParser.Option inkPointsOption = parser.addIntegerOption("ink-points");
+        CmdLineParser.Option quadsOption = parser.addIntegerOption("quads");
+        CmdLineParser.Option contentLengthOption = parser.addIntegerOption("content-length");
+        CmdLineParser.Option authorsOption = parser.addIntegerOption("authors");
+        CmdLineParser.Option revisionsOption = parser.addIntegerOption('r', "revisions");
+        CmdLineParser.Option appearancesOption = parser.addStringOption("appearances");
+        try {
+            parser.parse(args);
+        } catch ( CmdLineParser.OptionException e ) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(2);
+        }
+        String[] dirs = parser.getRemainingArgs();
+        if ( dirs.length != 1 ) {
+            printUsage();
+            System.exit(2);
+        }
+
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.pages = Math.max( 1, (Integer)parser.getOptionValue(pagesOption, generator.pages) );
+        generator.density = Math.max( 0, (Integer)parser.getOptionValue(densityOption, generator.density) );
+        generator.inkPoints = (Integer)parser.getOptionValue(inkPointsOption, generator.inkPoints);
+        generator.quads = (Integer)parser.getOptionValue(quadsOption, generator.quads);
+        generator.contentLength = (Integer)parser.getOptionValue(contentLengthOption, generator.contentLength);
+        generator.authors = (Integer)parser.getOptionValue(authorsOption, generator.authors);
+        generator.revisions = Math.max( 0, (Integer)parser.getOptionValue(revisionsOption, 0) );
+        try {
+            String mix = (String)parser.getOptionValue(mixOption);
+            if ( mix != null ) generator.setMix(mix);
+            String appearances = (String)parser.getOptionValue(appearancesOption);
+            if ( appearances != null ) {
+                generator.appearances = Appearance.valueOf( appearances.toUpperCase(Locale.ROOT) );
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(2);
+        }
+        long seed = (Long)parser.getOptionValue(seedOption, 0L);
+        Integer size = (Integer)parser.getOptionValue(sizeOption);
+        int count = (Integer)parser.getOptionValue(countOption,
+            size == null ? 1 : Integer.MAX_VALUE);
+
+        try {
+            List<File> files = generator.generate( new File(dirs[0]), seed, count,
+                size == null ? 0 : size.longValue() * 1024 * 1024 );
+            for ( File file : files ) System.out.println(file.getPath());
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
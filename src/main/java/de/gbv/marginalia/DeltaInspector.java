@@ -0,0 +1,164 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+
+import org.xml.sax.SAXException;
+import de.gbv.xml.SimpleXMLWriter;
+import de.gbv.xml.SimpleXMLCreator;
+
+/**
+ * Reports the annotations that have been added, changed or deleted by the
+ * newest incremental updates of a PDF file.
+ *
+ * The cross-reference sections of the updates are read with
+ * {@link XrefChain}. Only the objects listed there are loaded, with an
+ * {@link ObjectLoader} at the offsets given by these sections, so neither
+ * the cross-reference sections of older revisions nor the page tree are
+ * read. Page numbers are found by walking up the page tree from the page
+ * of each annotation. A partial reader is only opened to find the text of
+ * markup annotations. The base
+ * revision is either given by number of updates to report or by the offset
+ * of its cross-reference section, which is written with each delta and can
+ * be stored as fingerprint for the next run.
+ *
+ * Objects in the base revision that are freed by an update are reported as
+ * deleted if their old definition is an annotation dictionary. Old
+ * definitions in object streams cannot be checked without decoding the
+ * stream, so such deletions are not reported.
+ */
+public class DeltaInspector {
+
+    /**
+     * Inspect the changes of a PDF file and write them to a writer.
+     * @param writer Writer to a text file
+     * @param filename Path to the PDF file
+     * @param options Options with {@link Options#delta} or {@link Options#since}
+     */
+    public void inspect(PrintWriter writer, String filename, Options options)
+        throws IOException, SAXException {
+        writer.flush();
+        inspect( new SimpleXMLWriter(writer), filename, options );
+    }
+
+    /**
+     * Inspect the changes of a PDF file and write them as UTF-8 to a stream.
+     * @param out Stream to write to, is flushed but not closed
+     * @param filename Path to the PDF file
+     * @param options Options with {@link Options#delta} or {@link Options#since}
+     */
+    public void inspect(OutputStream out, String filename, Options options)
+        throws IOException, SAXException {
+        inspect( new SimpleXMLWriter(out), filename, options );
+    }
+
+    private void inspect(SimpleXMLWriter xmlhandler, String filename, Options options)
+        throws IOException, SAXException {
+        File file = new File(filename);
+        XrefChain chain = new XrefChain(file);
+        PdfReader reader = null;
+        try {
+            List<XrefChain.Revision> revisions = chain.getRevisions();
+
+            int base;
+            if ( options.since >= 0 ) {
+                base = chain.indexOf( options.since );
+                if ( base < 0 ) {
+                    throw new IOException("no revision at offset " + options.since + " in " + filename);
+                }
+            } else {
+                base = Math.min( options.delta, revisions.size() );
+            }
+
+            Map<Integer,XrefChain.Entry> entries = chain.getEntriesSince(base);
+            List<Integer> objects = new ArrayList<Integer>( entries.keySet() );
+            Collections.sort(objects);
+
+            xmlhandler.startDocument();
+            SimpleXMLCreator xml = new SimpleXMLCreator( xmlhandler, Annotation.namespaces, true );
+            xml.startElement("annots");
+
+            xml.attr("offset", String.valueOf( revisions.get(0).offset ));
+            if ( base < revisions.size() ) {
+                xml.attr("since", String.valueOf( revisions.get(base).offset ));
+            }
+            xml.attr("updates", base);
+            xml.emptyElement("m","revision");
+
+            ObjectLoader loader = new ObjectLoader(chain);
+            TextResolver resolver = null;
+            AnnotationFilter filter = options.filter;
+            for ( Integer object : objects ) {
+                XrefChain.Entry entry = entries.get(object);
+                XrefChain.Entry old = base < revisions.size()
+                                    ? chain.getEntry(base, object) : null;
+                boolean existed = old != null && old.type != XrefChain.FREE;
+
+                if ( entry.type == XrefChain.FREE ) {
+                    if ( !existed || old.type != XrefChain.IN_USE ) continue;
+                    PdfObject definition = loader.parse( old.offset );
+                    if ( definition == null || !definition.isDictionary()
+                         || !isAnnotation( (PdfDictionary)definition ) ) continue;
+                    xml.attr("type", "deleted");
+                    xml.attr("object", object.intValue());
+                    xml.emptyElement("m","change");
+                    continue;
+                }
+
+                PdfObject obj = loader.load( object.intValue() );
+                if ( obj == null || !obj.isDictionary() ) continue;
+                if ( !isAnnotation( (PdfDictionary)obj ) ) continue;
+                PdfDictionary dict = (PdfDictionary)loader.resolve(obj);
+                if ( filter != null && !filter.accepts(dict) ) continue;
+
+                int pageNum = loader.pageNumber( dict.get(PdfName.P) );
+                if ( filter != null && !filter.acceptsPage(pageNum) ) continue;
+
+                xml.attr("type", existed ? "changed" : "added");
+                xml.attr("object", object.intValue());
+                xml.startElement("m","change");
+                Annotation a = new Annotation( dict, pageNum );
+                if ( options.text && TextResolver.isMarkup(a) ) {
+                    if ( resolver == null ) {
+                        reader = Marginalia.openReader(filename, true);
+                        resolver = new TextResolver(reader);
+                    }
+                    resolver.resolve(a);
+                }
+                a.serializeXML( xml );
+                xml.endElement();
+            }
+
+            xml.endAll();
+        } finally {
+            chain.close();
+            if ( reader != null ) reader.close();
+        }
+    }
+
+    /**
+     * Check whether a dictionary is an annotation.
+     */
+    static boolean isAnnotation(PdfDictionary dict) {
+        PdfObject type = dict.get(PdfName.TYPE);
+        if ( type instanceof PdfName ) return PdfName.ANNOT.equals(type);
+        return dict.get(PdfName.SUBTYPE) != null && dict.get(PdfName.RECT) != null;
+    }
+}
@@ -0,0 +1,480 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.itextpdf.text.pdf.PdfReader;
+
+/**
+ * A local HTTP server that inspects PDF files, so JVM startup, class
+ * loading and JIT compilation are paid once instead of per document.
+ *
+ * <pre>
+ * POST /inspect           the request body is the PDF file
+ * GET  /inspect?path=...  a PDF file on the local file system
+ * GET  /status            returns "ok"
+ * GET  /metrics           summary of {@link Metrics} in JSON, if enabled
+ * </pre>
+ *
+ * The query parameters <code>format</code>, <code>stream</code>,
+ * <code>text</code>, <code>values</code> and <code>replies</code> override
+ * the options of the server for one request.
+ * The parameters <code>pages</code>, <code>subtypes</code>,
+ * <code>authors</code>, <code>after</code> and <code>before</code> replace
+ * the {@link AnnotationFilter} of the server.
+ * Requests are handled by a fixed pool of workers with a bounded queue.
+ * If the queue is full, connections are answered with status 503 at once.
+ * Each worker reuses its response buffer. Connections are kept alive
+ * unless other connections are waiting for a worker. A worker waiting for
+ * the next request of an idle connection closes it as soon as another
+ * connection is queued.
+ *
+ * The server only implements the parts of HTTP/1.1 needed for this: request
+ * bodies must have a Content-Length and responses are not chunked. It binds
+ * to the loopback interface by default, because it reads any file the
+ * process may read.
+ */
+public class ExtractionServer {
+    private final ServerSocket server;
+    private final ThreadPoolExecutor workers;
+    private final Options options;
+    private volatile boolean running = true;
+
+    /** Maximum size of a request body */
+    public static final int MAX_BODY = 256 * 1024 * 1024;
+
+    /** Time in milliseconds an idle connection is kept open */
+    private static final int IDLE_TIMEOUT = 5000;
+
+    /** Time in milliseconds after which an idle connection checks the queue */
+    private static final int IDLE_POLL = 50;
+
+    /** Response buffer of each worker */
+    private static final ThreadLocal<ByteArrayOutputStream> BUFFER =
+        new ThreadLocal<ByteArrayOutputStream>() {
+            protected ByteArrayOutputStream initialValue() {
+                return new ByteArrayOutputStream(65536);
+            }
+        };
+
+    /**
+     * Bind a server to a port of the loopback interface.
+     * @param port Port number, or 0 for any free port
+     * @param threads Number of worker threads, or 0 for one per processor
+     * @param queue Number of connections that may wait for a worker
+     * @param options Default options for inspection
+     */
+    public ExtractionServer(int port, int threads, int queue, Options options)
+      throws IOException {
+        this( new InetSocketAddress( InetAddress.getByName("127.0.0.1"), port ),
+              threads, queue, options );
+    }
+
+    public ExtractionServer(InetSocketAddress address, int threads, int queue,
+                            Options options) throws IOException {
+        if ( threads <= 0 ) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.options = options;
+        this.server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(address);
+        this.workers = new ThreadPoolExecutor( threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>( Math.max(1, queue) ) );
+    }
+
+    /**
+     * Get the port the server is bound to.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Accept connections in a background thread.
+     */
+    public void start() {
+        Thread acceptor = new Thread( new Runnable() {
+            public void run() {
+                serve();
+            }
+        }, "marginalia-accept" );
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Accept connections until the server is stopped.
+     */
+    public void serve() {
+        while ( running ) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                if ( running ) System.err.println("accept: " + e);
+                continue;
+            }
+            try {
+                workers.execute( new Runnable() {
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    respond( out, 503, "text/plain", bytes("busy\n"), false );
+                } catch (IOException ex) {
+                    // client is gone
+                }
+                close(socket);
+            }
+        }
+    }
+
+    /**
+     * Stop accepting connections and stop the workers.
+     */
+    public void stop() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        workers.shutdownNow();
+    }
+
+    /**
+     * Handle the requests of a connection.
+     */
+    private void handle(Socket socket) {
+        try {
+            socket.setSoTimeout(IDLE_TIMEOUT);
+            InputStream in = new BufferedInputStream( socket.getInputStream() );
+            OutputStream out = new BufferedOutputStream( socket.getOutputStream() );
+            boolean keepAlive = true;
+            while ( keepAlive && running && awaitRequest(socket, in) ) {
+                String requestLine = readLine(in);
+                if ( requestLine == null ) break;
+                if ( requestLine.length() == 0 ) continue;
+
+                Map<String,String> headers = new HashMap<String,String>();
+                String line;
+                while ( (line = readLine(in)) != null && line.length() > 0 ) {
+                    int colon = line.indexOf(':');
+                    if ( colon > 0 ) {
+                        headers.put( line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                                     line.substring(colon + 1).trim() );
+                    }
+                }
+
+                String[] parts = requestLine.split(" ");
+                String version = parts.length > 2 ? parts[2] : "HTTP/1.0";
+                String connection = headers.get("connection");
+                keepAlive = version.equals("HTTP/1.1")
+                    ? !"close".equalsIgnoreCase(connection)
+                    : "keep-alive".equalsIgnoreCase(connection);
+                // give other connections a chance if workers are busy
+                if ( !workers.getQueue().isEmpty() ) keepAlive = false;
+
+                if ( parts.length < 2 ) {
+                    respond( out, 400, "text/plain", bytes("bad request\n"), false );
+                    break;
+                }
+
+                byte[] body = null;
+                String length = headers.get("content-length");
+                if ( length != null ) {
+                    int n;
+                    try {
+                        n = Integer.parseInt(length);
+                    } catch (NumberFormatException e) {
+                        n = -1;
+                    }
+                    if ( n < 0 || n > MAX_BODY ) {
+                        respond( out, 413, "text/plain", bytes("request too large\n"), false );
+                        break;
+                    }
+                    body = new byte[n];
+                    int read = 0;
+                    while ( read < n ) {
+                        int r = in.read( body, read, n - read );
+                        if ( r < 0 ) throw new IOException("unexpected end of request");
+                        read += r;
+                    }
+                } else if ( headers.containsKey("transfer-encoding") ) {
+                    respond( out, 411, "text/plain", bytes("length required\n"), false );
+                    break;
+                }
+
+                request( parts[0], parts[1], body, out, keepAlive );
+            }
+        } catch (SocketTimeoutException e) {
+            // idle connection
+        } catch (SocketException e) {
+            // client is gone
+        } catch (IOException e) {
+            System.err.println("connection: " + e);
+        } finally {
+            close(socket);
+        }
+    }
+
+    /**
+     * Wait for the next request of a connection. The worker is released
+     * as soon as other connections are waiting, so idle connections do not
+     * hold it for the whole idle timeout.
+     * @return false if the connection should be closed
+     */
+    private boolean awaitRequest(Socket socket, InputStream in) throws IOException {
+        long deadline = System.currentTimeMillis() + IDLE_TIMEOUT;
+        socket.setSoTimeout(IDLE_POLL);
+        try {
+            while ( true ) {
+                try {
+                    in.mark(1);
+                    if ( in.read() < 0 ) return false;
+                    in.reset();
+                    return true;
+                } catch (SocketTimeoutException e) {
+                    if ( !workers.getQueue().isEmpty()
+                         || System.currentTimeMillis() >= deadline ) {
+                        return false;
+                    }
+                }
+            }
+        } finally {
+            socket.setSoTimeout(IDLE_TIMEOUT);
+        }
+    }
+
+    /**
+     * Handle a single request.
+     */
+    private void request(String method, String target, byte[] body, OutputStream out,
+                         boolean keepAlive) throws IOException {
+        String path = target;
+        Map<String,String> query = new HashMap<String,String>();
+        int q = target.indexOf('?');
+        if ( q >= 0 ) {
+            path = target.substring(0, q);
+            for ( String pair : target.substring(q + 1).split("&") ) {
+                int eq = pair.indexOf('=');
+                String key = eq < 0 ? pair : pair.substring(0, eq);
+                String value = eq < 0 ? "" : pair.substring(eq + 1);
+                query.put( decode(key), decode(value) );
+            }
+        }
+
+        if ( path.equals("/status") ) {
+            respond( out, 200, "text/plain", bytes("ok\n"), keepAlive );
+            return;
+        }
+        if ( path.equals("/metrics") && options.metrics != null ) {
+            String summary = options.metrics.appendSummary( new StringBuilder(4096),
+                flag( query.containsKey("files") ? query.get("files") : "0" ) ).append('\n').toString();
+            respond( out, 200, "application/json; charset=UTF-8", bytes(summary), keepAlive );
+            return;
+        }
+        if ( !path.equals("/inspect") ) {
+            respond( out, 404, "text/plain", bytes("not found\n"), keepAlive );
+            return;
+        }
+
+        Options opts;
+        try {
+            opts = requestOptions(query);
+        } catch (IllegalArgumentException e) {
+            respond( out, 400, "text/plain", bytes( e.getMessage() + "\n" ), keepAlive );
+            return;
+        }
+
+        ByteArrayOutputStream buffer = BUFFER.get();
+        buffer.reset();
+        try {
+            if ( method.equals("POST") && body != null ) {
+                String name = query.containsKey("name") ? query.get("name") : "upload.pdf";
+                long time = System.nanoTime();
+                boolean ok = false;
+                try {
+                    PdfReader reader = new PdfReader(body);
+                    if ( opts.metrics != null ) {
+                        opts.metrics.record( Metrics.Phase.OPEN, System.nanoTime() - time );
+                    }
+                    try {
+                        Marginalia.render(buffer, reader, name, opts);
+                        ok = true;
+                    } finally {
+                        reader.close();
+                    }
+                } finally {
+                    if ( opts.metrics != null ) {
+                        opts.metrics.file( name, System.nanoTime() - time, buffer.size(), ok );
+                    }
+                }
+            } else if ( method.equals("GET") && query.containsKey("path") ) {
+                Marginalia.export(buffer, query.get("path"), opts);
+            } else {
+                respond( out, 400, "text/plain",
+                    bytes("POST a PDF file or GET with path parameter\n"), keepAlive );
+                return;
+            }
+        } catch (Exception e) {
+            respond( out, 422, "text/plain", bytes( e + "\n" ), keepAlive );
+            return;
+        }
+
+        String type = opts.format == Options.Format.XML ? "application/xml; charset=UTF-8"
+                    : opts.format == Options.Format.JSONL ? "application/x-ndjson; charset=UTF-8"
+                    : opts.format == Options.Format.SVG ? "image/svg+xml"
+                    : "application/octet-stream";
+        respond( out, 200, type, buffer, keepAlive );
+    }
+
+    /**
+     * Get the options of a request, based on the options of the server.
+     */
+    private Options requestOptions(Map<String,String> query) {
+        Options opts = new Options();
+        opts.format = options.format;
+        opts.stream = options.stream;
+        opts.partial = options.partial;
+        opts.text = options.text;
+        opts.values = options.values;
+        opts.replies = options.replies;
+        opts.cache = options.cache;
+        opts.metrics = options.metrics;
+        opts.filter = options.filter;
+        String format = query.get("format");
+        if ( format != null ) {
+            try {
+                opts.format = Options.Format.valueOf( format.toUpperCase(Locale.ROOT) );
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown format: " + format);
+            }
+        }
+        if ( query.containsKey("stream") ) opts.stream = flag( query.get("stream") );
+        if ( query.containsKey("text") ) opts.text = flag( query.get("text") );
+        if ( query.containsKey("values") ) opts.values = flag( query.get("values") );
+        if ( query.containsKey("replies") ) opts.replies = flag( query.get("replies") );
+        if ( query.containsKey("pages") || query.containsKey("subtypes") || query.containsKey("authors")
+             || query.containsKey("after") || query.containsKey("before") ) {
+            AnnotationFilter filter = new AnnotationFilter();
+            if ( query.containsKey("pages") ) filter.setPages( query.get("pages") );
+            if ( query.containsKey("subtypes") ) filter.setSubtypes( query.get("subtypes") );
+            if ( query.containsKey("authors") ) filter.setAuthors( query.get("authors") );
+            filter.setDates( query.get("after"), query.get("before") );
+            opts.filter = filter;
+        }
+        return opts;
+    }
+
+    private static boolean flag(String value) {
+        return !( value.equals("0") || value.equalsIgnoreCase("false") );
+    }
+
+    private static void respond(OutputStream out, int status, String type,
+                                byte[] body, boolean keepAlive) throws IOException {
+        header( out, status, type, body.length, keepAlive );
+        out.write(body);
+        out.flush();
+    }
+
+    private static void respond(OutputStream out, int status, String type,
+                                ByteArrayOutputStream body, boolean keepAlive) throws IOException {
+        header( out, status, type, body.size(), keepAlive );
+        body.writeTo(out);
+        out.flush();
+    }
+
+    private static void header(OutputStream out, int status, String type,
+                               int length, boolean keepAlive) throws IOException {
+        StringBuilder s = new StringBuilder(128);
+        s.append("HTTP/1.1 ").append(status).append(' ').append( reason(status) ).append("\r\n");
+        s.append("Content-Type: ").append(type).append("\r\n");
+        s.append("Content-Length: ").append(length).append("\r\n");
+        s.append("Connection: ").append( keepAlive ? "keep-alive" : "close" ).append("\r\n");
+        s.append("\r\n");
+        out.write( s.toString().getBytes("ISO-8859-1") );
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 411: return "Length Required";
+            case 413: return "Request Entity Too Large";
+            case 422: return "Unprocessable Entity";
+            case 503: return "Service Unavailable";
+            default: return "Error";
+        }
+    }
+
+    /**
+     * Read a line terminated by LF or CRLF, or null at the end of the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder s = new StringBuilder(64);
+        int c;
+        while ( (c = in.read()) >= 0 ) {
+            if ( c == '\n' ) break;
+            if ( c != '\r' ) s.append( (char)c );
+            if ( s.length() > 8192 ) throw new IOException("line too long");
+        }
+        if ( c < 0 && s.length() == 0 ) return null;
+        return s.toString();
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfIndirectReference;
+import com.itextpdf.text.pdf.PdfLiteral;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfString;
+
+/**
+ * An incremental update of a PDF file.
+ *
+ * Objects are serialized when they are added, so the update does not keep
+ * any objects of the reader. They are either buffered, or written directly
+ * to the end of the file, so memory use does not grow with the number of
+ * objects. The update is appended to the end of the original file, which is not
+ * modified otherwise: a cross-reference section with a <code>/Prev</code>
+ * link to the last section of the original file lists the new and changed
+ * objects. Files with cross-reference streams get a cross-reference stream,
+ * other files a cross-reference table.
+ *
+ * References to objects of the original file are written as they are read,
+ * so they stay valid. Encrypted files are not supported.
+ */
+public class IncrementalUpdate {
+    private final PdfDictionary trailer;
+    private final long prev;
+    private final boolean xrefStream;
+    private int size;
+
+    /** Buffer of the objects, or null if they are written to a file */
+    private final ByteArrayOutputStream buffer;
+    /** Stream of the file, or null if the objects are buffered */
+    private final OutputStream out;
+    /** Offset of the first object in the file, if written to a file */
+    private final long start;
+    private final CountingOutputStream body;
+    private final MessageDigest digest;
+
+    /** Entries by object number, offsets relative to the body */
+    private final TreeMap<Integer,XrefChain.Entry> entries = new TreeMap<Integer,XrefChain.Entry>();
+
+    /**
+     * Start an update of the file opened by a reader. Objects are buffered
+     * until the update is written with {@link #write} or {@link #appendTo}.
+     * The reader is only used to read the trailer and may be closed before
+     * the update is written.
+     */
+    public IncrementalUpdate(PdfReader reader) throws IOException {
+        this(reader, null, 0);
+    }
+
+    /**
+     * Start an update that is written directly to the end of a file.
+     * {@link #finish} must be called after the last object.
+     * @param out Stream that appends to the file, is not closed
+     * @param length Length of the file before the update
+     */
+    public IncrementalUpdate(PdfReader reader, OutputStream out, long length) throws IOException {
+        if ( reader.isEncrypted() ) {
+            throw new IOException("encrypted files cannot be updated");
+        }
+        this.trailer = reader.getTrailer();
+        this.prev = reader.getLastXref();
+        this.size = reader.getXrefSize();
+        this.xrefStream = PdfName.XREF.equals( trailer.getAsName(PdfName.TYPE) );
+        try {
+            this.digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        this.out = out;
+        if ( out == null ) {
+            this.buffer = new ByteArrayOutputStream();
+            this.start = 0;
+            this.body = new CountingOutputStream( new DigestOutputStream( buffer, digest ) );
+        } else {
+            this.buffer = null;
+            // the original may not end with a line break
+            out.write('\n');
+            this.start = length + 1;
+            this.body = new CountingOutputStream( new DigestOutputStream( out, digest ) );
+        }
+    }
+
+    /**
+     * Whether no objects have been added, changed or freed.
+     */
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Add a new object.
+     * @return the number of the new object, with generation 0
+     */
+    public int add(PdfObject obj) throws IOException {
+        int number = size;
+        put(number, 0, obj);
+        return number;
+    }
+
+    /**
+     * Add or replace an object.
+     */
+    public void put(int number, int generation, PdfObject obj) throws IOException {
+        entries.put( number, new XrefChain.Entry( XrefChain.IN_USE, body.count, generation ) );
+        ascii( body, number + " " + generation + " obj\n" );
+        write( obj, body );
+        ascii( body, "\nendobj\n" );
+        if ( number >= size ) size = number + 1;
+    }
+
+    /**
+     * Mark an object as free. The generation is increased, so a later
+     * object with the same number must use the next generation.
+     */
+    public void free(int number, int generation) {
+        entries.put( number, new XrefChain.Entry( XrefChain.FREE, 0,
+            generation < 65535 ? generation + 1 : generation ) );
+    }
+
+    /**
+     * Append the update to a file in place.
+     */
+    public void appendTo(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long base = raf.length();
+            ByteArrayOutputStream update = new ByteArrayOutputStream( buffer.size() + 1024 );
+            write(update, base);
+            raf.seek(base);
+            raf.write( update.toByteArray() );
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Write a buffered update.
+     * @param out Stream to write to, is not closed
+     * @param base Byte offset in the file where the update starts, which
+     *        is the length of the original file
+     */
+    public void write(OutputStream out, long base) throws IOException {
+        if ( buffer == null ) {
+            throw new IllegalStateException("update is written to a file");
+        }
+        // the original may not end with a line break
+        out.write('\n');
+        buffer.writeTo(out);
+        writeSection( out, base + 1 );
+    }
+
+    /**
+     * Write the cross-reference section of an update that is written
+     * directly to a file, and flush the stream.
+     */
+    public void finish() throws IOException {
+        if ( out == null ) {
+            throw new IllegalStateException("update is buffered");
+        }
+        writeSection( out, start );
+        out.flush();
+    }
+
+    /**
+     * Write the cross-reference section and trailer after the objects.
+     * @param base Byte offset of the first object in the file
+     */
+    private void writeSection(OutputStream out, long base) throws IOException {
+        long xref = base + body.count;
+
+        PdfDictionary tail = new PdfDictionary();
+        // PdfNumber has no long constructor, a float would round offsets above 16 MB
+        tail.put( PdfName.PREV, new PdfLiteral( Long.toString(prev) ) );
+        copy( PdfName.ROOT, tail );
+        copy( PdfName.INFO, tail );
+        PdfArray id = trailer.getAsArray(PdfName.ID);
+        if ( id != null && id.size() > 0 ) {
+            PdfArray newId = new PdfArray();
+            newId.add( id.getPdfObject(0) );
+            newId.add( new PdfString( updateId( id.getAsString(0) ) ).setHexWriting(true) );
+            tail.put( PdfName.ID, newId );
+        }
+
+        ByteArrayOutputStream section = new ByteArrayOutputStream(1024);
+        if ( xrefStream ) {
+            writeXrefStream( section, base, xref, tail );
+        } else {
+            writeXrefTable( section, base, tail );
+        }
+        ascii( section, "startxref\n" + xref + "\n%%EOF\n" );
+        section.writeTo(out);
+    }
+
+    private void writeXrefTable(OutputStream out, long base, PdfDictionary tail) throws IOException {
+        StringBuilder s = new StringBuilder( 64 + 20 * entries.size() );
+        s.append("xref\n");
+        Iterator<Map.Entry<Integer,XrefChain.Entry>> it = entries.entrySet().iterator();
+        Map.Entry<Integer,XrefChain.Entry> e = it.hasNext() ? it.next() : null;
+        while ( e != null ) {
+            // subsection of consecutive object numbers
+            int first = e.getKey();
+            int count = 0;
+            StringBuilder lines = new StringBuilder();
+            while ( e != null && e.getKey() == first + count ) {
+                XrefChain.Entry entry = e.getValue();
+                boolean free = entry.type == XrefChain.FREE;
+                pad( lines, free ? 0 : base + entry.offset, 10 ).append(' ');
+                pad( lines, entry.generation, 5 ).append( free ? " f \n" : " n \n" );
+                count++;
+                e = it.hasNext() ? it.next() : null;
+            }
+            s.append(first).append(' ').append(count).append('\n').append(lines);
+        }
+        s.append("trailer\n");
+        ascii( out, s.toString() );
+        tail.put( PdfName.SIZE, new PdfNumber(size) );
+        write( tail, out );
+        ascii( out, "\n" );
+    }
+
+    private void writeXrefStream(OutputStream out, long base, long xref, PdfDictionary tail)
+        throws IOException {
+        // the stream lists itself
+        int number = size;
+        TreeMap<Integer,XrefChain.Entry> all = new TreeMap<Integer,XrefChain.Entry>(entries);
+        all.put( number, new XrefChain.Entry( XrefChain.IN_USE, xref - base, 0 ) );
+
+        int width = 1;
+        while ( width < 8 && ( xref >>> (8 * width) ) != 0 ) width++;
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream( all.size() * (width + 3) );
+        PdfArray index = new PdfArray();
+        int first = -1, count = 0;
+        for ( Map.Entry<Integer,XrefChain.Entry> e : all.entrySet() ) {
+            if ( e.getKey() != first + count ) {
+                if ( count > 0 ) addRange( index, first, count );
+                first = e.getKey();
+                count = 0;
+            }
+            XrefChain.Entry entry = e.getValue();
+            boolean free = entry.type == XrefChain.FREE;
+            data.write( free ? 0 : 1 );
+            field( data, free ? 0 : base + entry.offset, width );
+            field( data, entry.generation, 2 );
+            count++;
+        }
+        addRange( index, first, count );
+
+        tail.put( PdfName.TYPE, PdfName.XREF );
+        tail.put( PdfName.SIZE, new PdfNumber( number + 1 ) );
+        PdfArray w = new PdfArray();
+        w.add( new PdfNumber(1) );
+        w.add( new PdfNumber(width) );
+        w.add( new PdfNumber(2) );
+        tail.put( PdfName.W, w );
+        tail.put( PdfName.INDEX, index );
+        tail.put( PdfName.LENGTH, new PdfNumber( data.size() ) );
+
+        ascii( out, number + " 0 obj\n" );
+        write( tail, out );
+        ascii( out, "\nstream\n" );
+        data.writeTo(out);
+        ascii( out, "\nendstream\nendobj\n" );
+    }
+
+    private void copy(PdfName key, PdfDictionary tail) {
+        PdfObject value = trailer.get(key);
+        if ( value != null ) tail.put( key, value );
+    }
+
+    /**
+     * Derive the second file identifier from the first one and the content
+     * of the update, as it must differ from the identifier of the original.
+     */
+    private byte[] updateId(PdfString original) {
+        try {
+            MessageDigest md5 = (MessageDigest)digest.clone();
+            if ( original != null ) md5.update( original.getOriginalBytes() );
+            return md5.digest();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Serialize a direct object. Indirect references are written with the
+     * object number and generation of the original file.
+     */
+    static void write(PdfObject obj, OutputStream out) throws IOException {
+        if ( obj == null ) {
+            ascii( out, "null" );
+        } else if ( obj instanceof PdfIndirectReference ) {
+            PdfIndirectReference ref = (PdfIndirectReference)obj;
+            ascii( out, ref.getNumber() + " " + ref.getGeneration() + " R" );
+        } else if ( obj.isDictionary() || obj.isStream() ) {
+            PdfDictionary dict = (PdfDictionary)obj;
+            byte[] bytes = null;
+            if ( obj.isStream() ) {
+                bytes = obj.getBytes();
+                if ( bytes == null ) {
+                    throw new IllegalArgumentException("streams of the original file cannot be copied");
+                }
+            }
+            ascii( out, "<<" );
+            for ( PdfName key : dict.getKeys() ) {
+                if ( bytes != null && PdfName.LENGTH.equals(key) ) continue;
+                key.toPdf( null, out );
+                out.write(' ');
+                write( dict.get(key), out );
+            }
+            if ( bytes != null ) ascii( out, "/Length " + bytes.length );
+            ascii( out, ">>" );
+            if ( bytes != null ) {
+                ascii( out, "\nstream\n" );
+                out.write(bytes);
+                ascii( out, "\nendstream" );
+            }
+        } else if ( obj.isArray() ) {
+            out.write('[');
+            boolean first = true;
+            for ( PdfObject item : ((PdfArray)obj).getArrayList() ) {
+                if ( !first ) out.write(' ');
+                write( item, out );
+                first = false;
+            }
+            out.write(']');
+        } else {
+            obj.toPdf( null, out );
+        }
+    }
+
+    private static void addRange(PdfArray index, int first, int count) {
+        index.add( new PdfNumber(first) );
+        index.add( new PdfNumber(count) );
+    }
+
+    private static void field(OutputStream out, long value, int width) throws IOException {
+        for ( int i = width - 1; i >= 0; i-- ) {
+            out.write( (int)( value >>> (8 * i) ) & 0xff );
+        }
+    }
+
+    private static StringBuilder pad(StringBuilder s, long value, int width) {
+        String digits = Long.toString(value);
+        for ( int i = digits.length(); i < width; i++ ) s.append('0');
+        return s.append(digits);
+    }
+
+    private static void ascii(OutputStream out, String s) throws IOException {
+        out.write( s.getBytes("ISO-8859-1") );
+    }
+}
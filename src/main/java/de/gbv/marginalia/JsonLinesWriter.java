@@ -0,0 +1,186 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfRectangle;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfString;
+
+import de.gbv.xml.FloatFormat;
+
+/**
+ * Writes one JSON object per annotation and line (JSON Lines).
+ *
+ * Each line contains the file name, the page number, rotation and media
+ * box of the page, the type of annotation (the XFDF element name) and the
+ * same attributes as the XML output. Rectangle, quad points and ink
+ * gestures are written as arrays of numbers instead of strings, with
+ * <code>null</code> for values out of the range of floats, as JSON has no
+ * NaN or Infinity. Each line is flushed when it is complete.
+ */
+public class JsonLinesWriter implements AnnotationVisitor {
+    private final Writer writer;
+    private final String filename;
+    private final StringBuilder line = new StringBuilder(256);
+
+    private int rotate;
+    private float[] mediabox = new float[4];
+
+    public JsonLinesWriter(Writer writer, String filename) {
+        this.writer = writer;
+        this.filename = filename;
+    }
+
+    public void page(PdfReader reader, int pageNum) {
+        rotate = reader.getPageRotation(pageNum);
+        Rectangle box = reader.getPageSize(pageNum);
+        mediabox[0] = box.getLeft();
+        mediabox[1] = box.getBottom();
+        mediabox[2] = box.getRight();
+        mediabox[3] = box.getTop();
+    }
+
+    public void annotation(Annotation a) throws IOException {
+        PdfDictionary dict = a.getDictionary();
+        line.setLength(0);
+        line.append('{');
+        key("file");
+        string(filename);
+        line.append(',');
+        key("page");
+        line.append( a.getPageNumber() );
+        line.append(',');
+        key("rotate");
+        line.append(rotate);
+        line.append(',');
+        key("mediabox");
+        numbers( mediabox, 0, 4 );
+        line.append(',');
+        key("type");
+        string( a.getSubtypeName() );
+
+        Annotation.Plan plan = Annotation.getPlan( a.getSubtype() );
+        for ( int i = 0; i < plan.fields.length; i++ ) {
+            Annotation.Field f = plan.fields[i];
+            if ( f == Annotation.RECT || f == Annotation.COORDS ) continue;
+            if ( "page".equals( plan.attrs[i] ) ) continue;
+            String value = f.getFrom(dict);
+            if ( value == null ) continue;
+            line.append(',');
+            key( plan.attrs[i] );
+            string(value);
+        }
+
+        PdfRectangle r = Annotation.RECT.getRectangle(dict);
+        if ( r != null ) {
+            line.append(',');
+            key("rect");
+            numbers( new float[] { r.left(), r.bottom(), r.right(), r.top() }, 0, 4 );
+        }
+
+        float[] coords = Annotation.COORDS.getCoords(dict);
+        if ( coords != null && coords.length > 0 ) {
+            line.append(',');
+            key("coords");
+            numbers( coords, 0, coords.length );
+        }
+
+        float[][] paths = a.getInkList();
+        if ( paths != null ) {
+            line.append(',');
+            key("inklist");
+            line.append('[');
+            for ( int i = 0; i < paths.length; i++ ) {
+                if ( i > 0 ) line.append(',');
+                numbers( paths[i], 0, paths[i].length );
+            }
+            line.append(']');
+        }
+
+        PdfString content = dict.getAsString( PdfName.CONTENTS );
+        if ( content != null && !content.toString().equals("") ) {
+            line.append(',');
+            key("content");
+            string( content.toString() );
+        }
+
+        if ( a.getText() != null ) {
+            line.append(',');
+            key("text");
+            string( a.getText() );
+        }
+
+        line.append('}').append('\n');
+        writer.append(line);
+        writer.flush();
+    }
+
+    private void key(String name) {
+        string(name);
+        line.append(':');
+    }
+
+    private void numbers(float[] values, int from, int to) {
+        line.append('[');
+        for ( int i = from; i < to; i++ ) {
+            if ( i > from ) line.append(',');
+            if ( Float.isNaN( values[i] ) || Float.isInfinite( values[i] ) ) {
+                line.append("null");
+            } else {
+                FloatFormat.append( line, values[i] );
+            }
+        }
+        line.append(']');
+    }
+
+    private void string(String s) {
+        appendString( line, s );
+    }
+
+    /**
+     * Append a string as quoted and escaped JSON string.
+     */
+    static StringBuilder appendString(StringBuilder line, String s) {
+        line.append('"');
+        int length = s.length();
+        for ( int i = 0; i < length; i++ ) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if ( c < 0x20 || c == '\u2028' || c == '\u2029' ) {
+                        String hex = Integer.toHexString(c);
+                        line.append("\\u");
+                        for ( int j = hex.length(); j < 4; j++ ) line.append('0');
+                        line.append(hex);
+                    } else {
+                        line.append(c);
+                    }
+            }
+        }
+        return line.append('"');
+    }
+}
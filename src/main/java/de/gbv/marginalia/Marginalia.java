@@ -5,13 +5,20 @@
  */
 package de.gbv.marginalia;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
 
 import java.util.Collection;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.Locale;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -29,6 +36,7 @@ import com.itextpdf.text.pdf.PdfNumber;
 import com.itextpdf.text.pdf.PdfRectangle;
 import com.itextpdf.text.pdf.PdfObject;
 import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
 
 import com.itextpdf.text.pdf.parser.LocationTextExtractionStrategy;
 import com.itextpdf.text.pdf.parser.PdfTextExtractor;
@@ -49,28 +57,283 @@ import de.gbv.xml.SimpleXMLCreator;
 public class Marginalia {
 
     private static void printUsage() {
-        System.err.println("usage: marginalia file.pdf");
+        System.err.println("usage: marginalia [--format xml|jsonl|binary|svg] [--stream] [--partial] [--text]");
+        System.err.println("                  [--values] [--replies]");
+        System.err.println("                  [--jobs N] [--output-dir DIR [--svg-pages]] [--page-threads N]");
+        System.err.println("                  [--cache DIR] [--cache-size MB]");
+        System.err.println("                  [--delta N] [--since OFFSET] [--metrics FILE|-]");
+        System.err.println("                  [--pages LIST] [--subtypes LIST] [--authors LIST]");
+        System.err.println("                  [--after DATE] [--before DATE]");
+        System.err.println("                  [--build-index FILE] file.pdf ...");
+        System.err.println("       marginalia --strip [--pages LIST] [--subtypes LIST] [--authors LIST]");
+        System.err.println("                  [--after DATE] [--before DATE] [--jobs N] [--output-dir DIR] file.pdf ...");
+        System.err.println("       marginalia --import XFDF|DIR [--strip ...] [--jobs N] [--output-dir DIR] file.pdf ...");
+        System.err.println("       marginalia --query-index FILE --region PAGE,X,Y[,X2,Y2]");
+        System.err.println("       marginalia --server PORT [--jobs N] [--queue N] [options]");
+        System.err.println("       marginalia --warmup");
     }
 
     public static void main( String[] args ) {
-        if ( args.length == 0 ) {
+        CmdLineParser parser = new CmdLineParser();
+        CmdLineParser.Option formatOption = parser.addStringOption('f', "format");
+        CmdLineParser.Option streamOption = parser.addBooleanOption('s', "stream");
+        CmdLineParser.Option partialOption = parser.addBooleanOption('m', "partial");
+        CmdLineParser.Option textOption = parser.addBooleanOption('t', "text");
+        CmdLineParser.Option jobsOption = parser.addIntegerOption('j', "jobs");
+        CmdLineParser.Option outputDirOption = parser.addStringOption('o', "output-dir");
+        CmdLineParser.Option pageThreadsOption = parser.addIntegerOption('p', "page-threads");
+        CmdLineParser.Option cacheOption = parser.addStringOption('c', "cache");
+        CmdLineParser.Option cacheSizeOption = parser.addIntegerOption("cache-size");
+        CmdLineParser.Option deltaOption = parser.addIntegerOption('d', "delta");
+        CmdLineParser.Option sinceOption = parser.addStringOption("since");
+        CmdLineParser.Option buildIndexOption = parser.addStringOption("build-index");
+        CmdLineParser.Option queryIndexOption = parser.addStringOption("query-index");
+        CmdLineParser.Option regionOption = parser.addStringOption("region");
+        CmdLineParser.Option serverOption = parser.addIntegerOption("server");
+        CmdLineParser.Option queueOption = parser.addIntegerOption("queue");
+        CmdLineParser.Option warmupOption = parser.addBooleanOption("warmup");
+        CmdLineParser.Option metricsOption = parser.addStringOption("metrics");
+        CmdLineParser.Option svgPagesOption = parser.addBooleanOption("svg-pages");
+        CmdLineParser.Option stripOption = parser.addBooleanOption("strip");
+        CmdLineParser.Option pagesOption = parser.addStringOption("pages");
+        CmdLineParser.Option subtypesOption = parser.addStringOption("subtypes");
+        CmdLineParser.Option authorsOption = parser.addStringOption("authors");
+        CmdLineParser.Option importOption = parser.addStringOption("import");
+        CmdLineParser.Option afterOption = parser.addStringOption("after");
+        CmdLineParser.Option beforeOption = parser.addStringOption("before");
+        CmdLineParser.Option valuesOption = parser.addBooleanOption("values");
+        CmdLineParser.Option repliesOption = parser.addBooleanOption("replies");
+        try {
+            parser.parse(args);
+        } catch ( CmdLineParser.OptionException e ) {
+            System.err.println(e.getMessage());
             printUsage();
             System.exit(2);
         }
 
-        try {
-            PrintWriter writer = new PrintWriter(System.out);
+        if ( Boolean.TRUE.equals( parser.getOptionValue(warmupOption) ) ) {
+            try {
+                warmup();
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            System.exit(0);
+        }
+
+        String queryIndex = (String)parser.getOptionValue(queryIndexOption);
+        if ( queryIndex != null ) {
+            System.exit( queryIndex( queryIndex, (String)parser.getOptionValue(regionOption) ) );
+        }
+
+        Options options = new Options();
+        String format = (String)parser.getOptionValue(formatOption);
+        if ( format != null ) {
+            try {
+                options.format = Options.Format.valueOf( format.toUpperCase(Locale.ROOT) );
+            } catch (IllegalArgumentException e) {
+                System.err.println("unknown format: " + format);
+                printUsage();
+                System.exit(2);
+            }
+        }
+        options.stream = Boolean.TRUE.equals( parser.getOptionValue(streamOption) );
+        options.partial = Boolean.TRUE.equals( parser.getOptionValue(partialOption) );
+        options.text = Boolean.TRUE.equals( parser.getOptionValue(textOption) );
+        options.values = Boolean.TRUE.equals( parser.getOptionValue(valuesOption) );
+        options.replies = Boolean.TRUE.equals( parser.getOptionValue(repliesOption) );
+        Integer jobs = (Integer)parser.getOptionValue(jobsOption);
+        String outputDir = (String)parser.getOptionValue(outputDirOption);
+        Integer pageThreads = (Integer)parser.getOptionValue(pageThreadsOption);
+        Integer delta = (Integer)parser.getOptionValue(deltaOption);
+        String since = (String)parser.getOptionValue(sinceOption);
+        if ( delta != null ) options.delta = delta.intValue();
+        if ( since != null ) {
+            try {
+                options.since = Long.parseLong(since);
+            } catch (NumberFormatException e) {
+                System.err.println("invalid offset: " + since);
+                System.exit(2);
+            }
+        }
+        if ( options.isDelta() && options.format != Options.Format.XML ) {
+            System.err.println("--delta and --since are only supported for XML output");
+            System.exit(2);
+        }
+        if ( options.values && ( options.format != Options.Format.XML || options.isDelta() ) ) {
+            System.err.println("--values is only supported for XML output without --delta or --since");
+            System.exit(2);
+        }
+        if ( options.replies && ( options.format != Options.Format.XML || options.isDelta() ) ) {
+            System.err.println("--replies is only supported for XML output without --delta or --since");
+            System.exit(2);
+        }
+        String cacheDir = (String)parser.getOptionValue(cacheOption);
+        Integer cacheSize = (Integer)parser.getOptionValue(cacheSizeOption);
+        if ( cacheDir != null ) {
+            try {
+                options.cache = new ResultCache( new File(cacheDir),
+                    cacheSize == null ? 0 : cacheSize.longValue() * 1024 * 1024 );
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(2);
+            }
+        }
+
+        String pages = (String)parser.getOptionValue(pagesOption);
+        String subtypes = (String)parser.getOptionValue(subtypesOption);
+        String authors = (String)parser.getOptionValue(authorsOption);
+        String after = (String)parser.getOptionValue(afterOption);
+        String before = (String)parser.getOptionValue(beforeOption);
+        if ( pages != null || subtypes != null || authors != null || after != null || before != null ) {
+            options.filter = new AnnotationFilter();
+            try {
+                if ( pages != null ) options.filter.setPages(pages);
+                options.filter.setDates(after, before);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(2);
+            }
+            if ( subtypes != null ) options.filter.setSubtypes(subtypes);
+            if ( authors != null ) options.filter.setAuthors(authors);
+        }
+
+        Integer serverPort = (Integer)parser.getOptionValue(serverOption);
+        String metricsFile = (String)parser.getOptionValue(metricsOption);
+        if ( metricsFile != null || serverPort != null ) {
+            // servers always collect metrics, they are cheap to record
+            options.metrics = new Metrics( metricsFile == null ? Metrics.DEFAULT_FILES : Integer.MAX_VALUE );
+            try {
+                options.metrics.register( Metrics.OBJECT_NAME );
+            } catch (Exception e) {
+                System.err.println("cannot register MBean: " + e);
+            }
+        }
+
+        if ( serverPort != null ) {
+            Integer queue = (Integer)parser.getOptionValue(queueOption);
+            int threads = jobs == null ? 0 : jobs.intValue();
+            try {
+                ExtractionServer server = new ExtractionServer( serverPort.intValue(), threads,
+                    queue == null ? 64 : queue.intValue(), options );
+                System.err.println("listening on http://127.0.0.1:" + server.getPort() + "/");
+                server.serve();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(2);
+            }
+            return;
+        }
+
+        String[] files = parser.getRemainingArgs();
+        if ( files.length == 0 ) {
+            printUsage();
+            System.exit(2);
+        }
+
+        boolean strip = Boolean.TRUE.equals( parser.getOptionValue(stripOption) );
+        String importFile = (String)parser.getOptionValue(importOption);
+        if ( strip || importFile != null ) {
+            // the filter selects the annotations to remove
+            AnnotationFilter filter = null;
+            if ( strip ) {
+                filter = options.filter == null ? new AnnotationFilter() : options.filter;
+            }
+            File dir = outputDir == null ? null : new File(outputDir);
+            if ( dir != null && !dir.isDirectory() && !dir.mkdirs() ) {
+                System.err.println("cannot create directory " + dir);
+                System.exit(2);
+            }
+            int threads = jobs == null ? 0 : jobs.intValue();
+            int failed;
+            try {
+                if ( importFile != null ) {
+                    failed = new XfdfImporter( new File(importFile), filter, threads, dir )
+                        .importAll(System.out, files);
+                } else {
+                    failed = new AnnotationStripper( filter, threads, dir )
+                        .stripAll(System.out, files);
+                }
+            } catch (InterruptedException e) {
+                failed = files.length;
+            } catch (IOException e) {
+                System.err.println( e.getMessage() );
+                System.exit(2);
+                return;
+            }
+            System.exit( failed == 0 ? 0 : 1 );
+        }
+
+        String buildIndex = (String)parser.getOptionValue(buildIndexOption);
+        if ( buildIndex != null ) {
+            System.exit( buildIndex( new File(buildIndex), files, options ) );
+        }
+
+        if ( Boolean.TRUE.equals( parser.getOptionValue(svgPagesOption) ) ) {
+            if ( outputDir == null ) {
+                System.err.println("--svg-pages requires --output-dir");
+                System.exit(2);
+            }
+            options.format = Options.Format.SVG;
+            System.exit( renderSvgPages( new File(outputDir), files, options ) );
+        }
+
+        if ( jobs != null || outputDir != null ) {
+            // batch mode: files are inspected in parallel, failures are skipped
+            File dir = outputDir == null ? null : new File(outputDir);
+            if ( dir != null && !dir.isDirectory() && !dir.mkdirs() ) {
+                System.err.println("cannot create directory " + dir);
+                System.exit(2);
+            }
+            BatchInspector batch = new BatchInspector( jobs == null ? 0 : jobs.intValue(),
+                options, dir );
+            int failed = 0;
+            try {
+                failed = batch.inspectAll(System.out, files);
+            } catch (InterruptedException e) {
+                failed = files.length;
+            } catch (IOException e) {
+                System.err.println( e.getMessage() );
+                System.exit(2);
+            }
+            System.out.flush();
+            writeMetrics( options.metrics, metricsFile );
+            System.exit( failed == 0 ? 0 : 1 );
+        }
+
+        if ( options.format != Options.Format.XML || options.cache != null || options.isDelta()
+             || options.metrics != null || options.values || options.replies ) {
+            if ( pageThreads != null ) {
+                System.err.println("--page-threads is only supported for XML output without --cache, --delta, --metrics, --values or --replies");
+                System.exit(2);
+            }
+            try {
+                OutputStream out = new BufferedOutputStream(System.out);
+                for ( int i = 0; i < files.length; ++i ) {
+                    export(out, files[i], options);
+                }
+                out.flush();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            writeMetrics( options.metrics, metricsFile );
+            return;
+        }
 
-            // String[] otherArgs = parser.getRemainingArgs();
-            for ( int i = 0; i < args.length; ++i ) {
-                inspect(writer, args[i]);
+        try {
+            OutputStream out = new BufferedOutputStream(System.out);
 
-                // other actions:
-                // remove all annotations from the document
-                // reader.removeAnnotations()
+            for ( int i = 0; i < files.length; ++i ) {
+                if ( pageThreads != null ) {
+                    // split the pages of each file across several threads
+                    new ParallelInspector( pageThreads.intValue() )
+                        .inspect(out, files[i], options);
+                } else {
+                    inspect(out, files[i], options);
+                }
             }
 
-            writer.close();
+            out.flush();
         } catch (Exception e) {
             //System.err.println(e);
             e.printStackTrace();
@@ -85,12 +348,77 @@ public class Marginalia {
      */
     public static void inspect(PrintWriter writer, String filename)
         throws IOException, SAXException {
+        inspect(writer, filename, new Options());
+    }
+
+    /**
+     * Inspect a PDF file and write the info to a writer.
+     *
+     * In streaming mode the annotations of each page are serialized as soon
+     * as the page has been read and the page is released afterwards, so
+     * memory use does not grow with the number of annotations. The
+     * <code>m:pages</code> block is then written after the annotations.
+     * With {@link Options#values} the <code>m:values</code> table precedes
+     * the annotations. When streaming, the table is filled in a first pass
+     * over the pages, so the annotations are read twice.
+     * With {@link Options#replies} replies refer to their parent and popups
+     * are nested in their parent, see {@link ReplyIndex}.
+     *
+     * @param writer Writer to a text file
+     * @param filename Path to the PDF file
+     * @param options Options to control inspection
+     * @throws IOException
+     */
+    public static void inspect(PrintWriter writer, String filename, Options options)
+        throws IOException, SAXException {
+        PdfReader reader = openReader(filename, options);
+        try {
+            inspect(writer, reader, options);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Inspect an opened PDF file and write the info to a writer. The reader
+     * is not closed.
+     * @param writer Writer to a text file
+     * @param reader Reader of the PDF file
+     * @param options Options to control inspection
+     */
+    public static void inspect(PrintWriter writer, PdfReader reader, Options options)
+        throws IOException, SAXException {
 //        writer.println(filename);
         writer.flush();
+        inspect( new SimpleXMLWriter(writer), reader, options );
+    }
+
+    /**
+     * Inspect a PDF file and write the info as UTF-8 to a stream.
+     * @param out Stream to write to, is flushed but not closed
+     * @param filename Path to the PDF file
+     * @param options Options to control inspection
+     */
+    public static void inspect(OutputStream out, String filename, Options options)
+        throws IOException, SAXException {
+        PdfReader reader = openReader(filename, options);
+        try {
+            inspect( new SimpleXMLWriter(out), reader, options );
+        } finally {
+            reader.close();
+        }
+    }
 
-        PdfReader reader = new PdfReader(filename);
+    private static void inspect(SimpleXMLWriter xmlhandler, PdfReader reader, Options options)
+        throws IOException, SAXException {
+        boolean stream = options.stream;
+        TextResolver resolver = options.text ? new TextResolver(reader) : null;
+        Metrics metrics = options.metrics;
+        AnnotationFilter filter = options.filter;
+        ValueTable values = options.values ? new ValueTable() : null;
+        ReplyIndex replies = options.replies ? new ReplyIndex() : null;
+        int pages = reader.getNumberOfPages();
 
-        ContentHandler xmlhandler = new SimpleXMLWriter(writer);
         xmlhandler.startDocument();
 
         SimpleXMLCreator xml = new SimpleXMLCreator( xmlhandler, Annotation.namespaces, true );
@@ -121,37 +449,58 @@ public class Marginalia {
        // - optionally write <f href="Document.pdf"/>
        // - optionally write <ids original="ID" modified="ID" />
  
-        xml.startElement("m","pages");
-        for (int pageNum=1; pageNum<=reader.getNumberOfPages(); pageNum++) {
+        if ( stream && values != null ) {
+            countValues(reader, options, values);
+            values.serializeXML(xml);
+        }
+        if ( !stream ) xml.startElement("m","pages");
+        for (int pageNum = AnnotationFilter.nextPage(filter, 1); pageNum <= pages;
+             pageNum = AnnotationFilter.nextPage(filter, pageNum + 1)) {
+            long time = metrics == null ? 0 : System.nanoTime();
             PdfDictionary pageDic = reader.getPageN(pageNum);
 
-            Map <String,String> attr = new HashMap<String,String>();
-            attr.put("number", ""+pageNum );
-            attr.put("rotate", ""+reader.getPageRotation(pageNum) );
-
-            Rectangle mediabox = reader.getPageSize(pageNum);
-            attr.put("left", ""+mediabox.getLeft());
-            attr.put("bottom", ""+mediabox.getBottom() );
-            attr.put("right", ""+mediabox.getRight());
-            attr.put("top", ""+mediabox.getTop());
-
-            xml.contentElement("m","page","",attr);
+            if ( !stream ) writePage(xml, reader, pageNum);
 
             PdfArray rawannots = pageDic.getAsArray(PdfName.ANNOTS);
+            if ( metrics != null ) metrics.record( Metrics.Phase.PAGE, System.nanoTime() - time );
             if ( rawannots == null || rawannots.isEmpty() ) {
                 // writer.println("page "+pageNum+" contains no annotations");
+                reader.releasePage(pageNum);
                 continue;
             }
 
             // writer.println("page "+pageNum+" has "+rawannots.size()+" annotations");
 
             for(int i=0; i<rawannots.size(); i++) {
+                if ( metrics != null ) time = System.nanoTime();
                 PdfObject obj = rawannots.getDirectObject(i);
                 if (!obj.isDictionary()) continue;
+                if ( filter != null && !filter.accepts( (PdfDictionary)obj ) ) continue;
                 Annotation a = new Annotation( (PdfDictionary)obj, pageNum );
+                if ( resolver != null ) resolver.resolve(a);
+                if ( replies != null ) replies.add( a, rawannots.getPdfObject(i) );
+                if ( metrics != null ) {
+                    metrics.record( Metrics.Phase.ANNOTATION, System.nanoTime() - time );
+                    metrics.annotation(a);
+                }
                 annots.add(a);
             }
 
+            if ( stream ) {
+                // popups are linked within the page, replies to parents on
+                // earlier pages by name, on later pages read from the file
+                resolve(annots, replies, values, false);
+                for (Annotation a : annots) {
+                    if ( !a.isNested() ) a.serializeXML( xml, metrics );
+                }
+                annots.clear();
+                if ( replies != null ) replies.endPage();
+            }
+
+            // only has an effect on partial readers
+            reader.releasePage(pageNum);
+            if ( stream ) xmlhandler.flush();
+
             /**
             // Now we have all highlight and similar annotations, we need
             // to find out what words are actually highlighted! PDF in fact
@@ -165,16 +514,433 @@ public class Marginalia {
             writer.println(fulltext);
             */
         }
-        xml.endElement();
 
-        for (Annotation a : annots) {
-            a.serializeXML( xmlhandler );
+        if ( stream ) {
+            // trailing page table, page sizes are cheap to read again
+            xml.startElement("m","pages");
+            for (int pageNum = AnnotationFilter.nextPage(filter, 1); pageNum <= pages;
+                 pageNum = AnnotationFilter.nextPage(filter, pageNum + 1)) {
+                writePage(xml, reader, pageNum);
+                reader.releasePage(pageNum);
+            }
+            xml.endElement();
+        } else {
+            xml.endElement();
+            resolve(annots, replies, values, true);
+            if ( values != null ) values.serializeXML(xml);
+
+            for (Annotation a : annots) {
+                if ( !a.isNested() ) a.serializeXML( xml, metrics );
+            }
         }
         // TODO: add page information (page size and orientation)
 
         xml.endAll();
     }
 
+    /**
+     * Link replies and popups of annotations and look up their shared
+     * values. Popups nested in other annotations are not counted as values.
+     * @param replies Index of all annotations that may be referenced, or null
+     * @param values Table of shared values, or null
+     * @param count Whether to count the values, or only look them up in a
+     *        table filled by {@link #countValues}
+     */
+    private static void resolve(List<Annotation> annots, ReplyIndex replies,
+                                ValueTable values, boolean count) {
+        if ( replies != null ) {
+            for (Annotation a : annots) replies.resolve(a);
+        }
+        if ( values != null ) {
+            for (Annotation a : annots) {
+                if ( a.isNested() ) continue;
+                if ( count ) {
+                    values.resolve(a);
+                } else {
+                    values.lookup(a);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fill a table of shared values with the annotations of all pages,
+     * before they are streamed. Replies are resolved as when streaming, so
+     * the same popups are nested and not counted.
+     */
+    private static void countValues(PdfReader reader, Options options, ValueTable values) {
+        AnnotationFilter filter = options.filter;
+        ReplyIndex replies = options.replies ? new ReplyIndex() : null;
+        List<Annotation> annots = new LinkedList<Annotation>();
+        int pages = reader.getNumberOfPages();
+        for (int pageNum = AnnotationFilter.nextPage(filter, 1); pageNum <= pages;
+             pageNum = AnnotationFilter.nextPage(filter, pageNum + 1)) {
+            PdfArray rawannots = reader.getPageN(pageNum).getAsArray(PdfName.ANNOTS);
+            if ( rawannots != null ) {
+                for (int i=0; i<rawannots.size(); i++) {
+                    PdfObject obj = rawannots.getDirectObject(i);
+                    if (!obj.isDictionary()) continue;
+                    if ( filter != null && !filter.accepts( (PdfDictionary)obj ) ) continue;
+                    Annotation a = new Annotation( (PdfDictionary)obj, pageNum );
+                    if ( replies != null ) replies.add( a, rawannots.getPdfObject(i) );
+                    annots.add(a);
+                }
+                resolve(annots, replies, values, true);
+                annots.clear();
+                if ( replies != null ) replies.endPage();
+            }
+            reader.releasePage(pageNum);
+        }
+    }
+
+    /**
+     * Inspect a PDF file and write the result in the format given by the
+     * options. XML is encoded in UTF-8. If the options contain a cache, the
+     * result is taken from or added to the cache. If the options contain
+     * metrics, the time and the number of bytes written are recorded.
+     * @param out Stream to write to, is flushed but not closed
+     * @param filename Path to the PDF file
+     * @param options Options to control inspection and output format
+     */
+    public static void export(OutputStream out, String filename, Options options)
+        throws IOException, SAXException {
+        if ( options.metrics == null ) {
+            exportUnmeasured(out, filename, options);
+            return;
+        }
+        long time = System.nanoTime();
+        CountingOutputStream counter = new CountingOutputStream(out);
+        boolean ok = false;
+        try {
+            exportUnmeasured(counter, filename, options);
+            ok = true;
+        } finally {
+            options.metrics.file( filename, System.nanoTime() - time, counter.count, ok );
+        }
+    }
+
+    private static void exportUnmeasured(OutputStream out, String filename, Options options)
+        throws IOException, SAXException {
+        if ( options.cache != null ) {
+            options.cache.export(out, filename, options);
+        } else {
+            render(out, filename, options);
+        }
+    }
+
+    /**
+     * Inspect a PDF file and write the result without using the cache.
+     */
+    static void render(OutputStream out, String filename, Options options)
+        throws IOException, SAXException {
+        if ( options.format == Options.Format.XML && options.isDelta() ) {
+            new DeltaInspector().inspect(out, filename, options);
+            out.flush();
+            return;
+        }
+        PdfReader reader = openReader(filename, options);
+        try {
+            render(out, reader, filename, options);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Inspect an opened PDF file and write the result in the format given
+     * by the options. The reader is not closed.
+     * @param out Stream to write to, is flushed but not closed
+     * @param reader Reader of the PDF file
+     * @param filename Name of the document to write with the result
+     * @param options Options to control inspection and output format
+     */
+    static void render(OutputStream out, PdfReader reader, String filename, Options options)
+        throws IOException, SAXException {
+        switch ( options.format ) {
+            case BINARY:
+                ColumnWriter columns = new ColumnWriter(out);
+                walk(reader, columns, options);
+                columns.writeDocument(filename);
+                break;
+            case JSONL:
+                Writer writer = new OutputStreamWriter(out, "UTF-8");
+                walk(reader, new JsonLinesWriter(writer, filename), options);
+                writer.flush();
+                break;
+            case SVG:
+                SvgWriter svg = new SvgWriter(out, options.filter);
+                walk(reader, svg, options);
+                svg.finish();
+                break;
+            default:
+                inspect( new SimpleXMLWriter(out), reader, options );
+        }
+        out.flush();
+    }
+
+    /**
+     * Inspect a generated sample document in all output formats, with and
+     * without text resolution and streaming. This loads and initializes
+     * all classes needed for inspection, including the field tables of
+     * {@link Annotation} and the parser classes of iText, and is used as
+     * training run for the class-data sharing archive.
+     */
+    static void warmup() throws IOException, SAXException {
+        byte[] sample = SampleDocument.create(2);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        for ( Options.Format format : Options.Format.values() ) {
+            for ( int i = 0; i < 2; i++ ) {
+                Options options = new Options();
+                options.format = format;
+                options.text = i == 1;
+                options.stream = i == 1;
+                PdfReader reader = new PdfReader(sample);
+                try {
+                    render(sink, reader, "sample.pdf", options);
+                } finally {
+                    reader.close();
+                }
+                sink.reset();
+            }
+        }
+    }
+
+    /**
+     * Write a summary of metrics in JSON to a file or to standard error.
+     * @param file Name of the file, or "-" for standard error
+     */
+    static void writeMetrics(Metrics metrics, String file) {
+        if ( metrics == null || file == null ) return;
+        String summary = metrics.appendSummary( new StringBuilder(4096), true )
+                                .append('\n').toString();
+        if ( file.equals("-") ) {
+            System.err.print(summary);
+            System.err.flush();
+            return;
+        }
+        try {
+            Writer writer = new OutputStreamWriter( new FileOutputStream(file), "UTF-8" );
+            try {
+                writer.write(summary);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            System.err.println("cannot write metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Render each page of PDF files as SVG file into a directory.
+     * Files that cannot be read are reported and skipped.
+     * @return exit code
+     */
+    static int renderSvgPages(File dir, String[] files, Options options) {
+        if ( !dir.isDirectory() && !dir.mkdirs() ) {
+            System.err.println("cannot create directory " + dir);
+            return 2;
+        }
+        try {
+            BatchInspector.checkOutputNames(files, "svg");
+        } catch (IOException e) {
+            System.err.println( e.getMessage() );
+            return 2;
+        }
+        int failed = 0;
+        for ( int i = 0; i < files.length; ++i ) {
+            try {
+                PdfReader reader = openReader(files[i], options);
+                try {
+                    String name = BatchInspector.outputName(files[i], "svg");
+                    SvgWriter svg = new SvgWriter( dir, name.substring( 0, name.length() - 4 ) );
+                    walk(reader, svg, options);
+                    svg.finish();
+                } finally {
+                    reader.close();
+                }
+            } catch (Exception e) {
+                System.err.println(files[i] + ": " + e.getMessage());
+                failed++;
+            }
+        }
+        return failed == 0 ? 0 : 1;
+    }
+
+    /**
+     * Build a spatial index of the annotation regions of PDF files. Only
+     * annotations accepted by the filter of the options are indexed.
+     * Files that cannot be read are reported and skipped.
+     * @return exit code
+     */
+    static int buildIndex(File target, String[] files, Options options) {
+        RegionIndexWriter index = new RegionIndexWriter();
+        // covered text is not needed for the index
+        Options walkOptions = new Options();
+        walkOptions.filter = options.filter;
+        walkOptions.metrics = options.metrics;
+        int failed = 0;
+        for ( int i = 0; i < files.length; ++i ) {
+            try {
+                PdfReader reader = openReader(files[i], options.partial);
+                try {
+                    index.startDocument(files[i]);
+                    walk(reader, index, walkOptions);
+                } finally {
+                    reader.close();
+                }
+            } catch (Exception e) {
+                failed++;
+                System.err.println(files[i] + ": " + e);
+            }
+        }
+        try {
+            OutputStream out = new FileOutputStream(target);
+            try {
+                index.write(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            System.err.println(target + ": " + e.getMessage());
+            return 2;
+        }
+        return failed == 0 ? 0 : 1;
+    }
+
+    /**
+     * Query a spatial index and print one line per annotation with document,
+     * page, position on the page and bounding box.
+     * @param region PAGE,X,Y for a point or PAGE,LEFT,BOTTOM,RIGHT,TOP;
+     *        page 0 matches all pages
+     * @return exit code
+     */
+    static int queryIndex(String file, String region) {
+        String[] parts = region == null ? new String[0] : region.split(",");
+        if ( parts.length != 3 && parts.length != 5 ) {
+            System.err.println("--region must be PAGE,X,Y or PAGE,LEFT,BOTTOM,RIGHT,TOP");
+            return 2;
+        }
+        List<RegionIndex.Hit> hits;
+        try {
+            int page = Integer.parseInt( parts[0].trim() );
+            float[] c = new float[ parts.length - 1 ];
+            for ( int i = 0; i < c.length; i++ ) {
+                c[i] = Float.parseFloat( parts[i+1].trim() );
+            }
+            RegionIndex index = new RegionIndex( new File(file) );
+            hits = c.length == 2 ? index.query( page, c[0], c[1] )
+                 : index.query( page, Math.min(c[0], c[2]), Math.min(c[1], c[3]),
+                                      Math.max(c[0], c[2]), Math.max(c[1], c[3]) );
+        } catch (NumberFormatException e) {
+            System.err.println("invalid region: " + region);
+            return 2;
+        } catch (IOException e) {
+            System.err.println(file + ": " + e.getMessage());
+            return 2;
+        }
+        PrintWriter writer = new PrintWriter(System.out);
+        for ( RegionIndex.Hit hit : hits ) {
+            writer.println(hit);
+        }
+        writer.flush();
+        return 0;
+    }
+
+    /**
+     * Visit all pages and their annotations in page order. Each page is
+     * released after its annotations have been visited.
+     */
+    public static void walk(PdfReader reader, AnnotationVisitor visitor)
+        throws IOException, SAXException {
+        walk(reader, visitor, new Options());
+    }
+
+    /**
+     * Visit all pages and their annotations in page order, with covered
+     * text resolved if requested by the options.
+     */
+    public static void walk(PdfReader reader, AnnotationVisitor visitor, Options options)
+        throws IOException, SAXException {
+        TextResolver resolver = options.text ? new TextResolver(reader) : null;
+        Metrics metrics = options.metrics;
+        AnnotationFilter filter = options.filter;
+        int pages = reader.getNumberOfPages();
+        for (int pageNum = AnnotationFilter.nextPage(filter, 1); pageNum <= pages;
+             pageNum = AnnotationFilter.nextPage(filter, pageNum + 1)) {
+            long time = metrics == null ? 0 : System.nanoTime();
+            PdfDictionary pageDic = reader.getPageN(pageNum);
+            visitor.page(reader, pageNum);
+
+            PdfArray rawannots = pageDic.getAsArray(PdfName.ANNOTS);
+            if ( metrics != null ) metrics.record( Metrics.Phase.PAGE, System.nanoTime() - time );
+            if ( rawannots != null ) {
+                for(int i=0; i<rawannots.size(); i++) {
+                    if ( metrics != null ) time = System.nanoTime();
+                    PdfObject obj = rawannots.getDirectObject(i);
+                    if (!obj.isDictionary()) continue;
+                    if ( filter != null && !filter.accepts( (PdfDictionary)obj ) ) continue;
+                    Annotation a = new Annotation( (PdfDictionary)obj, pageNum );
+                    if ( resolver != null ) resolver.resolve(a);
+                    if ( metrics != null ) {
+                        long now = System.nanoTime();
+                        metrics.record( Metrics.Phase.ANNOTATION, now - time );
+                        metrics.annotation(a);
+                        time = now;
+                    }
+                    visitor.annotation(a);
+                    // decoding and writing are not separated for visitors
+                    if ( metrics != null ) metrics.record( Metrics.Phase.WRITE, System.nanoTime() - time );
+                }
+            }
+            reader.releasePage(pageNum);
+        }
+    }
+
+    /**
+     * Open a PDF file and record the time if requested by the options.
+     */
+    static PdfReader openReader(String filename, Options options)
+        throws IOException {
+        if ( options.metrics == null ) return openReader(filename, options.partial);
+        long time = System.nanoTime();
+        PdfReader reader = openReader(filename, options.partial);
+        options.metrics.record( Metrics.Phase.OPEN, System.nanoTime() - time );
+        return reader;
+    }
+
+    /**
+     * Open a PDF file. A partial reader only reads the cross-reference table
+     * up front and parses other objects from a memory-mapped file when they
+     * are needed, so heap use depends on the pages that are processed and
+     * not on the size of the file.
+     * @param filename Path to the PDF file
+     * @param partial Whether to open the file for partial reading
+     */
+    static PdfReader openReader(String filename, boolean partial)
+        throws IOException {
+        if ( !partial ) return new PdfReader(filename);
+        RandomAccessFileOrArray file = new RandomAccessFileOrArray(filename, false, false);
+        return new PdfReader(file, null);
+    }
+
+    /**
+     * Write page number, rotation and media box of a page as
+     * <code>m:page</code> element.
+     */
+    static void writePage(SimpleXMLCreator xml, PdfReader reader, int pageNum)
+        throws SAXException {
+        xml.attr("number", pageNum );
+        xml.attr("rotate", reader.getPageRotation(pageNum) );
+
+        Rectangle mediabox = reader.getPageSize(pageNum);
+        xml.attr("left", mediabox.getLeft());
+        xml.attr("bottom", mediabox.getBottom() );
+        xml.attr("right", mediabox.getRight());
+        xml.attr("top", mediabox.getTop());
+
+        xml.contentElement("m","page","");
+    }
+
     // helper class (to be removed)
     public static void dumpArray(PdfArray a) {
         if (a == null) return;
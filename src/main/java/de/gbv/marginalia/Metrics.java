@@ -0,0 +1,410 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects timings and counters of extraction runs.
+ *
+ * The time spent in each {@link Phase} is recorded in a histogram with
+ * logarithmic buckets of 16 linear sub-buckets each, so percentiles are
+ * exact to about 6% and recording is a few atomic increments without
+ * allocation. Counters are kept per annotation subtype, together with
+ * the number of files, failures and bytes written, and the timings of
+ * the most recent files. Metrics are safe to use from many threads and
+ * can be exposed as MBean and written as JSON summary.
+ *
+ * Metrics are only recorded if {@link Options#metrics} is set.
+ */
+public class Metrics implements MetricsMBean {
+
+    /**
+     * Phases of inspection that are timed.
+     */
+    public static enum Phase {
+        /** Construction of the PdfReader */
+        OPEN("open"),
+        /** Reading a page dictionary, its annotation array and page info */
+        PAGE("page"),
+        /** Construction of an Annotation, including text resolution */
+        ANNOTATION("annotation"),
+        /** Decoding the fields of an annotation to attribute values */
+        DECODE("decode"),
+        /** Writing an annotation, after decoding for XML */
+        WRITE("write"),
+        /** Processing a whole file, from opening to the last byte */
+        FILE("file");
+
+        public final String name;
+
+        Phase(String name) {
+            this.name = name;
+        }
+    }
+
+    /** Default name of the MBean */
+    public static final String OBJECT_NAME = "de.gbv.marginalia:type=Metrics";
+
+    /** Default number of file timings that are kept */
+    public static final int DEFAULT_FILES = 1000;
+
+    private final Histogram[] phases = new Histogram[ Phase.values().length ];
+    private final Map<String,AtomicLong> subtypes = new ConcurrentHashMap<String,AtomicLong>();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong annotations = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final LinkedList<FileTiming> recent = new LinkedList<FileTiming>();
+    private final int maxFiles;
+    private volatile long started = System.nanoTime();
+
+    /**
+     * Timing of a single file.
+     */
+    public static class FileTiming {
+        public final String file;
+        public final long nanos;
+        public final long bytes;
+        public final boolean ok;
+
+        FileTiming(String file, long nanos, long bytes, boolean ok) {
+            this.file = file;
+            this.nanos = nanos;
+            this.bytes = bytes;
+            this.ok = ok;
+        }
+    }
+
+    public Metrics() {
+        this(DEFAULT_FILES);
+    }
+
+    /**
+     * @param maxFiles Number of file timings to keep
+     */
+    public Metrics(int maxFiles) {
+        this.maxFiles = maxFiles;
+        for ( int i = 0; i < phases.length; i++ ) phases[i] = new Histogram();
+    }
+
+    /**
+     * Record the duration of a phase.
+     */
+    public void record(Phase phase, long nanos) {
+        phases[ phase.ordinal() ].record(nanos);
+    }
+
+    /**
+     * Count an annotation.
+     */
+    public void annotation(Annotation a) {
+        annotations.incrementAndGet();
+        String subtype = a.getSubtypeName();
+        AtomicLong count = subtypes.get(subtype);
+        if ( count == null ) {
+            synchronized (subtypes) {
+                count = subtypes.get(subtype);
+                if ( count == null ) {
+                    count = new AtomicLong();
+                    subtypes.put( subtype, count );
+                }
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Record a processed file.
+     * @param file Name of the file
+     * @param nanos Time from opening the file to writing the last byte
+     * @param written Number of bytes written
+     * @param ok Whether the file could be processed
+     */
+    public void file(String file, long nanos, long written, boolean ok) {
+        files.incrementAndGet();
+        if ( !ok ) failures.incrementAndGet();
+        bytes.addAndGet(written);
+        record( Phase.FILE, nanos );
+        if ( maxFiles <= 0 ) return;
+        synchronized (recent) {
+            recent.add( new FileTiming( file, nanos, written, ok ) );
+            if ( recent.size() > maxFiles ) recent.removeFirst();
+        }
+    }
+
+    /**
+     * Get the histogram of a phase.
+     */
+    public Histogram getHistogram(Phase phase) {
+        return phases[ phase.ordinal() ];
+    }
+
+    /**
+     * Get the timings of the most recent files, oldest first.
+     */
+    public List<FileTiming> getFileTimings() {
+        synchronized (recent) {
+            return new ArrayList<FileTiming>(recent);
+        }
+    }
+
+    /**
+     * Register as MBean with the platform MBean server.
+     * @param name Object name, for instance {@link #OBJECT_NAME}
+     */
+    public void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(name);
+        if ( server.isRegistered(objectName) ) server.unregisterMBean(objectName);
+        server.registerMBean( this, objectName );
+    }
+
+    // ---- MBean attributes ----
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getAnnotations() {
+        return annotations.get();
+    }
+
+    public long getBytesWritten() {
+        return bytes.get();
+    }
+
+    public double getFileRate() {
+        return rate( files.get() );
+    }
+
+    public double getByteRate() {
+        return rate( bytes.get() );
+    }
+
+    private double rate(long n) {
+        long elapsed = System.nanoTime() - started;
+        return elapsed <= 0 ? 0 : n * 1e9 / elapsed;
+    }
+
+    public String[] getPhases() {
+        Phase[] values = Phase.values();
+        String[] names = new String[ values.length ];
+        for ( int i = 0; i < values.length; i++ ) names[i] = values[i].name;
+        return names;
+    }
+
+    public long[] getPhaseCounts() {
+        long[] a = new long[ phases.length ];
+        for ( int i = 0; i < a.length; i++ ) a[i] = phases[i].getCount();
+        return a;
+    }
+
+    public double[] getPhaseMeanMicros() {
+        double[] a = new double[ phases.length ];
+        for ( int i = 0; i < a.length; i++ ) a[i] = phases[i].getMean() / 1000;
+        return a;
+    }
+
+    public long[] getPhaseMedianMicros() {
+        return percentiles(50);
+    }
+
+    public long[] getPhase99thPercentileMicros() {
+        return percentiles(99);
+    }
+
+    public long[] getPhaseMaxMicros() {
+        long[] a = new long[ phases.length ];
+        for ( int i = 0; i < a.length; i++ ) a[i] = phases[i].getMax() / 1000;
+        return a;
+    }
+
+    private long[] percentiles(double p) {
+        long[] a = new long[ phases.length ];
+        for ( int i = 0; i < a.length; i++ ) a[i] = phases[i].getPercentile(p) / 1000;
+        return a;
+    }
+
+    public String[] getSubtypes() {
+        List<String> names = new ArrayList<String>( subtypes.keySet() );
+        Collections.sort(names);
+        return names.toArray( new String[0] );
+    }
+
+    public long[] getSubtypeCounts() {
+        String[] names = getSubtypes();
+        long[] a = new long[ names.length ];
+        for ( int i = 0; i < a.length; i++ ) a[i] = subtypes.get( names[i] ).get();
+        return a;
+    }
+
+    public String getSummary() {
+        return appendSummary( new StringBuilder(1024), false ).toString();
+    }
+
+    public void reset() {
+        for ( Histogram h : phases ) h.reset();
+        subtypes.clear();
+        files.set(0);
+        failures.set(0);
+        annotations.set(0);
+        bytes.set(0);
+        synchronized (recent) {
+            recent.clear();
+        }
+        started = System.nanoTime();
+    }
+
+    /**
+     * Append a summary in JSON.
+     * @param withFiles Whether to include the timings of recent files
+     */
+    public StringBuilder appendSummary(StringBuilder s, boolean withFiles) {
+        long elapsed = System.nanoTime() - started;
+        s.append("{\"files\":").append( files.get() )
+         .append(",\"failures\":").append( failures.get() )
+         .append(",\"annotations\":").append( annotations.get() )
+         .append(",\"bytes\":").append( bytes.get() )
+         .append(",\"seconds\":").append( elapsed / 1e9 )
+         .append(",\"files_per_second\":").append( getFileRate() )
+         .append(",\"bytes_per_second\":").append( getByteRate() )
+         .append(",\"phases\":{");
+        Phase[] values = Phase.values();
+        for ( int i = 0; i < values.length; i++ ) {
+            Histogram h = phases[i];
+            if ( i > 0 ) s.append(',');
+            s.append('"').append( values[i].name ).append("\":{\"count\":").append( h.getCount() )
+             .append(",\"total_ms\":").append( h.getSum() / 1000000 )
+             .append(",\"mean_us\":").append( h.getMean() / 1000 )
+             .append(",\"p50_us\":").append( h.getPercentile(50) / 1000 )
+             .append(",\"p90_us\":").append( h.getPercentile(90) / 1000 )
+             .append(",\"p99_us\":").append( h.getPercentile(99) / 1000 )
+             .append(",\"max_us\":").append( h.getMax() / 1000 ).append('}');
+        }
+        s.append("},\"subtypes\":{");
+        String[] names = getSubtypes();
+        for ( int i = 0; i < names.length; i++ ) {
+            if ( i > 0 ) s.append(',');
+            JsonLinesWriter.appendString( s, names[i] ).append(':')
+                .append( subtypes.get( names[i] ).get() );
+        }
+        s.append('}');
+        if ( withFiles ) {
+            s.append(",\"file_timings\":[");
+            boolean first = true;
+            for ( FileTiming t : getFileTimings() ) {
+                if ( !first ) s.append(',');
+                first = false;
+                s.append("{\"file\":");
+                JsonLinesWriter.appendString( s, t.file );
+                s.append(",\"ms\":").append( t.nanos / 1e6 )
+                 .append(",\"bytes\":").append( t.bytes )
+                 .append(",\"ok\":").append( t.ok ).append('}');
+            }
+            s.append(']');
+        }
+        return s.append('}');
+    }
+
+    /**
+     * Histogram of non-negative values with logarithmic buckets, each split
+     * into 16 linear sub-buckets. Values below 16 are counted exactly.
+     */
+    public static class Histogram {
+        static final int SUB_BITS = 4;
+        static final int SUB = 1 << SUB_BITS;
+        static final int BUCKETS = SUB * ( 64 - SUB_BITS );
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if ( value < 0 ) value = 0;
+            counts.incrementAndGet( index(value) );
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long m = max.get();
+            while ( value > m && !max.compareAndSet(m, value) ) m = max.get();
+        }
+
+        static int index(long value) {
+            if ( value < SUB ) return (int)value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return SUB * ( shift + 1 ) + (int)( value >>> shift ) - SUB;
+        }
+
+        /**
+         * Highest value counted in a bucket.
+         */
+        static long highest(int index) {
+            if ( index < SUB ) return index;
+            int shift = index / SUB - 1;
+            long low = (long)( SUB + index % SUB ) << shift;
+            return low + ( 1L << shift ) - 1;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : (double)sum.get() / n;
+        }
+
+        /**
+         * Get a percentile, as highest value of its bucket but not more
+         * than the maximum.
+         * @param p Percentile between 0 and 100
+         */
+        public long getPercentile(double p) {
+            long n = count.get();
+            if ( n == 0 ) return 0;
+            long target = Math.max( 1, (long)Math.ceil( p / 100 * n ) );
+            long seen = 0;
+            for ( int i = 0; i < BUCKETS; i++ ) {
+                seen += counts.get(i);
+                if ( seen >= target ) return Math.min( highest(i), max.get() );
+            }
+            return max.get();
+        }
+
+        public void reset() {
+            for ( int i = 0; i < BUCKETS; i++ ) counts.set(i, 0);
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+    }
+}
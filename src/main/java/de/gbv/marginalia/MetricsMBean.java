@@ -0,0 +1,51 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+/**
+ * JMX management interface of {@link Metrics}. Times are given in
+ * microseconds. Phase and subtype arrays are parallel to the arrays of
+ * their names.
+ */
+public interface MetricsMBean {
+
+    long getFiles();
+
+    long getFailures();
+
+    long getAnnotations();
+
+    long getBytesWritten();
+
+    /** Number of files per second since start or reset */
+    double getFileRate();
+
+    /** Number of bytes written per second since start or reset */
+    double getByteRate();
+
+    /** Names of the phases */
+    String[] getPhases();
+
+    long[] getPhaseCounts();
+
+    double[] getPhaseMeanMicros();
+
+    long[] getPhaseMedianMicros();
+
+    long[] getPhase99thPercentileMicros();
+
+    long[] getPhaseMaxMicros();
+
+    /** Names of the subtypes seen so far */
+    String[] getSubtypes();
+
+    long[] getSubtypeCounts();
+
+    /** Summary in JSON */
+    String getSummary();
+
+    void reset();
+}
@@ -0,0 +1,292 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfIndirectReference;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNull;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfObject;
+
+/**
+ * Loads single objects of a PDF file at the offsets given by an
+ * {@link XrefChain}, so no other cross-reference sections than those of
+ * the chain are read.
+ *
+ * References in loaded objects have no reader, so objects must be
+ * {@link #resolve resolved} before they are passed to code that follows
+ * references. Only the dictionary of a stream is parsed. Object streams
+ * are decoded when an object in them is loaded; the last one is kept.
+ */
+class ObjectLoader {
+    /** Keys that link to other parts of the document and are not resolved */
+    private static final Set<PdfName> LINKS = new HashSet<PdfName>( Arrays.asList(
+        PdfName.P, PdfName.PARENT, ReplyIndex.IRT, PdfName.AP, PdfName.A, PdfName.AA,
+        PdfName.DEST ) );
+
+    private final XrefChain chain;
+    private final Map<PdfObjectKey,Integer> pages = new HashMap<PdfObjectKey,Integer>();
+    private final Map<Integer,Integer> counts = new HashMap<Integer,Integer>();
+
+    private int objectStream = -1;
+    private byte[] objectStreamData;
+    private int[] objectNumbers, objectOffsets;
+
+    ObjectLoader(XrefChain chain) {
+        this.chain = chain;
+    }
+
+    /**
+     * Load the newest definition of an object.
+     * @return the object or null if the object is free or unknown
+     */
+    PdfObject load(int number) throws IOException {
+        XrefChain.Entry e = chain.getEntry(0, number);
+        if ( e == null ) return null;
+        if ( e.type == XrefChain.IN_USE ) {
+            return parse( e.offset, null );
+        } else if ( e.type == XrefChain.COMPRESSED ) {
+            return loadCompressed( (int)e.offset, e.generation, number );
+        }
+        return null;
+    }
+
+    /**
+     * Parse the indirect object at a file offset, for instance an old
+     * definition of an object.
+     */
+    PdfObject parse(long offset) throws IOException {
+        return parse( offset, null );
+    }
+
+    /**
+     * Parse an indirect object at a file offset.
+     * @param stream If not null, the offset of stream data is stored here
+     */
+    private PdfObject parse(long offset, long[] stream) throws IOException {
+        PdfLexer lexer = new PdfLexer( chain, offset );
+        try {
+            // n g obj
+            lexer.token();
+            lexer.token();
+            if ( !"obj".equals( lexer.token() ) ) {
+                throw new IOException("invalid object at " + offset);
+            }
+            PdfObject obj = lexer.object();
+            if ( stream != null ) stream[0] = lexer.streamStart() ? lexer.position() : -1;
+            return obj;
+        } catch (PdfLexer.Truncated e) {
+            throw new IOException("unexpected end of file at " + offset);
+        }
+    }
+
+    /**
+     * Load an object from an object stream.
+     */
+    private PdfObject loadCompressed(int stream, int index, int number) throws IOException {
+        if ( stream != objectStream ) {
+            readObjectStream(stream);
+        }
+        if ( index >= objectNumbers.length || objectNumbers[index] != number ) {
+            index = -1;
+            for ( int i = 0; i < objectNumbers.length; i++ ) {
+                if ( objectNumbers[i] == number ) index = i;
+            }
+            if ( index < 0 ) return null;
+        }
+        try {
+            return new PdfLexer( objectStreamData, objectOffsets[index] ).object();
+        } catch (PdfLexer.Truncated e) {
+            throw new IOException("invalid object " + number + " in object stream " + stream);
+        }
+    }
+
+    private void readObjectStream(int number) throws IOException {
+        XrefChain.Entry e = chain.getEntry(0, number);
+        if ( e == null || e.type != XrefChain.IN_USE ) {
+            throw new IOException("object stream " + number + " not found");
+        }
+        long[] start = new long[1];
+        PdfObject obj = parse( e.offset, start );
+        if ( obj == null || !obj.isDictionary() || start[0] < 0 ) {
+            throw new IOException("object stream " + number + " expected");
+        }
+        PdfDictionary dict = (PdfDictionary)resolve(obj);
+
+        PdfNumber length = dict.getAsNumber(PdfName.LENGTH);
+        if ( length == null ) throw new IOException("object stream " + number + " without length");
+        byte[] data = chain.read( start[0], length.intValue() );
+        PdfObject filter = dict.get(PdfName.FILTER);
+        if ( filter != null && filter.isArray() ) {
+            filter = ((PdfArray)filter).size() == 1 ? ((PdfArray)filter).getPdfObject(0) : null;
+        }
+        if ( PdfName.FLATEDECODE.equals(filter) ) {
+            data = XrefChain.inflate(data);
+        } else if ( filter != null ) {
+            throw new IOException("unsupported filter " + filter + " of object stream " + number);
+        }
+
+        PdfNumber n = dict.getAsNumber(PdfName.N);
+        PdfNumber first = dict.getAsNumber(PdfName.FIRST);
+        if ( n == null || first == null ) throw new IOException("invalid object stream " + number);
+        int[] numbers = new int[ n.intValue() ];
+        int[] offsets = new int[ n.intValue() ];
+        PdfLexer lexer = new PdfLexer( data, 0 );
+        try {
+            for ( int i = 0; i < numbers.length; i++ ) {
+                numbers[i] = Integer.parseInt( lexer.token() );
+                offsets[i] = first.intValue() + Integer.parseInt( lexer.token() );
+            }
+        } catch (NumberFormatException x) {
+            throw new IOException("invalid object stream " + number);
+        } catch (PdfLexer.Truncated x) {
+            throw new IOException("invalid object stream " + number);
+        }
+
+        objectStream = number;
+        objectStreamData = data;
+        objectNumbers = numbers;
+        objectOffsets = offsets;
+    }
+
+    /**
+     * Replace references in an object by the objects they refer to, except
+     * for links to other parts of the document, such as the page and the
+     * parent of an annotation, and references to pages.
+     */
+    PdfObject resolve(PdfObject obj) throws IOException {
+        return resolve( obj, new HashSet<Integer>() );
+    }
+
+    private PdfObject resolve(PdfObject obj, Set<Integer> path) throws IOException {
+        if ( obj == null ) return null;
+        if ( obj.isIndirect() ) {
+            int number = ((PdfIndirectReference)obj).getNumber();
+            if ( !path.add(number) ) return PdfNull.PDFNULL;
+            PdfObject target = load(number);
+            if ( target != null && target.isDictionary() && isPageNode( (PdfDictionary)target ) ) {
+                target = obj;
+            } else {
+                target = resolve( target, path );
+            }
+            path.remove(number);
+            return target == null ? PdfNull.PDFNULL : target;
+        }
+        if ( obj.isDictionary() ) {
+            PdfDictionary dict = (PdfDictionary)obj;
+            for ( PdfName key : new ArrayList<PdfName>( dict.getKeys() ) ) {
+                if ( !LINKS.contains(key) ) dict.put( key, resolve( dict.get(key), path ) );
+            }
+        } else if ( obj.isArray() ) {
+            PdfArray array = (PdfArray)obj;
+            for ( int i = 0; i < array.size(); i++ ) {
+                array.set( i, resolve( array.getPdfObject(i), path ) );
+            }
+        }
+        return obj;
+    }
+
+    private static boolean isPageNode(PdfDictionary dict) {
+        PdfObject type = dict.get(PdfName.TYPE);
+        return PdfName.PAGE.equals(type) || PdfName.PAGES.equals(type);
+    }
+
+    /**
+     * Get the number of the page a reference points to. The page tree is
+     * walked up from the page and only the kids before each node are
+     * counted, so the rest of the tree is not loaded.
+     * @return the page number or 0 if the object is not a page
+     */
+    int pageNumber(PdfObject ref) throws IOException {
+        if ( ref == null || !ref.isIndirect() ) return 0;
+        PdfIndirectReference node = (PdfIndirectReference)ref;
+        PdfObjectKey key = new PdfObjectKey(node);
+        Integer cached = pages.get(key);
+        if ( cached != null ) return cached.intValue();
+
+        int number = 0;
+        PdfObject obj = load( node.getNumber() );
+        if ( obj != null && obj.isDictionary() && PdfName.PAGE.equals( ((PdfDictionary)obj).get(PdfName.TYPE) ) ) {
+            number = 1;
+            PdfDictionary dict = (PdfDictionary)obj;
+            Set<Integer> seen = new HashSet<Integer>();
+            PdfObject parentRef;
+            while ( (parentRef = dict.get(PdfName.PARENT)) != null && parentRef.isIndirect() ) {
+                PdfIndirectReference parentNode = (PdfIndirectReference)parentRef;
+                PdfObject parent = seen.add( parentNode.getNumber() ) ? load( parentNode.getNumber() ) : null;
+                PdfObject kids = parent != null && parent.isDictionary()
+                               ? resolveDirect( ((PdfDictionary)parent).get(PdfName.KIDS) ) : null;
+                if ( kids == null || !kids.isArray() ) {
+                    number = 0;
+                    break;
+                }
+                int index = indexOf( (PdfArray)kids, node );
+                if ( index < 0 ) {
+                    number = 0;
+                    break;
+                }
+                PdfObject count = resolveDirect( ((PdfDictionary)parent).get(PdfName.COUNT) );
+                if ( count != null && count.isNumber()
+                     && ((PdfNumber)count).intValue() == ((PdfArray)kids).size() ) {
+                    // all kids are pages, unless the tree has empty nodes
+                    number += index;
+                } else {
+                    for ( int i = 0; i < index; i++ ) {
+                        number += countPages( ((PdfArray)kids).getPdfObject(i) );
+                    }
+                }
+                node = parentNode;
+                dict = (PdfDictionary)parent;
+            }
+        }
+        pages.put( key, number );
+        return number;
+    }
+
+    private static int indexOf(PdfArray kids, PdfIndirectReference node) {
+        for ( int i = 0; i < kids.size(); i++ ) {
+            PdfObject kid = kids.getPdfObject(i);
+            if ( kid != null && kid.isIndirect()
+                 && ((PdfIndirectReference)kid).getNumber() == node.getNumber() ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the number of pages below a node of the page tree.
+     */
+    private int countPages(PdfObject kid) throws IOException {
+        if ( kid == null || !kid.isIndirect() ) return 0;
+        int number = ((PdfIndirectReference)kid).getNumber();
+        Integer cached = counts.get(number);
+        if ( cached != null ) return cached.intValue();
+        int count = 1;
+        PdfObject obj = load(number);
+        if ( obj != null && obj.isDictionary() && PdfName.PAGES.equals( ((PdfDictionary)obj).get(PdfName.TYPE) ) ) {
+            PdfObject n = resolveDirect( ((PdfDictionary)obj).get(PdfName.COUNT) );
+            count = n != null && n.isNumber() ? ((PdfNumber)n).intValue() : 0;
+        }
+        counts.put( number, count );
+        return count;
+    }
+
+    private PdfObject resolveDirect(PdfObject obj) throws IOException {
+        return obj != null && obj.isIndirect() ? load( ((PdfIndirectReference)obj).getNumber() ) : obj;
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import com.itextpdf.text.pdf.PdfIndirectReference;
+
+/**
+ * Indirect reference that is not bound to a reader. iText only creates
+ * references for its readers and writers.
+ */
+class ObjectReference extends PdfIndirectReference {
+
+    ObjectReference(int number, int generation) {
+        this.number = number;
+        this.generation = generation;
+        this.type = INDIRECT;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+/**
+ * Options that control how a PDF file is inspected.
+ */
+public class Options {
+    /**
+     * Output formats.
+     */
+    public static enum Format {
+        /** XFDF with additional Marginalia elements */
+        XML("xml"),
+        /** Binary column blocks, see {@link ColumnWriter} */
+        BINARY("mcol"),
+        /** One JSON object per annotation, see {@link JsonLinesWriter} */
+        JSONL("jsonl"),
+        /** Pages and annotation shapes as SVG, see {@link SvgWriter} */
+        SVG("svg");
+
+        /** Extension of output files in this format */
+        public final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    /**
+     * Output format.
+     */
+    public Format format = Format.XML;
+
+    /**
+     * Serialize the annotations of each page as soon as the page has been
+     * read. The list of pages is then written after the annotations.
+     */
+    public boolean stream = false;
+
+    /**
+     * Open the PDF file for partial reading from a memory-mapped file, so
+     * objects are only parsed when they are needed.
+     */
+    public boolean partial = false;
+
+    /**
+     * Resolve the text covered by markup annotations, see {@link TextResolver}.
+     */
+    public boolean text = false;
+
+    /**
+     * Write repeated attribute values such as authors and colors once in a
+     * table and refer to them by index, see {@link ValueTable}. Only
+     * supported for XML output.
+     */
+    public boolean values = false;
+
+    /**
+     * Link replies to the annotations they reply to and nest popups in the
+     * annotations they belong to, see {@link ReplyIndex}. Only supported
+     * for XML output.
+     */
+    public boolean replies = false;
+
+    /**
+     * Only report annotations changed by this number of the newest
+     * incremental updates, see {@link DeltaInspector}. 0 to report all
+     * annotations.
+     */
+    public int delta = 0;
+
+    /**
+     * Only report annotations changed since the revision with this
+     * cross-reference offset, or -1. Takes precedence over {@link #delta}.
+     */
+    public long since = -1;
+
+    /**
+     * Whether only changed annotations are reported.
+     */
+    public boolean isDelta() {
+        return delta > 0 || since >= 0;
+    }
+
+    /**
+     * Cache to take results from and add results to, or <code>null</code>.
+     */
+    public ResultCache cache = null;
+
+    /**
+     * Metrics to record timings and counters to, or <code>null</code>.
+     */
+    public Metrics metrics = null;
+
+    /**
+     * Only report annotations and pages selected by this filter, or
+     * <code>null</code> for all. Pages outside of the page ranges are not
+     * read and annotations are checked before they are decoded.
+     */
+    public AnnotationFilter filter = null;
+}
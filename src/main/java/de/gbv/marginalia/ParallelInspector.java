@@ -0,0 +1,242 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+
+import org.xml.sax.SAXException;
+import de.gbv.xml.SimpleXMLWriter;
+import de.gbv.xml.SimpleXMLCreator;
+
+/**
+ * Inspects a single large PDF file with several threads.
+ *
+ * The pages are split into ranges that are processed in parallel. PdfReader
+ * is not thread-safe, so each worker thread opens its own partial reader on
+ * the same file. Partial readers are always used, independent of
+ * {@link Options#partial}. Each range is serialized into a page fragment and an
+ * annotation fragment, which are stitched together in page order. The output
+ * is the same as the output of {@link Marginalia#inspect}.
+ */
+public class ParallelInspector {
+    private final int threads;
+
+    /** Number of page ranges per thread, for better load balancing. */
+    private static final int RANGES_PER_THREAD = 4;
+
+    /**
+     * @param threads Number of worker threads, or 0 for one per processor
+     */
+    public ParallelInspector(int threads) {
+        if ( threads <= 0 ) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Serialized pages and annotations of a page range.
+     */
+    private static class Fragment {
+        String pages;
+        String annots;
+    }
+
+    /**
+     * Inspect a PDF file and write the info to a writer.
+     * @param writer Writer to a text file
+     * @param filename Path to the PDF file
+     * @param options Options to control inspection
+     */
+    public void inspect(PrintWriter writer, String filename, Options options)
+        throws IOException, SAXException {
+        writer.flush();
+        inspect( new SimpleXMLWriter(writer), filename, options );
+    }
+
+    /**
+     * Inspect a PDF file and write the info as UTF-8 to a stream.
+     * @param out Stream to write to, is flushed but not closed
+     * @param filename Path to the PDF file
+     * @param options Options to control inspection
+     */
+    public void inspect(OutputStream out, String filename, Options options)
+        throws IOException, SAXException {
+        inspect( new SimpleXMLWriter(out), filename, options );
+    }
+
+    private void inspect(SimpleXMLWriter xmlhandler, String filename, final Options options)
+        throws IOException, SAXException {
+        boolean stream = options.stream;
+
+        final RandomAccessFileOrArray source = new RandomAccessFileOrArray(filename);
+        PdfReader reader = new PdfReader( new RandomAccessFileOrArray(source), null );
+        int pages = reader.getNumberOfPages();
+        reader.close();
+
+        final List<PdfReader> readers = Collections.synchronizedList( new ArrayList<PdfReader>() );
+        final ThreadLocal<PdfReader> localReader = new ThreadLocal<PdfReader>() {
+            protected PdfReader initialValue() {
+                try {
+                    PdfReader r = new PdfReader( new RandomAccessFileOrArray(source), null );
+                    readers.add(r);
+                    return r;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        int size = Math.max( 1, (pages + threads * RANGES_PER_THREAD - 1)
+                                / (threads * RANGES_PER_THREAD) );
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Fragment>> fragments = new ArrayList<Future<Fragment>>();
+        try {
+            for ( int from = 1; from <= pages; from += size ) {
+                final int first = from;
+                final int last = Math.min( pages, from + size - 1 );
+                fragments.add( pool.submit( new Callable<Fragment>() {
+                    public Fragment call() throws Exception {
+                        return inspectRange( localReader.get(), first, last, options );
+                    }
+                }));
+            }
+
+            xmlhandler.startDocument();
+            SimpleXMLCreator xml = new SimpleXMLCreator( xmlhandler, Annotation.namespaces, true );
+            xml.startElement("annots");
+
+            if ( stream ) {
+                List<String> pageFragments = new ArrayList<String>();
+                for ( Future<Fragment> f : fragments ) {
+                    Fragment fragment = get(f);
+                    xmlhandler.printRaw( fragment.annots );
+                    xmlhandler.flush();
+                    pageFragments.add( fragment.pages );
+                }
+                xml.startElement("m","pages");
+                for ( String s : pageFragments ) {
+                    xmlhandler.printRaw(s);
+                }
+                xml.endElement();
+            } else {
+                List<String> annotFragments = new ArrayList<String>();
+                xml.startElement("m","pages");
+                for ( Future<Fragment> f : fragments ) {
+                    Fragment fragment = get(f);
+                    xmlhandler.printRaw( fragment.pages );
+                    annotFragments.add( fragment.annots );
+                }
+                xml.endElement();
+                for ( String s : annotFragments ) {
+                    xmlhandler.printRaw(s);
+                }
+            }
+
+            xml.endAll();
+        } finally {
+            pool.shutdownNow();
+            // workers may still read after a failure; wait before closing
+            try {
+                pool.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (readers) {
+                for ( PdfReader r : readers ) {
+                    r.close();
+                }
+            }
+            source.close();
+        }
+    }
+
+    /**
+     * Serialize pages and annotations of a page range.
+     * Page elements are nested in <code>m:pages</code> and annotations are
+     * nested in <code>annots</code>, so they are written at different depths.
+     */
+    private static Fragment inspectRange(PdfReader reader, int first, int last,
+                                         Options options)
+        throws IOException, SAXException {
+        StringWriter pageBuffer = new StringWriter();
+        PrintWriter pageWriter = new PrintWriter(pageBuffer);
+        SimpleXMLWriter pageHandler = new SimpleXMLWriter(pageWriter, 2);
+        SimpleXMLCreator pageXml = new SimpleXMLCreator( pageHandler, Annotation.namespaces );
+
+        StringWriter annotBuffer = new StringWriter();
+        PrintWriter annotWriter = new PrintWriter(annotBuffer);
+        SimpleXMLWriter annotHandler = new SimpleXMLWriter(annotWriter, 1);
+        SimpleXMLCreator annotXml = new SimpleXMLCreator( annotHandler, Annotation.namespaces );
+
+        TextResolver resolver = options.text ? new TextResolver(reader) : null;
+        AnnotationFilter filter = options.filter;
+
+        for (int pageNum = AnnotationFilter.nextPage(filter, first); pageNum <= last;
+             pageNum = AnnotationFilter.nextPage(filter, pageNum + 1)) {
+            PdfDictionary pageDic = reader.getPageN(pageNum);
+            Marginalia.writePage(pageXml, reader, pageNum);
+
+            PdfArray rawannots = pageDic.getAsArray(PdfName.ANNOTS);
+            if ( rawannots != null ) {
+                for(int i=0; i<rawannots.size(); i++) {
+                    PdfObject obj = rawannots.getDirectObject(i);
+                    if (!obj.isDictionary()) continue;
+                    if ( filter != null && !filter.accepts( (PdfDictionary)obj ) ) continue;
+                    Annotation a = new Annotation( (PdfDictionary)obj, pageNum );
+                    if ( resolver != null ) resolver.resolve(a);
+                    a.serializeXML( annotXml );
+                }
+            }
+            reader.releasePage(pageNum);
+        }
+
+        pageHandler.flush();
+        annotHandler.flush();
+        Fragment fragment = new Fragment();
+        fragment.pages = pageBuffer.toString();
+        fragment.annots = annotBuffer.toString();
+        return fragment;
+    }
+
+    /**
+     * Wait for a fragment and unwrap the exception of a failed worker.
+     */
+    private static Fragment get(Future<Fragment> f) throws IOException, SAXException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof IOException ) throw (IOException)cause;
+            if ( cause instanceof SAXException ) throw (SAXException)cause;
+            if ( cause instanceof RuntimeException ) throw (RuntimeException)cause;
+            throw new SAXException( cause.toString() );
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfBoolean;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNull;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfString;
+
+/**
+ * Tokenizer and parser of PDF objects, used for cross-reference sections
+ * by {@link XrefChain} and for single objects by {@link ObjectLoader}.
+ *
+ * The data is either a byte array or a file read through an XrefChain.
+ * A file is read in chunks as a window that is moved forward, so only
+ * the bytes of the current token are kept. References are returned as
+ * {@link ObjectReference} without reader and streams are not read.
+ */
+class PdfLexer {
+    /** Thrown when the end of the data is reached within a token or object */
+    static class Truncated extends IOException {
+        private static final long serialVersionUID = 1L;
+        Truncated() {
+            super("unexpected end of data");
+        }
+    }
+
+    /** Number of bytes read from a file at once */
+    private static final int CHUNK = 4096;
+
+    private final XrefChain chain;
+    private byte[] buffer;
+    private long bufferStart;
+    private int pos;
+    /** Position to go back to, or -1 */
+    private long mark = -1;
+
+    /**
+     * Parse a byte array, starting at a given position.
+     */
+    PdfLexer(byte[] data, int pos) {
+        this.chain = null;
+        this.buffer = data;
+        this.pos = pos;
+    }
+
+    /**
+     * Parse a file, starting at a given offset.
+     */
+    PdfLexer(XrefChain chain, long offset) throws IOException {
+        this.chain = chain;
+        seek(offset);
+    }
+
+    /**
+     * Continue at a file offset.
+     */
+    void seek(long offset) throws IOException {
+        bufferStart = offset;
+        buffer = chain.read( offset, CHUNK );
+        pos = 0;
+    }
+
+    /**
+     * Get the file offset of the next byte, or the position in the array.
+     */
+    long position() {
+        return bufferStart + pos;
+    }
+
+    /**
+     * Get the next byte. Bytes before the current window are dropped when
+     * the next chunk is read, unless they follow the mark.
+     */
+    private int peek() throws IOException {
+        while ( pos >= buffer.length ) {
+            if ( chain == null ) throw new Truncated();
+            byte[] more = chain.read( bufferStart + buffer.length, CHUNK );
+            if ( more.length == 0 ) throw new Truncated();
+            int keep = mark >= 0 ? (int)( mark - bufferStart ) : buffer.length;
+            byte[] window = new byte[ buffer.length - keep + more.length ];
+            System.arraycopy( buffer, keep, window, 0, buffer.length - keep );
+            System.arraycopy( more, 0, window, buffer.length - keep, more.length );
+            pos -= keep;
+            bufferStart += keep;
+            buffer = window;
+        }
+        return buffer[pos] & 0xff;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f' || c == 0;
+    }
+
+    private static boolean isDelimiter(int c) {
+        return c == '(' || c == ')' || c == '<' || c == '>' || c == '['
+            || c == ']' || c == '{' || c == '}' || c == '/' || c == '%';
+    }
+
+    static boolean isInteger(String token) {
+        if ( token.length() == 0 || token.length() > 18 ) return false;
+        for ( int i = 0; i < token.length(); i++ ) {
+            char c = token.charAt(i);
+            if ( c < '0' || c > '9' ) return false;
+        }
+        return true;
+    }
+
+    void skipWhitespace() throws IOException {
+        int c;
+        while ( isWhitespace( c = peek() ) || c == '%' ) {
+            if ( c == '%' ) {
+                while ( (c = peek()) != '\n' && c != '\r' ) pos++;
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * Read a keyword or number. An empty string is returned at a delimiter.
+     */
+    String token() throws IOException {
+        skipWhitespace();
+        StringBuilder s = new StringBuilder();
+        while ( true ) {
+            int c;
+            try {
+                c = peek();
+            } catch (Truncated e) {
+                // a token may end at the end of the data
+                if ( s.length() == 0 ) throw e;
+                break;
+            }
+            if ( isWhitespace(c) || isDelimiter(c) ) break;
+            s.append( (char)c );
+            pos++;
+        }
+        return s.toString();
+    }
+
+    /**
+     * Read a non-negative integer.
+     * @throws IOException if the next token is no integer
+     */
+    long integer() throws IOException {
+        String token = token();
+        if ( !isInteger(token) ) {
+            throw new IOException("integer expected at " + position() + ": '" + token + "'");
+        }
+        return Long.parseLong(token);
+    }
+
+    /**
+     * Check for the keyword "stream" and skip to the stream data.
+     */
+    boolean streamStart() throws IOException {
+        if ( !"stream".equals( token() ) ) return false;
+        if ( peek() == '\r' ) pos++;
+        if ( peek() == '\n' ) pos++;
+        return true;
+    }
+
+    PdfObject object() throws IOException {
+        skipWhitespace();
+        int c = peek();
+        if ( c == '/' ) {
+            pos++;
+            return name();
+        } else if ( c == '(' ) {
+            pos++;
+            return literal();
+        } else if ( c == '[' ) {
+            pos++;
+            PdfArray array = new PdfArray();
+            while ( true ) {
+                skipWhitespace();
+                if ( peek() == ']' ) break;
+                array.add( object() );
+            }
+            pos++;
+            return array;
+        } else if ( c == '<' ) {
+            pos++;
+            if ( peek() != '<' ) return hex();
+            pos++;
+            PdfDictionary dict = new PdfDictionary();
+            while ( true ) {
+                skipWhitespace();
+                if ( peek() == '>' ) break;
+                if ( peek() != '/' ) throw new IOException("name expected at " + position());
+                pos++;
+                PdfName key = name();
+                dict.put( key, object() );
+            }
+            pos++;
+            if ( peek() != '>' ) throw new IOException("end of dictionary expected at " + position());
+            pos++;
+            return dict;
+        }
+
+        String token = token();
+        if ( "true".equals(token) ) return PdfBoolean.PDFTRUE;
+        if ( "false".equals(token) ) return PdfBoolean.PDFFALSE;
+        if ( "null".equals(token) ) return PdfNull.PDFNULL;
+        if ( isInteger(token) ) {
+            // n g R, the generation is read again if it is no reference
+            mark = position();
+            try {
+                String generation = token();
+                if ( isInteger(generation) && token.length() < 10 && generation.length() < 10 ) {
+                    skipWhitespace();
+                    if ( peek() == 'R' ) {
+                        pos++;
+                        return new ObjectReference( Integer.parseInt(token),
+                                                    Integer.parseInt(generation) );
+                    }
+                }
+                pos = (int)( mark - bufferStart );
+            } catch (Truncated e) {
+                // a number at the end of the data
+                pos = (int)( mark - bufferStart );
+            } finally {
+                mark = -1;
+            }
+        }
+        try {
+            Double.parseDouble(token);
+            return new PdfNumber(token);
+        } catch (NumberFormatException e) {
+            throw new IOException("unexpected token '" + token + "' at " + position());
+        }
+    }
+
+    private PdfName name() throws IOException {
+        StringBuilder s = new StringBuilder("/");
+        int c;
+        while ( !isWhitespace( c = peek() ) && !isDelimiter(c) ) {
+            s.append( (char)c );
+            pos++;
+        }
+        return new PdfName( PdfName.decodeName( s.toString() ) );
+    }
+
+    private PdfString literal() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int depth = 1;
+        while ( true ) {
+            int c = peek();
+            pos++;
+            if ( c == '\\' ) {
+                c = peek();
+                pos++;
+                switch ( c ) {
+                    case 'n': out.write('\n'); break;
+                    case 'r': out.write('\r'); break;
+                    case 't': out.write('\t'); break;
+                    case 'b': out.write('\b'); break;
+                    case 'f': out.write('\f'); break;
+                    case '\r':
+                        if ( peek() == '\n' ) pos++;
+                        break;
+                    case '\n':
+                        break;
+                    default:
+                        if ( c >= '0' && c <= '7' ) {
+                            int value = c - '0';
+                            for ( int i = 0; i < 2 && peek() >= '0' && peek() <= '7'; i++ ) {
+                                value = value * 8 + peek() - '0';
+                                pos++;
+                            }
+                            out.write(value);
+                        } else {
+                            out.write(c);
+                        }
+                }
+            } else if ( c == '(' ) {
+                depth++;
+                out.write(c);
+            } else if ( c == ')' ) {
+                if ( --depth == 0 ) break;
+                out.write(c);
+            } else {
+                out.write(c);
+            }
+        }
+        return new PdfString( out.toByteArray() );
+    }
+
+    private PdfString hex() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int high = -1;
+        int c;
+        while ( (c = peek()) != '>' ) {
+            pos++;
+            int digit = Character.digit( (char)c, 16 );
+            if ( digit < 0 ) continue;
+            if ( high < 0 ) {
+                high = digit;
+            } else {
+                out.write( high * 16 + digit );
+                high = -1;
+            }
+        }
+        pos++;
+        if ( high >= 0 ) out.write( high * 16 );
+        return new PdfString( out.toByteArray() ).setHexWriting(true);
+    }
+}
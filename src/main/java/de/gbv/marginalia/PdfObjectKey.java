@@ -0,0 +1,30 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import com.itextpdf.text.pdf.PdfIndirectReference;
+
+/**
+ * Object number and generation of an indirect reference, usable as key.
+ */
+class PdfObjectKey {
+    final int number, generation;
+
+    PdfObjectKey(PdfIndirectReference ref) {
+        this.number = ref.getNumber();
+        this.generation = ref.getGeneration();
+    }
+
+    public boolean equals(Object o) {
+        if ( !(o instanceof PdfObjectKey) ) return false;
+        PdfObjectKey k = (PdfObjectKey)o;
+        return k.number == number && k.generation == generation;
+    }
+
+    public int hashCode() {
+        return number * 31 + generation;
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.gbv.xml.FloatFormat;
+
+/**
+ * Reads a spatial index of annotation regions written by
+ * {@link RegionIndexWriter} and answers region and point queries.
+ *
+ * The index file is memory-mapped, so opening an index only decodes the
+ * document names. Queries descend the R-tree of the requested page and
+ * only touch the nodes and entries that overlap the query region.
+ * Annotations with quad points match if one of their quads overlaps the
+ * region, other annotations match if their rectangle overlaps it.
+ */
+public class RegionIndex {
+    private final ByteBuffer data;
+    private final String[] documents;
+    private final int entries, nodes, pages, quadFloats;
+    private final int pageStart, nodeStart, entryStart, quadStart;
+
+    /**
+     * An annotation found by a query.
+     */
+    public static class Hit {
+        public final String document;
+        public final int page;
+        /** Position of the annotation on its page, starting with 0 */
+        public final int ordinal;
+        public final float left, bottom, right, top;
+
+        Hit(String document, int page, int ordinal,
+            float left, float bottom, float right, float top) {
+            this.document = document;
+            this.page = page;
+            this.ordinal = ordinal;
+            this.left = left;
+            this.bottom = bottom;
+            this.right = right;
+            this.top = top;
+        }
+
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            s.append(document).append('\t').append(page).append('\t').append(ordinal).append('\t');
+            FloatFormat.append( s, left ).append(',');
+            FloatFormat.append( s, bottom ).append(',');
+            FloatFormat.append( s, right ).append(',');
+            FloatFormat.append( s, top );
+            return s.toString();
+        }
+    }
+
+    public RegionIndex(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            data = raf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, raf.length() );
+        } finally {
+            raf.close();
+        }
+        if ( data.limit() < RegionIndexWriter.HEADER_SIZE
+             || data.getInt(0) != RegionIndexWriter.MAGIC ) {
+            throw new IOException("not a Marginalia region index");
+        }
+        int version = data.getInt(4);
+        if ( version != RegionIndexWriter.VERSION ) {
+            throw new IOException("unsupported version " + version);
+        }
+        int d = data.getInt(12);
+        entries = data.getInt(16);
+        nodes = data.getInt(20);
+        pages = data.getInt(24);
+        quadFloats = data.getInt(28);
+
+        pageStart = RegionIndexWriter.HEADER_SIZE;
+        nodeStart = pageStart + 8 * pages;
+        entryStart = nodeStart + RegionIndexWriter.NODE_SIZE * nodes;
+        quadStart = entryStart + RegionIndexWriter.ENTRY_SIZE * entries;
+
+        ByteBuffer names = data.duplicate();
+        names.position( quadStart + 4 * quadFloats );
+        documents = new String[d];
+        for ( int i = 0; i < d; i++ ) {
+            byte[] bytes = new byte[ names.getInt() ];
+            names.get(bytes);
+            documents[i] = new String( bytes, "UTF-8" );
+        }
+    }
+
+    /** Number of indexed annotations */
+    public int size() {
+        return entries;
+    }
+
+    /** Names of the indexed documents */
+    public String[] documents() {
+        return documents.clone();
+    }
+
+    /**
+     * Find all annotations at a point.
+     * @param page Page number, or 0 for all pages
+     */
+    public List<Hit> query(int page, float x, float y) {
+        return query(page, x, y, x, y);
+    }
+
+    /**
+     * Find all annotations that overlap a region.
+     * @param page Page number, or 0 for all pages
+     */
+    public List<Hit> query(int page, float left, float bottom, float right, float top) {
+        List<Hit> hits = new ArrayList<Hit>();
+        if ( page > 0 ) {
+            int root = findRoot(page);
+            if ( root >= 0 ) search( root, left, bottom, right, top, hits );
+        } else {
+            for ( int i = 0; i < pages; i++ ) {
+                search( data.getInt( pageStart + 8 * i + 4 ), left, bottom, right, top, hits );
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Binary search the root node of a page, or -1.
+     */
+    private int findRoot(int page) {
+        int lo = 0, hi = pages - 1;
+        while ( lo <= hi ) {
+            int mid = (lo + hi) >>> 1;
+            int p = data.getInt( pageStart + 8 * mid );
+            if ( p < page ) {
+                lo = mid + 1;
+            } else if ( p > page ) {
+                hi = mid - 1;
+            } else {
+                return data.getInt( pageStart + 8 * mid + 4 );
+            }
+        }
+        return -1;
+    }
+
+    private void search(int root, float left, float bottom, float right, float top,
+                        List<Hit> hits) {
+        int[] stack = new int[64];
+        int depth = 0;
+        stack[depth++] = root;
+        while ( depth > 0 ) {
+            int node = nodeStart + RegionIndexWriter.NODE_SIZE * stack[--depth];
+            if ( !overlaps( node, left, bottom, right, top ) ) continue;
+            int level = data.getInt( node + 16 );
+            int first = data.getInt( node + 20 );
+            int count = data.getInt( node + 24 );
+            if ( level > 0 ) {
+                if ( depth + count > stack.length ) {
+                    int[] s = new int[ 2 * ( depth + count ) ];
+                    System.arraycopy( stack, 0, s, 0, depth );
+                    stack = s;
+                }
+                for ( int i = count - 1; i >= 0; i-- ) stack[depth++] = first + i;
+                continue;
+            }
+            for ( int i = first; i < first + count; i++ ) {
+                int e = entryStart + RegionIndexWriter.ENTRY_SIZE * i;
+                if ( !overlaps( e + 12, left, bottom, right, top ) ) continue;
+                if ( !quadsOverlap( e, left, bottom, right, top ) ) continue;
+                hits.add( new Hit( documents[ data.getInt(e) ], data.getInt(e + 4),
+                    data.getInt(e + 8), data.getFloat(e + 12), data.getFloat(e + 16),
+                    data.getFloat(e + 20), data.getFloat(e + 24) ) );
+            }
+        }
+    }
+
+    /**
+     * Check whether the box at a byte position overlaps a region.
+     */
+    private boolean overlaps(int pos, float left, float bottom, float right, float top) {
+        return data.getFloat(pos) <= right && data.getFloat(pos + 8) >= left
+            && data.getFloat(pos + 4) <= top && data.getFloat(pos + 12) >= bottom;
+    }
+
+    /**
+     * Check whether one of the quads of an entry overlaps a region.
+     * Entries without quads always pass.
+     */
+    private boolean quadsOverlap(int entry, float left, float bottom, float right, float top) {
+        int first = data.getInt(entry + 28);
+        int count = data.getInt(entry + 32);
+        if ( count < 8 ) return true;
+        for ( int q = first; q + 8 <= first + count; q += 8 ) {
+            float l = Float.POSITIVE_INFINITY, b = Float.POSITIVE_INFINITY;
+            float r = Float.NEGATIVE_INFINITY, t = Float.NEGATIVE_INFINITY;
+            for ( int i = 0; i < 8; i += 2 ) {
+                float x = data.getFloat( quadStart + 4 * (q + i) );
+                float y = data.getFloat( quadStart + 4 * (q + i + 1) );
+                l = Math.min( l, x );
+                r = Math.max( r, x );
+                b = Math.min( b, y );
+                t = Math.max( t, y );
+            }
+            if ( l <= right && r >= left && b <= top && t >= bottom ) return true;
+        }
+        return false;
+    }
+}
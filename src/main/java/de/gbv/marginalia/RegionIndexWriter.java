@@ -0,0 +1,321 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfRectangle;
+import com.itextpdf.text.pdf.PdfReader;
+
+import de.gbv.marginalia.ColumnWriter.FloatColumn;
+import de.gbv.marginalia.ColumnWriter.IntColumn;
+
+/**
+ * Builds a spatial index of the annotation regions of many documents.
+ *
+ * Each annotation is stored with its rectangle and quad points. The
+ * annotations of each page number are packed into an R-tree, bulk-loaded
+ * with the Sort-Tile-Recursive algorithm, so nodes are full and children of
+ * a node are stored next to each other. All numbers are big-endian. The
+ * file consists of:
+ *
+ * <pre>
+ * int MAGIC, int VERSION, int fanout
+ * int d (documents), int n (entries), int m (nodes), int p (pages), int q (quad floats)
+ * int[2p] page number and root node of each page, sorted by page number
+ * m nodes: float left, bottom, right, top, int level, int first child, int children
+ * n entries: int document, int page, int ordinal, float left, bottom, right, top,
+ *            int first quad float, int quad floats
+ * float[q] quad points
+ * d strings with the document names
+ * </pre>
+ *
+ * Children of nodes on level 0 are entries, children of other nodes are
+ * nodes. The ordinal counts the annotations of a page, starting with 0.
+ *
+ * @see RegionIndex
+ */
+public class RegionIndexWriter implements AnnotationVisitor {
+    public static final int MAGIC = 0x4d524958; // "MRIX"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int NODE_SIZE = 28;
+    public static final int ENTRY_SIZE = 36;
+
+    /** Default number of children per node */
+    public static final int DEFAULT_FANOUT = 16;
+
+    private final int fanout;
+
+    private final List<String> documents = new ArrayList<String>();
+    private final IntColumn document = new IntColumn();
+    private final IntColumn page = new IntColumn();
+    private final IntColumn ordinal = new IntColumn();
+    private final FloatColumn box = new FloatColumn();
+    private final IntColumn quadStart = new IntColumn();
+    private final FloatColumn quads = new FloatColumn();
+
+    private int currentOrdinal;
+
+    public RegionIndexWriter() {
+        this(DEFAULT_FANOUT);
+    }
+
+    public RegionIndexWriter(int fanout) {
+        this.fanout = Math.max( 2, fanout );
+        quadStart.add(0);
+    }
+
+    /**
+     * Start a new document. All following annotations belong to it.
+     */
+    public void startDocument(String name) {
+        documents.add(name);
+        currentOrdinal = 0;
+    }
+
+    public void page(PdfReader reader, int pageNum) {
+        currentOrdinal = 0;
+    }
+
+    public void annotation(Annotation a) {
+        PdfDictionary dict = a.getDictionary();
+        PdfRectangle r = Annotation.RECT.getRectangle(dict);
+        float[] rect = r == null ? null
+                     : new float[] { r.left(), r.bottom(), r.right(), r.top() };
+        add( a.getPageNumber(), currentOrdinal++, rect, Annotation.COORDS.getCoords(dict) );
+    }
+
+    /**
+     * Add a region of the current document. The bounding box of the region
+     * is the rectangle, extended to include all quads.
+     * @param pageNum Page number
+     * @param ordinal Position of the annotation on its page
+     * @param rect left, bottom, right and top, or null
+     * @param coords quad points, eight values per quad, or null
+     */
+    public void add(int pageNum, int ordinal, float[] rect, float[] coords) {
+        if ( documents.isEmpty() ) startDocument("");
+        float left = Float.POSITIVE_INFINITY, bottom = Float.POSITIVE_INFINITY;
+        float right = Float.NEGATIVE_INFINITY, top = Float.NEGATIVE_INFINITY;
+        if ( rect != null ) {
+            left = Math.min( rect[0], rect[2] );
+            right = Math.max( rect[0], rect[2] );
+            bottom = Math.min( rect[1], rect[3] );
+            top = Math.max( rect[1], rect[3] );
+        }
+        if ( coords != null ) {
+            for ( int i = 0; i + 1 < coords.length; i += 2 ) {
+                left = Math.min( left, coords[i] );
+                right = Math.max( right, coords[i] );
+                bottom = Math.min( bottom, coords[i+1] );
+                top = Math.max( top, coords[i+1] );
+            }
+        }
+        if ( left > right ) return; // no geometry
+        if ( coords != null ) {
+            for ( float f : coords ) quads.add(f);
+        }
+
+        document.add( documents.size() - 1 );
+        page.add(pageNum);
+        this.ordinal.add(ordinal);
+        box.add(left);
+        box.add(bottom);
+        box.add(right);
+        box.add(top);
+        quadStart.add( quads.size );
+    }
+
+    /**
+     * Number of regions added so far.
+     */
+    public int size() {
+        return page.size;
+    }
+
+    /**
+     * Build the R-trees and write the index.
+     */
+    public void write(OutputStream stream) throws IOException {
+        int n = page.size;
+        final int[] pageNums = page.values;
+
+        // group entries by page
+        Integer[] sorted = new Integer[n];
+        for ( int i = 0; i < n; i++ ) sorted[i] = i;
+        Arrays.sort( sorted, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int x = pageNums[a], y = pageNums[b];
+                return x < y ? -1 : ( x == y ? a.compareTo(b) : 1 );
+            }
+        });
+
+        int[] order = new int[n];   // entries in file order
+        FloatColumn nodeBox = new FloatColumn();
+        IntColumn nodeLevel = new IntColumn();
+        IntColumn nodeFirst = new IntColumn();
+        IntColumn nodeCount = new IntColumn();
+        IntColumn pages = new IntColumn();
+
+        int start = 0;
+        while ( start < n ) {
+            int end = start;
+            while ( end < n && pageNums[ sorted[end] ] == pageNums[ sorted[start] ] ) end++;
+
+            // leaf level: entries of this page in STR order
+            int[] items = new int[ end - start ];
+            float[] boxes = new float[ 4 * items.length ];
+            for ( int i = 0; i < items.length; i++ ) {
+                items[i] = sorted[ start + i ];
+                System.arraycopy( box.values, 4 * items[i], boxes, 4 * i, 4 );
+            }
+            int[] perm = strOrder( boxes, items.length, fanout );
+            for ( int i = 0; i < items.length; i++ ) {
+                order[ start + i ] = items[ perm[i] ];
+            }
+            float[] childBoxes = new float[ boxes.length ];
+            for ( int i = 0; i < perm.length; i++ ) {
+                System.arraycopy( boxes, 4 * perm[i], childBoxes, 4 * i, 4 );
+            }
+
+            // build levels until a single root is left
+            int level = 0;
+            int childFirst = start;
+            int children = items.length;
+            while ( true ) {
+                int parents = ( children + fanout - 1 ) / fanout;
+                float[] parentBoxes = new float[ 4 * parents ];
+                int[] parentFirst = new int[parents];
+                int[] parentCount = new int[parents];
+                for ( int p = 0; p < parents; p++ ) {
+                    int from = p * fanout, to = Math.min( children, from + fanout );
+                    parentFirst[p] = childFirst + from;
+                    parentCount[p] = to - from;
+                    union( childBoxes, from, to, parentBoxes, p );
+                }
+
+                int[] parentPerm = parents > 1
+                    ? strOrder( parentBoxes, parents, fanout ) : new int[] { 0 };
+                childFirst = nodeLevel.size;
+                childBoxes = new float[ 4 * parents ];
+                for ( int i = 0; i < parents; i++ ) {
+                    int p = parentPerm[i];
+                    for ( int k = 0; k < 4; k++ ) nodeBox.add( parentBoxes[ 4 * p + k ] );
+                    nodeLevel.add(level);
+                    nodeFirst.add( parentFirst[p] );
+                    nodeCount.add( parentCount[p] );
+                    System.arraycopy( parentBoxes, 4 * p, childBoxes, 4 * i, 4 );
+                }
+                children = parents;
+                level++;
+                if ( parents == 1 ) break;
+            }
+            pages.add( pageNums[ sorted[start] ] );
+            pages.add( childFirst );
+            start = end;
+        }
+
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream(stream) );
+        out.writeInt( MAGIC );
+        out.writeInt( VERSION );
+        out.writeInt( fanout );
+        out.writeInt( documents.size() );
+        out.writeInt( n );
+        out.writeInt( nodeLevel.size );
+        out.writeInt( pages.size / 2 );
+        out.writeInt( quads.size );
+        pages.write(out);
+        for ( int i = 0; i < nodeLevel.size; i++ ) {
+            for ( int k = 0; k < 4; k++ ) out.writeFloat( nodeBox.values[ 4 * i + k ] );
+            out.writeInt( nodeLevel.values[i] );
+            out.writeInt( nodeFirst.values[i] );
+            out.writeInt( nodeCount.values[i] );
+        }
+        int quadOffset = 0;
+        int[] quadOffsets = new int[n];
+        for ( int i = 0; i < n; i++ ) {
+            quadOffsets[i] = quadOffset;
+            quadOffset += quadStart.values[ order[i] + 1 ] - quadStart.values[ order[i] ];
+        }
+        for ( int i = 0; i < n; i++ ) {
+            int e = order[i];
+            out.writeInt( document.values[e] );
+            out.writeInt( page.values[e] );
+            out.writeInt( ordinal.values[e] );
+            for ( int k = 0; k < 4; k++ ) out.writeFloat( box.values[ 4 * e + k ] );
+            out.writeInt( quadOffsets[i] );
+            out.writeInt( quadStart.values[e+1] - quadStart.values[e] );
+        }
+        for ( int i = 0; i < n; i++ ) {
+            int e = order[i];
+            for ( int j = quadStart.values[e]; j < quadStart.values[e+1]; j++ ) {
+                out.writeFloat( quads.values[j] );
+            }
+        }
+        for ( String name : documents ) {
+            ColumnWriter.writeString( out, name );
+        }
+        out.flush();
+    }
+
+    /**
+     * Compute the bounding box of boxes <code>from</code> to <code>to</code>
+     * and store it at position <code>p</code> of <code>target</code>.
+     */
+    private static void union(float[] boxes, int from, int to, float[] target, int p) {
+        float l = boxes[4*from], b = boxes[4*from+1], r = boxes[4*from+2], t = boxes[4*from+3];
+        for ( int i = from + 1; i < to; i++ ) {
+            l = Math.min( l, boxes[4*i] );
+            b = Math.min( b, boxes[4*i+1] );
+            r = Math.max( r, boxes[4*i+2] );
+            t = Math.max( t, boxes[4*i+3] );
+        }
+        target[4*p] = l;
+        target[4*p+1] = b;
+        target[4*p+2] = r;
+        target[4*p+3] = t;
+    }
+
+    /**
+     * Sort-Tile-Recursive order of boxes: sorted by center x into vertical
+     * slices, each slice sorted by center y, so that consecutive groups of
+     * <code>fanout</code> boxes are spatially close.
+     * @return indexes of the boxes in STR order
+     */
+    static int[] strOrder(final float[] boxes, int n, int fanout) {
+        Integer[] order = new Integer[n];
+        for ( int i = 0; i < n; i++ ) order[i] = i;
+        Arrays.sort( order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Float.compare( boxes[4*a] + boxes[4*a+2], boxes[4*b] + boxes[4*b+2] );
+            }
+        });
+        int leaves = ( n + fanout - 1 ) / fanout;
+        int slices = (int)Math.ceil( Math.sqrt( leaves ) );
+        int sliceSize = slices * fanout;
+        Comparator<Integer> byY = new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Float.compare( boxes[4*a+1] + boxes[4*a+3], boxes[4*b+1] + boxes[4*b+3] );
+            }
+        };
+        for ( int from = 0; from < n; from += sliceSize ) {
+            Arrays.sort( order, from, Math.min( n, from + sliceSize ), byY );
+        }
+        int[] result = new int[n];
+        for ( int i = 0; i < n; i++ ) result[i] = order[i];
+        return result;
+    }
+}
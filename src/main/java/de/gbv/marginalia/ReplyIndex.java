@@ -0,0 +1,108 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfIndirectReference;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+
+/**
+ * Links replies and popups to the annotations they belong to.
+ *
+ * Annotations are added with the indirect reference they have been read
+ * from while the pages are walked. The <code>/IRT</code> (in reply to) and
+ * <code>/Popup</code> references of an annotation are then looked up by
+ * object number and generation, so threads are resolved in time linear to
+ * the number of annotations and the referenced objects are not parsed
+ * again. Only parents that have not been added, for instance because they
+ * have been filtered out, are read from the file.
+ *
+ * When pages are processed one by one, {@link #endPage} drops the
+ * annotations of the finished page and keeps only their names, so later
+ * replies can still refer to them. Popups are linked within a page only.
+ *
+ * Replies get an <code>inreplyto</code> attribute with the name of their
+ * parent as in XFDF. Popups are nested in the annotation they belong to.
+ * Annotations without <code>/NM</code> are named by their object
+ * reference, such as <code>12 0 R</code>.
+ */
+public class ReplyIndex {
+    static final PdfName IRT = new PdfName("IRT");
+
+    private final Map<PdfObjectKey,Annotation> annotations
+        = new HashMap<PdfObjectKey,Annotation>();
+    private final Map<PdfObjectKey,String> names
+        = new HashMap<PdfObjectKey,String>();
+
+    /**
+     * Add an annotation.
+     * @param ref The object the annotation has been read from, as found in
+     *        the <code>/Annots</code> array. Direct objects are not added.
+     */
+    public void add(Annotation a, PdfObject ref) {
+        if ( ref == null || !ref.isIndirect() ) return;
+        PdfIndirectReference r = (PdfIndirectReference)ref;
+        a.setReference(r);
+        annotations.put( new PdfObjectKey(r), a );
+    }
+
+    /**
+     * Get an annotation by reference.
+     * @return the annotation or null if no annotation has been added with
+     *         this reference
+     */
+    public Annotation get(PdfObject ref) {
+        if ( ref == null || !ref.isIndirect() ) return null;
+        return annotations.get( new PdfObjectKey( (PdfIndirectReference)ref ) );
+    }
+
+    /**
+     * Forget the annotations added so far but their names. Replies resolved
+     * afterwards still get the name of their parent, popups of the dropped
+     * annotations are no longer linked.
+     */
+    public void endPage() {
+        for (Map.Entry<PdfObjectKey,Annotation> e : annotations.entrySet()) {
+            names.put( e.getKey(), e.getValue().getName() );
+        }
+        annotations.clear();
+    }
+
+    /**
+     * Link an annotation to its parent and its popup. All annotations that
+     * may be referenced must have been added before, parents may also have
+     * been dropped with {@link #endPage}.
+     */
+    public void resolve(Annotation a) {
+        PdfDictionary dict = a.getDictionary();
+
+        PdfObject irt = dict.get(IRT);
+        if ( irt != null ) {
+            Annotation parent = get(irt);
+            String name = parent == null && irt.isIndirect()
+                ? names.get( new PdfObjectKey( (PdfIndirectReference)irt ) ) : null;
+            if ( parent != null ) {
+                a.setInReplyTo( parent.getName() );
+            } else if ( name != null ) {
+                a.setInReplyTo( name );
+            } else {
+                PdfObject obj = PdfReader.getPdfObject(irt);
+                if ( obj != null && obj.isDictionary() ) {
+                    a.setInReplyTo( Annotation.getName( (PdfDictionary)obj,
+                        irt.isIndirect() ? (PdfIndirectReference)irt : null ) );
+                }
+            }
+        }
+
+        Annotation popup = get( dict.get(PdfName.POPUP) );
+        if ( popup != null && popup != a ) a.setPopup(popup);
+    }
+}
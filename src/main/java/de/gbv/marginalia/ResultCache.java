@@ -0,0 +1,398 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.channels.FileLock;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+import org.xml.sax.SAXException;
+
+/**
+ * On-disk cache of extraction results.
+ *
+ * A result is identified by the content hash and the trailer <code>/ID</code>
+ * of a PDF file, together with a variant that describes the output format
+ * and, for formats that include it, the name of the file.
+ * For each input path the cache also remembers size, modification time,
+ * trailer ID and content hash. If size and modification time are unchanged,
+ * the result is served without reading the PDF file at all. Otherwise the
+ * file is hashed, which is still much cheaper than parsing it, so touched but
+ * unmodified files are served from the cache as well.
+ *
+ * Several processes may share a cache directory. Files are written to a
+ * temporary file and renamed into place, so readers never see partial
+ * results. Eviction of the least recently used results and path entries,
+ * once the cache exceeds its size limit, is serialized with a file lock.
+ */
+public class ResultCache {
+    private final File dir;
+    private final File paths;
+    private final File results;
+    private final long maxSize;
+
+    /** Number of bytes at the end of a file searched for the trailer ID */
+    private static final int TRAILER_SIZE = 4096;
+
+    /**
+     * Size, modification time, trailer ID and content hash of a PDF file.
+     */
+    static class Stat {
+        final long size;
+        final long mtime;
+        final String id;
+        final String hash;
+
+        Stat(File pdf) throws IOException {
+            size = pdf.length();
+            mtime = pdf.lastModified();
+            hash = contentHash(pdf);
+            id = trailerID(pdf);
+        }
+
+        /**
+         * Check whether size and modification time of a file are unchanged.
+         */
+        boolean isCurrent(File pdf) {
+            return pdf.length() == size && pdf.lastModified() == mtime;
+        }
+    }
+
+    /**
+     * @param dir Cache directory, created if it does not exist
+     * @param maxSize Maximum size of cached results in bytes, or 0 for no limit
+     */
+    public ResultCache(File dir, long maxSize) throws IOException {
+        this.dir = dir;
+        this.paths = new File(dir, "paths");
+        this.results = new File(dir, "results");
+        this.maxSize = maxSize;
+        paths.mkdirs();
+        results.mkdirs();
+        if ( !paths.isDirectory() || !results.isDirectory() ) {
+            throw new IOException("cannot create cache directory " + dir);
+        }
+    }
+
+    /**
+     * Write the result for a PDF file, either from the cache or by inspecting
+     * the file and adding the result to the cache.
+     * @param out Stream to write to, is flushed but not closed
+     * @param filename Path to the PDF file
+     * @param options Options to control inspection and output format
+     */
+    public void export(OutputStream out, String filename, Options options)
+        throws IOException, SAXException {
+        File pdf = new File(filename);
+        String variant = variant(options, filename);
+
+        File cached = lookup(pdf, variant);
+        if ( cached != null && copy(cached, out) ) {
+            out.flush();
+            return;
+        }
+
+        // taken before rendering, so a result is never stored with the
+        // hash of content that has been written in the meantime
+        Stat stat = new Stat(pdf);
+        File tmp = File.createTempFile("result", ".tmp", results);
+        try {
+            OutputStream result = new FileOutputStream(tmp);
+            try {
+                Marginalia.render(result, filename, options);
+            } finally {
+                result.close();
+            }
+            copy(tmp, out);
+            if ( stat.isCurrent(pdf) ) store(pdf, variant, stat, tmp);
+        } finally {
+            tmp.delete();
+        }
+        out.flush();
+    }
+
+    /**
+     * Get the cached result of a PDF file or null.
+     * @param pdf PDF file
+     * @param variant Output variant, see {@link #variant}
+     */
+    public File lookup(File pdf, String variant) throws IOException {
+        File statFile = statFile(pdf, variant);
+        Properties stat = readStat(statFile);
+        if ( stat == null ) return null;
+
+        long size = pdf.length();
+        long mtime = pdf.lastModified();
+        String hash = stat.getProperty("hash");
+        String id = stat.getProperty("id");
+
+        if ( size != Long.parseLong( stat.getProperty("size", "-1") ) ) return null;
+        if ( mtime != Long.parseLong( stat.getProperty("mtime", "-1") ) ) {
+            // touched, but possibly not modified
+            hash = contentHash(pdf);
+            id = trailerID(pdf);
+            if ( !hash.equals( stat.getProperty("hash") ) ) return null;
+            writeStat(pdf, variant, size, mtime, id, hash);
+        }
+
+        File result = resultFile(hash, id, variant);
+        if ( !result.exists() ) return null;
+        long now = System.currentTimeMillis();
+        result.setLastModified(now);
+        statFile.setLastModified(now);
+        return result;
+    }
+
+    /**
+     * Add the result of a PDF file to the cache. The result file is moved
+     * into the cache, so it must be located in the same file system.
+     * @param pdf PDF file
+     * @param variant Output variant, see {@link #variant}
+     * @param stat Stat of the PDF file, taken before it was inspected
+     * @param result File with the result
+     */
+    void store(File pdf, String variant, Stat stat, File result) throws IOException {
+        File target = resultFile(stat.hash, stat.id, variant);
+        if ( !result.renameTo(target) ) {
+            // Windows does not replace existing files
+            target.delete();
+            result.renameTo(target);
+        }
+        writeStat(pdf, variant, stat.size, stat.mtime, stat.id, stat.hash);
+        if ( maxSize > 0 ) evict();
+    }
+
+    /**
+     * Remove least recently used results and path entries until the cache
+     * fits its size limit. Path entries are touched together with their
+     * result, so entries of paths that are no longer inspected go first.
+     */
+    void evict() throws IOException {
+        RandomAccessFile lockFile = new RandomAccessFile( new File(dir, "lock"), "rw" );
+        try {
+            FileLock lock = lockFile.getChannel().lock();
+            try {
+                File[] resultFiles = results.listFiles();
+                File[] pathFiles = paths.listFiles();
+                if ( resultFiles == null || pathFiles == null ) return;
+                File[] files = new File[ resultFiles.length + pathFiles.length ];
+                System.arraycopy( resultFiles, 0, files, 0, resultFiles.length );
+                System.arraycopy( pathFiles, 0, files, resultFiles.length, pathFiles.length );
+                long total = 0;
+                for ( int i = 0; i < files.length; ++i ) {
+                    if ( isTemporary(files[i]) ) continue;
+                    total += files[i].length();
+                }
+                if ( total <= maxSize ) return;
+
+                Arrays.sort( files, new Comparator<File>() {
+                    public int compare(File a, File b) {
+                        long x = a.lastModified(), y = b.lastModified();
+                        return x < y ? -1 : ( x == y ? 0 : 1 );
+                    }
+                });
+                for ( int i = 0; i < files.length && total > maxSize; ++i ) {
+                    if ( isTemporary(files[i]) ) continue;
+                    long length = files[i].length();
+                    if ( files[i].delete() ) total -= length;
+                }
+            } finally {
+                lock.release();
+            }
+        } finally {
+            lockFile.close();
+        }
+    }
+
+    /**
+     * Get a string that identifies the output of the given options. JSON
+     * Lines and binary output contain the name the file has been given by,
+     * so it is part of their variant.
+     * @param filename Name of the PDF file as written with the result
+     */
+    public static String variant(Options options, String filename) {
+        String variant = options.format.extension;
+        if ( options.format == Options.Format.JSONL || options.format == Options.Format.BINARY ) {
+            variant += "-name" + hex( digest(filename) ).substring(0, 16);
+        }
+        if ( options.format == Options.Format.XML && options.stream ) {
+            variant += "-stream";
+        }
+        if ( options.text ) {
+            variant += "-text";
+        }
+        if ( options.values ) {
+            variant += "-values";
+        }
+        if ( options.replies ) {
+            variant += "-replies";
+        }
+        if ( options.since >= 0 ) {
+            variant += "-since" + options.since;
+        } else if ( options.delta > 0 ) {
+            variant += "-delta" + options.delta;
+        }
+        if ( options.filter != null && !options.filter.isEmpty() ) {
+            variant += "-filter" + hex( digest( options.filter.getKey() ) ).substring(0, 16);
+        }
+        return variant;
+    }
+
+    private static boolean isTemporary(File file) {
+        return file.getName().endsWith(".tmp");
+    }
+
+    private File resultFile(String hash, String id, String variant) {
+        return new File( results, hex( digest( hash + " " + id ) ) + "." + variant );
+    }
+
+    private File statFile(File pdf, String variant) {
+        return new File( paths, hex( digest( pdf.getAbsolutePath() ) ) + "." + variant );
+    }
+
+    private Properties readStat(File file) throws IOException {
+        Properties stat = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                stat.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        return stat.getProperty("hash") == null ? null : stat;
+    }
+
+    private void writeStat(File pdf, String variant, long size, long mtime,
+                           String id, String hash) throws IOException {
+        Properties stat = new Properties();
+        stat.setProperty("path", pdf.getAbsolutePath());
+        stat.setProperty("size", String.valueOf(size));
+        stat.setProperty("mtime", String.valueOf(mtime));
+        stat.setProperty("id", id);
+        stat.setProperty("hash", hash);
+
+        File target = statFile(pdf, variant);
+        File tmp = File.createTempFile("stat", ".tmp", paths);
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            stat.store(out, null);
+        } finally {
+            out.close();
+        }
+        if ( !tmp.renameTo(target) ) {
+            target.delete();
+            if ( !tmp.renameTo(target) ) tmp.delete();
+        }
+    }
+
+    /**
+     * Copy a file to a stream. Returns false if the file has been removed
+     * by another process in the meantime.
+     */
+    private static boolean copy(File file, OutputStream out) throws IOException {
+        if ( file == null ) return false;
+        InputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        try {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ( (n = in.read(buffer)) > 0 ) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    /**
+     * Get the SHA-1 hash of a file's content as hex string.
+     */
+    static String contentHash(File file) throws IOException {
+        MessageDigest md = sha1();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ( (n = in.read(buffer)) > 0 ) {
+                md.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return hex( md.digest() );
+    }
+
+    /**
+     * Get the <code>/ID</code> entry of the last trailer of a PDF file
+     * without parsing the file, or an empty string if there is none. Files
+     * with cross-reference streams have no plain trailer and no ID here.
+     */
+    static String trailerID(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            long length = in.length();
+            int size = (int)Math.min( length, TRAILER_SIZE );
+            byte[] tail = new byte[size];
+            in.seek( length - size );
+            in.readFully(tail);
+            String s = new String(tail, "ISO-8859-1");
+            int start = s.lastIndexOf("/ID");
+            if ( start < 0 ) return "";
+            int end = s.indexOf(']', start);
+            if ( end < 0 ) return "";
+            return s.substring( start + 3, end + 1 ).replaceAll("\\s+", "");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] digest(String s) {
+        try {
+            return sha1().digest( s.getBytes("UTF-8") );
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder( bytes.length * 2 );
+        for ( byte b : bytes ) {
+            sb.append( Character.forDigit( (b >> 4) & 0xf, 16 ) );
+            sb.append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return sb.toString();
+    }
+}
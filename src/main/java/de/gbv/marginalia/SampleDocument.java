@@ -0,0 +1,80 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.itextpdf.text.BaseColor;
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.PageSize;
+import com.itextpdf.text.Paragraph;
+import com.itextpdf.text.Rectangle;
+
+import com.itextpdf.text.pdf.PdfAnnotation;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfString;
+import com.itextpdf.text.pdf.PdfWriter;
+
+/**
+ * Creates a small annotated PDF file with text, highlight and ink
+ * annotations on each page.
+ *
+ * The sample is used to exercise all code paths once without a PDF file
+ * at hand, for instance in the training run of the class-data sharing
+ * archive (see {@link Marginalia#warmup}).
+ */
+public class SampleDocument {
+
+    /**
+     * Create a sample document.
+     * @param out Stream to write the PDF file to, is not closed
+     * @param pages Number of pages
+     */
+    public static void create(OutputStream out, int pages) throws IOException {
+        Document document = new Document(PageSize.A4);
+        try {
+            PdfWriter writer = PdfWriter.getInstance(document, out);
+            writer.setCloseStream(false);
+            document.open();
+            for ( int p = 1; p <= pages; p++ ) {
+                if ( p > 1 ) document.newPage();
+                document.add( new Paragraph("Marginalia sample page " + p) );
+                document.add( new Paragraph("The quick brown fox jumps over the lazy dog.") );
+
+                float top = PageSize.A4.getTop() - 36;
+                PdfAnnotation highlight = PdfAnnotation.createMarkup( writer,
+                    new Rectangle( 36, top - 30, 300, top ), "highlighted",
+                    PdfAnnotation.MARKUP_HIGHLIGHT,
+                    new float[] { 36, top, 300, top, 36, top - 30, 300, top - 30 } );
+                highlight.put( PdfName.T, new PdfString("Alice") );
+                highlight.setColor( BaseColor.YELLOW );
+                writer.addAnnotation(highlight);
+
+                writer.addAnnotation( PdfAnnotation.createText( writer,
+                    new Rectangle( 400, 700, 420, 720 ), "Bob", "a note", false, "Comment" ) );
+
+                writer.addAnnotation( PdfAnnotation.createInk( writer,
+                    new Rectangle( 100, 100, 200, 200 ), "a stroke",
+                    new float[][] { { 100, 100, 150, 200, 200, 100 } } ) );
+            }
+            document.close();
+        } catch (DocumentException e) {
+            throw new IOException( e.getMessage() );
+        }
+    }
+
+    /**
+     * Create a sample document in memory.
+     */
+    public static byte[] create(int pages) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        create(buffer, pages);
+        return buffer.toByteArray();
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfRectangle;
+import com.itextpdf.text.pdf.PdfReader;
+
+import org.xml.sax.SAXException;
+import de.gbv.xml.FloatFormat;
+import de.gbv.xml.SimpleXMLCreator;
+import de.gbv.xml.SimpleXMLWriter;
+
+/**
+ * Renders pages and annotations as SVG while the pages are walked.
+ *
+ * The result looks like the output of <code>marginalia2svg.xsl</code>:
+ * each page is drawn as a frame of the size of its media box, with the
+ * annotation rectangle of highlight, underline and ink annotations as
+ * dashed box, quads as filled polygons and ink gestures as polylines in
+ * the color of the annotation. Page rotation is ignored.
+ *
+ * All pages can be written to one stream as a single SVG with the pages
+ * stacked vertically, or each page to its own file in a directory.
+ * Shapes are taken directly from the annotation dictionaries, so no XML
+ * is parsed and nothing is kept in memory but the current page.
+ */
+public class SvgWriter implements AnnotationVisitor {
+    public static final String NAMESPACE = "http://www.w3.org/2000/svg";
+
+    private static final Map<String,String> namespaces = new HashMap<String,String>();
+    static {
+        namespaces.put( "", NAMESPACE );
+    }
+
+    private final OutputStream out;
+    private final File dir;
+    private final String basename;
+    private final AnnotationFilter filter;
+
+    private OutputStream file;
+    private SimpleXMLWriter writer;
+    private SimpleXMLCreator xml;
+    private boolean inPage;
+    private float offset;
+
+    private final StringBuilder points = new StringBuilder(256);
+
+    /**
+     * Create a writer for a single SVG with all pages.
+     * @param out Stream to write to, is flushed but not closed
+     */
+    public SvgWriter(OutputStream out) {
+        this(out, null);
+    }
+
+    /**
+     * Create a writer for a single SVG with the pages selected by a filter.
+     * The pages must be walked with the same filter.
+     * @param out Stream to write to, is flushed but not closed
+     * @param filter Filter of the pages or <code>null</code> for all pages
+     */
+    public SvgWriter(OutputStream out, AnnotationFilter filter) {
+        this.out = out;
+        this.dir = null;
+        this.basename = null;
+        this.filter = filter;
+    }
+
+    /**
+     * Create a writer for one SVG file per page, named
+     * <code>basename-N.svg</code> with the page number N.
+     */
+    public SvgWriter(File dir, String basename) {
+        this.out = null;
+        this.dir = dir;
+        this.basename = basename;
+        this.filter = null;
+    }
+
+    public void page(PdfReader reader, int pageNum) throws IOException, SAXException {
+        Rectangle box = reader.getPageSize(pageNum);
+        float width = box.getRight() - box.getLeft();
+        float height = box.getTop() - box.getBottom();
+
+        if ( dir != null ) {
+            finish();
+            file = new BufferedOutputStream( new FileOutputStream(
+                new File( dir, basename + "-" + pageNum + ".svg" ) ) );
+            start(file);
+            xml.attr("height", height);
+            xml.attr("width", width);
+            xml.startElement("svg");
+        } else {
+            if ( xml == null ) {
+                // the size of the combined image is known before any page
+                float totalHeight = 0, maxWidth = 0;
+                int pages = reader.getNumberOfPages();
+                for ( int i = AnnotationFilter.nextPage(filter, 1); i <= pages;
+                      i = AnnotationFilter.nextPage(filter, i + 1) ) {
+                    Rectangle r = reader.getPageSize(i);
+                    totalHeight += r.getTop() - r.getBottom();
+                    maxWidth = Math.max( maxWidth, r.getRight() - r.getLeft() );
+                    if ( i != pageNum ) reader.releasePage(i);
+                }
+                start(out);
+                xml.attr("height", totalHeight);
+                xml.attr("width", maxWidth);
+                xml.startElement("svg");
+            } else {
+                endPage();
+            }
+            xml.attr("y", offset);
+            xml.attr("height", height);
+            xml.attr("width", width);
+            xml.startElement("svg");
+            offset += height;
+        }
+
+        xml.attr("fill", "#fff");
+        xml.attr("stroke", "black");
+        xml.attr("stroke-width", "1px");
+        xml.attr("x", box.getLeft());
+        xml.attr("y", box.getBottom());
+        xml.attr("height", height);
+        xml.attr("width", width);
+        xml.emptyElement("rect");
+
+        // transform to SVG coordinate system
+        points.setLength(0);
+        points.append("scale(1, -1) translate(0,-");
+        FloatFormat.append( points, box.getTop() ).append(')');
+        xml.attr("transform", points.toString());
+        xml.startElement("g");
+        inPage = true;
+    }
+
+    public void annotation(Annotation a) throws SAXException {
+        String name = a.getSubtypeName();
+        if ( !( name.equals("highlight") || name.equals("underline") || name.equals("ink") ) ) {
+            return;
+        }
+        PdfDictionary dict = a.getDictionary();
+        String color = Annotation.COLOR.getFrom(dict);
+
+        PdfRectangle r = Annotation.RECT.getRectangle(dict);
+        if ( r != null ) {
+            if ( color != null ) xml.attr("stroke", color);
+            xml.attr("stroke-width", "1px");
+            xml.attr("stroke-opacity", "0.5");
+            xml.attr("stroke-dasharray", "9,5");
+            xml.attr("fill", "none");
+            xml.attr("x", r.left());
+            xml.attr("y", r.bottom());
+            xml.attr("height", r.top() - r.bottom());
+            xml.attr("width", r.right() - r.left());
+            xml.emptyElement("rect");
+        }
+
+        float[] coords = Annotation.COORDS.getCoords(dict);
+        if ( coords != null ) {
+            for ( int q = 0; q + 8 <= coords.length; q += 8 ) {
+                // the corners in the order 1, 2, 4, 3 make a polygon
+                points.setLength(0);
+                point( coords[q], coords[q+1] ).append(' ');
+                point( coords[q+2], coords[q+3] ).append(' ');
+                point( coords[q+6], coords[q+7] ).append(' ');
+                point( coords[q+4], coords[q+5] );
+                xml.attr("stroke", "none");
+                if ( color != null ) xml.attr("fill", color);
+                xml.attr("points", points.toString());
+                xml.emptyElement("polygon");
+            }
+        }
+
+        float[][] ink = a.getInkList();
+        if ( ink != null ) {
+            for ( float[] path : ink ) {
+                points.setLength(0);
+                for ( int i = 0; i + 1 < path.length; i += 2 ) {
+                    if ( i > 0 ) points.append(' ');
+                    point( path[i], path[i+1] );
+                }
+                xml.attr("points", points.toString());
+                if ( color != null ) xml.attr("stroke", color);
+                xml.attr("fill", "none");
+                xml.emptyElement("polyline");
+            }
+        }
+    }
+
+    /**
+     * Finish the current file or the combined SVG.
+     */
+    public void finish() throws IOException, SAXException {
+        if ( xml == null ) {
+            if ( out == null ) return;
+            start(out); // no pages
+            xml.attr("height", 0);
+            xml.attr("width", 0);
+            xml.startElement("svg");
+        }
+        xml.endAll();
+        xml = null;
+        inPage = false;
+        if ( file != null ) {
+            file.close();
+            file = null;
+        }
+    }
+
+    private void start(OutputStream stream) throws SAXException {
+        writer = new SimpleXMLWriter(stream);
+        writer.startDocument();
+        xml = new SimpleXMLCreator( writer, namespaces, true );
+    }
+
+    /**
+     * End the group and nested SVG of a page in the combined SVG.
+     */
+    private void endPage() throws SAXException {
+        if ( !inPage ) return;
+        xml.endElement();
+        xml.endElement();
+        writer.flush();
+        inPage = false;
+    }
+
+    private StringBuilder point(float x, float y) {
+        FloatFormat.append( points, x ).append(',');
+        return FloatFormat.append( points, y );
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Spatial index of the characters of a page.
+ *
+ * Each character is stored with a reference point on its baseline, in
+ * reading order. Points are bucketed in a uniform grid, so finding the
+ * characters covered by a quad only visits the cells the quad overlaps.
+ * The cells visited are limited to the cells that contain characters, so
+ * huge quads take no longer than a quad covering the whole page.
+ */
+public class TextIndex {
+    private final float cellSize;
+
+    private int size = 0;
+    private float[] xs = new float[256];
+    private float[] ys = new float[256];
+    private char[] chars = new char[256];
+    private boolean[] breaks = new boolean[256];
+    /** next character in the same cell, or -1 */
+    private int[] next = new int[256];
+    /** first character of each cell */
+    private final Map<Long,Integer> cells = new HashMap<Long,Integer>();
+    /** range of cells that contain characters */
+    private int minCol = Integer.MAX_VALUE, maxCol = Integer.MIN_VALUE;
+    private int minRow = Integer.MAX_VALUE, maxRow = Integer.MIN_VALUE;
+
+    /**
+     * @param cellSize Width and height of grid cells in user space units
+     */
+    public TextIndex(float cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add a character in reading order.
+     * @param x Horizontal position of the reference point
+     * @param y Vertical position of the reference point
+     * @param c The character
+     * @param wordBreak Whether the character starts a new word, although
+     *        there is no whitespace character before it
+     */
+    public void add(float x, float y, char c, boolean wordBreak) {
+        if ( size == xs.length ) {
+            int n = size * 2;
+            float[] x2 = new float[n];
+            System.arraycopy( xs, 0, x2, 0, size );
+            xs = x2;
+            float[] y2 = new float[n];
+            System.arraycopy( ys, 0, y2, 0, size );
+            ys = y2;
+            char[] c2 = new char[n];
+            System.arraycopy( chars, 0, c2, 0, size );
+            chars = c2;
+            boolean[] b2 = new boolean[n];
+            System.arraycopy( breaks, 0, b2, 0, size );
+            breaks = b2;
+            int[] n2 = new int[n];
+            System.arraycopy( next, 0, n2, 0, size );
+            next = n2;
+        }
+        xs[size] = x;
+        ys[size] = y;
+        chars[size] = c;
+        breaks[size] = wordBreak;
+        int cx = col(x), cy = col(y);
+        minCol = Math.min( minCol, cx );
+        maxCol = Math.max( maxCol, cx );
+        minRow = Math.min( minRow, cy );
+        maxRow = Math.max( maxRow, cy );
+        Long cell = cell( cx, cy );
+        Integer head = cells.get(cell);
+        next[size] = head == null ? -1 : head.intValue();
+        cells.put( cell, size );
+        size++;
+    }
+
+    /**
+     * Get the text covered by quads.
+     * @param quads Coordinates of quads, eight values per quad as in the
+     *        <code>QuadPoints</code> of markup annotations. Quads with
+     *        coordinates that are not finite are ignored.
+     * @return covered characters in reading order, words separated by spaces
+     */
+    public String find(float[] quads) {
+        boolean[] hit = new boolean[size];
+        for ( int q = 0; q + 8 <= quads.length; q += 8 ) {
+            if ( !isFinite(quads, q) ) continue;
+            float left = quads[q], right = quads[q];
+            float bottom = quads[q+1], top = quads[q+1];
+            for ( int i = 2; i < 8; i += 2 ) {
+                left = Math.min( left, quads[q+i] );
+                right = Math.max( right, quads[q+i] );
+                bottom = Math.min( bottom, quads[q+i+1] );
+                top = Math.max( top, quads[q+i+1] );
+            }
+            int toCol = Math.min( col(right), maxCol );
+            int toRow = Math.min( col(top), maxRow );
+            for ( int cx = Math.max( col(left), minCol ); cx <= toCol; cx++ ) {
+                for ( int cy = Math.max( col(bottom), minRow ); cy <= toRow; cy++ ) {
+                    Integer head = cells.get( cell(cx, cy) );
+                    for ( int i = head == null ? -1 : head.intValue(); i >= 0; i = next[i] ) {
+                        if ( xs[i] >= left && xs[i] <= right && ys[i] >= bottom && ys[i] <= top ) {
+                            hit[i] = true;
+                        }
+                    }
+                }
+            }
+        }
+
+        StringBuilder s = new StringBuilder();
+        int last = -2;
+        for ( int i = 0; i < size; i++ ) {
+            if ( !hit[i] ) continue;
+            if ( s.length() > 0 && ( last != i - 1 || breaks[i] )
+                 && !Character.isWhitespace( s.charAt( s.length() - 1 ) ) ) {
+                s.append(' ');
+            }
+            s.append( chars[i] );
+            last = i;
+        }
+        return s.toString().trim();
+    }
+
+    private static boolean isFinite(float[] quads, int q) {
+        for ( int i = q; i < q + 8; i++ ) {
+            if ( Float.isNaN( quads[i] ) || Float.isInfinite( quads[i] ) ) return false;
+        }
+        return true;
+    }
+
+    private int col(float v) {
+        return (int)Math.floor( v / cellSize );
+    }
+
+    private static Long cell(int x, int y) {
+        return Long.valueOf( ((long)x << 32) | (y & 0xffffffffL) );
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.IOException;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfReader;
+
+import com.itextpdf.text.pdf.parser.ImageRenderInfo;
+import com.itextpdf.text.pdf.parser.LineSegment;
+import com.itextpdf.text.pdf.parser.PdfTextExtractor;
+import com.itextpdf.text.pdf.parser.TextExtractionStrategy;
+import com.itextpdf.text.pdf.parser.TextRenderInfo;
+import com.itextpdf.text.pdf.parser.Vector;
+
+/**
+ * Finds the text covered by markup annotations (highlight, underline,
+ * strikeout and squiggly).
+ *
+ * The content of a page is only parsed when the first markup annotation of
+ * this page is resolved. The characters are then stored in a
+ * {@link TextIndex} and matched against the <code>QuadPoints</code> of the
+ * annotation. Indexes of the most recently used pages are kept, so all
+ * annotations of a page share one parse. Pages without markup annotations
+ * are never parsed.
+ */
+public class TextResolver {
+    private final PdfReader reader;
+    private final Map<Integer,TextIndex> pages;
+
+    /** Default number of page indexes to keep */
+    public static final int DEFAULT_PAGES = 8;
+
+    /** Grid cell size of the page indexes */
+    private static final float CELL_SIZE = 36f;
+
+    /** Distance above the baseline of the reference point of a character */
+    private static final float RAISE = 1f;
+
+    private static final Set<PdfName> MARKUP = new HashSet<PdfName>();
+    static {
+        MARKUP.add(PdfName.HIGHLIGHT);
+        MARKUP.add(PdfName.UNDERLINE);
+        MARKUP.add(PdfName.STRIKEOUT);
+        MARKUP.add(PdfName.SQUIGGLY);
+    }
+
+    public TextResolver(PdfReader reader) {
+        this(reader, DEFAULT_PAGES);
+    }
+
+    /**
+     * @param reader Reader of the PDF file
+     * @param maxPages Number of page indexes to keep
+     */
+    public TextResolver(PdfReader reader, final int maxPages) {
+        this.reader = reader;
+        this.pages = new LinkedHashMap<Integer,TextIndex>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer,TextIndex> eldest) {
+                return size() > maxPages;
+            }
+        };
+    }
+
+    /**
+     * Check whether an annotation is a markup annotation with text.
+     */
+    public static boolean isMarkup(Annotation a) {
+        return a.getSubtype() != null && MARKUP.contains( a.getSubtype() );
+    }
+
+    /**
+     * Get the text covered by a markup annotation and store it in the
+     * annotation. Other annotations are left unchanged.
+     * @return the text or null
+     */
+    public String resolve(Annotation a) throws IOException {
+        if ( !isMarkup(a) || a.getPageNumber() < 1 ) return null;
+        float[] quads = Annotation.COORDS.getCoords( a.getDictionary() );
+        if ( quads == null || quads.length == 0 ) return null;
+        String text = getIndex( a.getPageNumber() ).find(quads);
+        a.setText(text);
+        return text;
+    }
+
+    /**
+     * Get the index of a page, parsing the page if needed.
+     */
+    public TextIndex getIndex(int pageNum) throws IOException {
+        TextIndex index = pages.get(pageNum);
+        if ( index == null ) {
+            IndexStrategy strategy = new IndexStrategy();
+            PdfTextExtractor.getTextFromPage( reader, pageNum, strategy );
+            index = strategy.index;
+            pages.put( pageNum, index );
+        }
+        return index;
+    }
+
+    /**
+     * Adds the characters of all text chunks to an index. The position of
+     * each character is interpolated along the baseline of its chunk.
+     */
+    private static class IndexStrategy implements TextExtractionStrategy {
+        final TextIndex index = new TextIndex(CELL_SIZE);
+        private boolean first = true;
+        private float lastX, lastY, lastWidth;
+
+        public void beginTextBlock() {
+        }
+
+        public void endTextBlock() {
+        }
+
+        public void renderImage(ImageRenderInfo info) {
+        }
+
+        public void renderText(TextRenderInfo info) {
+            String text = info.getText();
+            int n = text.length();
+            if ( n == 0 ) return;
+            LineSegment baseline = info.getBaseline();
+            Vector start = baseline.getStartPoint();
+            Vector end = baseline.getEndPoint();
+            float x0 = start.get(Vector.I1), y0 = start.get(Vector.I2);
+            float dx = ( end.get(Vector.I1) - x0 ) / n;
+            float dy = ( end.get(Vector.I2) - y0 ) / n;
+            float width = (float)Math.sqrt( dx * dx + dy * dy );
+
+            // a new word starts if the chunk is on another line or not
+            // close to the end of the previous chunk
+            boolean wordBreak = false;
+            if ( !first ) {
+                float gx = x0 - lastX, gy = y0 - lastY;
+                wordBreak = Math.abs(gy) > RAISE
+                    || gx * gx + gy * gy > 0.09f * lastWidth * lastWidth;
+            }
+            for ( int i = 0; i < n; i++ ) {
+                index.add( x0 + dx * (i + 0.5f), y0 + dy * (i + 0.5f) + RAISE,
+                           text.charAt(i), i == 0 && wordBreak );
+            }
+            first = false;
+            lastX = end.get(Vector.I1);
+            lastY = end.get(Vector.I2);
+            lastWidth = Math.max( width, 1f );
+        }
+
+        public String getResultantText() {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfObject;
+
+import de.gbv.xml.SimpleXMLCreator;
+import org.xml.sax.SAXException;
+
+/**
+ * Table of attribute values that repeat across the annotations of a
+ * document, such as authors and colors.
+ *
+ * Each distinct value of a shared attribute gets an index, so annotations
+ * can refer to it with an attribute such as <code>title-ref="0"</code>
+ * instead of repeating the value. The table lists each value with the
+ * number of annotations that use it, so it is also a summary of the
+ * document. Decoding is memoized by the content of the source object
+ * (the raw bytes of a string, the value of a number or the items of an
+ * array), so each distinct value is only formatted once.
+ *
+ * <pre>
+ * &lt;m:values&gt;
+ *   &lt;m:value name="title" index="0" count="12"&gt;Alice&lt;/m:value&gt;
+ * &lt;/m:values&gt;
+ * </pre>
+ */
+public class ValueTable {
+    /** Attributes with shared values */
+    public static final String[] ATTRS = { "title", "color", "subject", "icon", "flags" };
+
+    /** Attributes to refer to shared values with */
+    static final String[] REFS;
+    static {
+        REFS = new String[ATTRS.length];
+        for ( int i = 0; i < ATTRS.length; i++ ) REFS[i] = ATTRS[i] + "-ref";
+    }
+
+    private final Annotation.Field[] fields;
+    private final List<Map<Object,Integer>> sources;
+    private final List<ColumnWriter.StringDictionary> values;
+    private final List<ColumnWriter.IntColumn> counts;
+
+    public ValueTable() {
+        fields = new Annotation.Field[ATTRS.length];
+        sources = new ArrayList<Map<Object,Integer>>(ATTRS.length);
+        values = new ArrayList<ColumnWriter.StringDictionary>(ATTRS.length);
+        counts = new ArrayList<ColumnWriter.IntColumn>(ATTRS.length);
+        for ( int i = 0; i < ATTRS.length; i++ ) {
+            fields[i] = Annotation.FIELDS.get( ATTRS[i] );
+            sources.add( new HashMap<Object,Integer>() );
+            values.add( new ColumnWriter.StringDictionary() );
+            counts.add( new ColumnWriter.IntColumn() );
+        }
+    }
+
+    /**
+     * Look up the shared values of an annotation, add new values to the
+     * table and store the indexes with the annotation. Only attributes in
+     * the {@link Annotation.Plan} of the annotation's subtype are looked up.
+     * Each annotation must only be resolved once.
+     */
+    public void resolve(Annotation a) {
+        resolve( a, true );
+    }
+
+    /**
+     * Store the indexes of the shared values of an annotation with the
+     * annotation without counting them, for a table that has been filled
+     * with the same annotations before.
+     */
+    public void lookup(Annotation a) {
+        resolve( a, false );
+    }
+
+    private void resolve(Annotation a, boolean count) {
+        Annotation.Plan plan = Annotation.getPlan( a.getSubtype() );
+        PdfDictionary dict = a.getDictionary();
+        int[] refs = new int[ATTRS.length];
+        Arrays.fill( refs, -1 );
+        for ( int i = 0; i < plan.slots.length; i++ ) {
+            int slot = plan.slots[i];
+            if ( slot >= 0 ) refs[slot] = indexOf( slot, dict, count );
+        }
+        a.setValueRefs(refs);
+    }
+
+    /**
+     * Get the index of the value of a shared attribute.
+     * @param count Whether to count the value
+     * @return the index or -1 if the attribute is missing or not valid
+     */
+    int indexOf(int slot, PdfDictionary dict, boolean count) {
+        Annotation.Field field = fields[slot];
+        PdfObject obj = dict.getDirectObject( field.name );
+        if ( obj == null ) return -1;
+
+        Map<Object,Integer> memo = sources.get(slot);
+        Object key = sourceKey(obj);
+        Integer index = key == null ? null : memo.get(key);
+        if ( index == null ) {
+            String value = field.getFrom(dict);
+            index = value == null ? -1 : values.get(slot).indexOf(value);
+            if ( key != null ) memo.put( key, index );
+        }
+
+        int i = index.intValue();
+        if ( i >= 0 && count ) {
+            ColumnWriter.IntColumn column = counts.get(slot);
+            if ( i == column.size ) column.add(0);
+            column.values[i]++;
+        }
+        return i;
+    }
+
+    /**
+     * Get a key that is equal for source objects that decode to the same
+     * value, or null if the object cannot be memoized.
+     */
+    static Object sourceKey(PdfObject obj) {
+        if ( obj.isString() ) {
+            byte[] bytes = obj.getBytes();
+            return bytes == null ? null : ByteBuffer.wrap(bytes);
+        } else if ( obj.isNumber() ) {
+            return Double.valueOf( ((PdfNumber)obj).doubleValue() );
+        } else if ( obj.isArray() ) {
+            PdfArray array = (PdfArray)obj;
+            List<Object> keys = new ArrayList<Object>( array.size() );
+            for ( int i = 0; i < array.size(); i++ ) {
+                PdfObject item = array.getDirectObject(i);
+                Object key = item == null || item.isArray() ? null : sourceKey(item);
+                if ( key == null ) return null;
+                keys.add(key);
+            }
+            return keys;
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of distinct values of a shared attribute.
+     * @param slot Index of the attribute in {@link #ATTRS}
+     */
+    public int size(int slot) {
+        return values.get(slot).values.size();
+    }
+
+    /**
+     * Get a value of a shared attribute by its index.
+     */
+    public String get(int slot, int index) {
+        return values.get(slot).values.get(index);
+    }
+
+    /**
+     * Get the number of annotations that use a value.
+     */
+    public int count(int slot, int index) {
+        return counts.get(slot).values[index];
+    }
+
+    /**
+     * Serialize the table as <code>m:values</code> element.
+     */
+    public void serializeXML(SimpleXMLCreator xml) throws SAXException {
+        xml.startElement("m","values");
+        for ( int slot = 0; slot < ATTRS.length; slot++ ) {
+            for ( int i = 0; i < size(slot); i++ ) {
+                xml.attr( "name", ATTRS[slot] );
+                xml.attr( "index", i );
+                xml.attr( "count", count(slot, i) );
+                xml.contentElement( "m", "value", get(slot, i) );
+            }
+        }
+        xml.endElement();
+    }
+}
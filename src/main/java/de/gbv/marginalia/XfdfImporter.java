@@ -0,0 +1,434 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import com.itextpdf.text.pdf.PRIndirectReference;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfLiteral;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfString;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Adds annotations from XFDF files to PDF files with an incremental update.
+ *
+ * XFDF as written by Marginalia, or edited afterwards, is mapped back to
+ * annotation dictionaries with the {@link Annotation#FIELDS} table, so each
+ * attribute is converted by the field that writes it. The page number is
+ * taken from the <code>page</code> attribute, counting from 1. Ink
+ * gestures and the <code>content</code> element are imported as well;
+ * popups and other elements are ignored. Annotations of unknown subtype,
+ * without rectangle or on a page that does not exist are skipped.
+ *
+ * The XFDF file is parsed with SAX and each annotation is written to the
+ * end of the PDF file as soon as it has been read, so memory use only
+ * grows by a few bytes per annotation. The pages are updated after all
+ * annotations have been read. Annotations that match an optional filter
+ * are removed from these pages in the same update, so an edited XFDF file
+ * can replace the annotations it was exported from.
+ */
+public class XfdfImporter {
+    public static final String XFDF_NAMESPACE = Annotation.namespaces.get("");
+
+    private final File xfdf;
+    private final AnnotationStripper stripper;
+    private final int threads;
+    private final File outputDir;
+
+    /**
+     * @param xfdf XFDF file to import into all PDF files, or directory with
+     *        one file per PDF file, named like the files written with
+     *        <code>--output-dir</code>
+     * @param remove Annotations to remove, or <code>null</code>
+     * @param threads Number of worker threads, or 0 for one per processor
+     * @param outputDir Directory to write updated copies to, or
+     *        <code>null</code> to append to the files in place
+     */
+    public XfdfImporter(File xfdf, AnnotationFilter remove, int threads, File outputDir) {
+        if ( threads <= 0 ) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.xfdf = xfdf;
+        this.stripper = remove == null ? null : new AnnotationStripper(remove, 1, null);
+        this.threads = threads;
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * Import annotations into all files and print the number of imported
+     * annotations of each file, in the order of the files.
+     * @param out Stream for the tab-separated name and number of each file
+     * @param filenames Paths to the PDF files, each file must only be
+     *        given once
+     * @return number of files that could not be updated
+     * @throws IOException if two files would be written to the same file
+     *         in the output directory or read the same XFDF file
+     */
+    public int importAll(PrintStream out, String[] filenames)
+      throws InterruptedException, IOException {
+        if ( outputDir != null ) BatchInspector.checkOutputNames(filenames, null);
+        if ( xfdf.isDirectory() ) BatchInspector.checkOutputNames(filenames, "xml");
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        int failed = 0;
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>(filenames.length);
+            for ( final String filename : filenames ) {
+                results.add( pool.submit( new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        return importFile(filename);
+                    }
+                } ) );
+            }
+            for ( int i = 0; i < filenames.length; i++ ) {
+                try {
+                    out.println( filenames[i] + "\t" + results.get(i).get() );
+                } catch (ExecutionException e) {
+                    failed++;
+                    System.err.println(filenames[i] + ": " + e.getCause());
+                }
+            }
+            out.flush();
+        } finally {
+            pool.shutdownNow();
+        }
+        return failed;
+    }
+
+    /**
+     * Import annotations into a file. If the import fails, the file is left
+     * as it was.
+     * @return number of imported annotations
+     */
+    public int importFile(String filename) throws IOException, SAXException {
+        File source = new File(filename);
+        File target = source;
+        if ( outputDir != null ) {
+            target = new File( outputDir, source.getName() );
+            if ( target.getCanonicalFile().equals( source.getCanonicalFile() ) ) {
+                throw new IOException("output file is the input file");
+            }
+        }
+        File input = xfdf.isDirectory()
+            ? new File( xfdf, BatchInspector.outputName(filename, "xml") ) : xfdf;
+        InputStream in = new BufferedInputStream( new FileInputStream(input), 65536 );
+        try {
+            PdfReader reader = Marginalia.openReader(filename, true);
+            try {
+                if ( target != source ) AnnotationStripper.copy(source, target);
+                return importInto(reader, in, target);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Import annotations and append the update to a file, which must be
+     * the file opened by the reader or a copy of it. If nothing is changed,
+     * the file is left as it was.
+     */
+    private int importInto(PdfReader reader, InputStream in, File target)
+        throws IOException, SAXException {
+        long length = target.length();
+        FileOutputStream file = new FileOutputStream(target, true);
+        boolean changed = false;
+        try {
+            OutputStream out = new BufferedOutputStream(file, 65536);
+            IncrementalUpdate update = new IncrementalUpdate(reader, out, length);
+            int added = apply(reader, in, update);
+            if ( !update.isEmpty() ) {
+                update.finish();
+                changed = true;
+            }
+            return added;
+        } finally {
+            // nothing is left behind by failed or empty updates
+            if ( !changed ) file.getChannel().truncate(length);
+            file.close();
+        }
+    }
+
+    /**
+     * Read annotations from XFDF and add them and the changed pages of an
+     * opened file to an update.
+     * @return number of imported annotations
+     */
+    int apply(PdfReader reader, InputStream in, IncrementalUpdate update)
+        throws IOException, SAXException {
+        Handler handler = new Handler(reader, update);
+        XMLReader parser;
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            parser = factory.newSAXParser().getXMLReader();
+        } catch (ParserConfigurationException e) {
+            throw new SAXException(e);
+        }
+        // external entities could disclose local files in the imported annotations
+        parser.setFeature("http://xml.org/sax/features/external-general-entities", false);
+        parser.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+        try {
+            parser.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        } catch (SAXException e) {
+            // not supported by this parser
+        }
+        parser.setContentHandler(handler);
+        parser.parse( new InputSource(in) );
+
+        // group the new annotations by page
+        int pageCount = reader.getNumberOfPages();
+        ColumnWriter.IntColumn pages = handler.pages;
+        ColumnWriter.IntColumn numbers = handler.numbers;
+        int[] first = new int[ pageCount + 2 ];
+        for ( int i = 0; i < pages.size; i++ ) first[ pages.values[i] + 1 ]++;
+        for ( int p = 1; p <= pageCount + 1; p++ ) first[p] += first[p-1];
+        int[] order = new int[ pages.size ];
+        int[] next = new int[ pageCount + 1 ];
+        System.arraycopy( first, 0, next, 0, pageCount + 1 );
+        for ( int i = 0; i < pages.size; i++ ) order[ next[ pages.values[i] ]++ ] = numbers.values[i];
+
+        for ( int pageNum = 1; pageNum <= pageCount; pageNum++ ) {
+            boolean strip = stripper != null && stripper.getFilter().acceptsPage(pageNum);
+            if ( first[pageNum] == first[pageNum+1] && !strip ) continue;
+            PdfDictionary page = reader.getPageN(pageNum);
+            boolean changed = strip && stripper.strip(page, update) > 0;
+            if ( first[pageNum] < first[pageNum+1] ) {
+                PdfArray old = page.getAsArray(PdfName.ANNOTS);
+                PdfArray annots = old == null ? new PdfArray() : new PdfArray(old);
+                for ( int i = first[pageNum]; i < first[pageNum+1]; i++ ) {
+                    annots.add( new ObjectReference( order[i], 0 ) );
+                }
+                page.put(PdfName.ANNOTS, annots);
+                changed = true;
+            }
+            if ( changed ) {
+                PRIndirectReference pageRef = reader.getPageOrigRef(pageNum);
+                update.put( pageRef.getNumber(), pageRef.getGeneration(), page );
+            }
+            reader.releasePage(pageNum);
+        }
+        if ( handler.skipped > 0 ) {
+            System.err.println("skipped " + handler.skipped + " invalid annotations");
+        }
+        return pages.size;
+    }
+
+    /**
+     * Append a list of numbers separated by commas, semicolons or white
+     * space as content of a PDF array. Plain decimal numbers are copied.
+     * @return false if the list contains anything but numbers
+     */
+    static boolean appendNumbers(CharSequence s, StringBuilder out) {
+        int i = 0, n = s.length();
+        boolean firstNumber = true;
+        while ( i < n ) {
+            char c = s.charAt(i);
+            if ( c == ',' || c == ';' || Character.isWhitespace(c) ) {
+                i++;
+                continue;
+            }
+            int start = i;
+            boolean plain = true;
+            int digits = 0, dots = 0;
+            while ( i < n ) {
+                c = s.charAt(i);
+                if ( c == ',' || c == ';' || Character.isWhitespace(c) ) break;
+                if ( c >= '0' && c <= '9' ) {
+                    digits++;
+                } else if ( c == '.' ) {
+                    dots++;
+                } else if ( !( ( c == '-' || c == '+' ) && i == start ) ) {
+                    plain = false;
+                }
+                i++;
+            }
+            if ( !firstNumber ) out.append(' ');
+            firstNumber = false;
+            if ( plain && digits > 0 && dots <= 1 ) {
+                out.append( s, start, i );
+            } else {
+                try {
+                    float f = Float.parseFloat( s.subSequence(start, i).toString() );
+                    if ( Float.isNaN(f) || Float.isInfinite(f) ) return false;
+                    out.append( new PdfNumber(f).toString() );
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds and writes one annotation dictionary at a time.
+     */
+    private static class Handler extends DefaultHandler {
+        private final PdfReader reader;
+        private final IncrementalUpdate update;
+        private final int pageCount;
+
+        /** Page and object number of each imported annotation */
+        final ColumnWriter.IntColumn pages = new ColumnWriter.IntColumn();
+        final ColumnWriter.IntColumn numbers = new ColumnWriter.IntColumn();
+        int skipped;
+
+        private boolean inAnnots;
+        /** Depth of elements below the annots element */
+        private int depth;
+        private PdfDictionary annot;
+        private int pageNum;
+        private boolean valid;
+        private boolean collect;
+        private final StringBuilder text = new StringBuilder(256);
+        private StringBuilder ink;
+
+        Handler(PdfReader reader, IncrementalUpdate update) {
+            this.reader = reader;
+            this.update = update;
+            this.pageCount = reader.getNumberOfPages();
+        }
+
+        private static boolean isXfdf(String uri) {
+            return uri.length() == 0 || uri.equals(XFDF_NAMESPACE);
+        }
+
+        public void startElement(String uri, String localName, String qName, Attributes attrs) {
+            if ( !inAnnots ) {
+                if ( isXfdf(uri) && localName.equals("annots") ) {
+                    inAnnots = true;
+                    depth = 0;
+                }
+                return;
+            }
+            depth++;
+            if ( depth == 1 ) {
+                PdfName subtype = isXfdf(uri) ? Annotation.ELEMENTS.get(localName) : null;
+                if ( subtype == null ) {
+                    if ( isXfdf(uri) ) skipped++;
+                    return;
+                }
+                startAnnotation(subtype, attrs);
+            } else if ( annot != null && isXfdf(uri) ) {
+                if ( depth == 2 && localName.equals("inklist") ) {
+                    ink = new StringBuilder(1024).append('[');
+                } else if ( ( depth == 3 && ink != null && localName.equals("gesture") )
+                            || ( depth == 2 && localName.equals("content") ) ) {
+                    text.setLength(0);
+                    collect = true;
+                }
+            }
+        }
+
+        public void characters(char[] ch, int start, int length) {
+            if ( collect ) text.append( ch, start, length );
+        }
+
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if ( !inAnnots ) return;
+            if ( depth == 0 ) {
+                inAnnots = false;
+                return;
+            }
+            if ( annot != null && isXfdf(uri) ) {
+                if ( depth == 1 ) {
+                    endAnnotation();
+                } else if ( depth == 2 && localName.equals("inklist") ) {
+                    annot.put( Annotation.INKLIST, new PdfLiteral( ink.append(']').toString() ) );
+                    ink = null;
+                } else if ( collect && localName.equals("gesture") ) {
+                    ink.append('[');
+                    if ( !appendNumbers(text, ink) ) valid = false;
+                    ink.append(']');
+                    collect = false;
+                } else if ( collect && localName.equals("content") ) {
+                    annot.put( PdfName.CONTENTS, new PdfString( text.toString(), PdfObject.TEXT_UNICODE ) );
+                    collect = false;
+                }
+            }
+            depth--;
+        }
+
+        private void startAnnotation(PdfName subtype, Attributes attrs) {
+            annot = new PdfDictionary(PdfName.ANNOT);
+            annot.put(PdfName.SUBTYPE, subtype);
+            pageNum = 0;
+            valid = true;
+            for ( int i = 0; i < attrs.getLength(); i++ ) {
+                String name = attrs.getLocalName(i);
+                String value = attrs.getValue(i);
+                if ( name.equals("page") ) {
+                    try {
+                        pageNum = Integer.parseInt( value.trim() );
+                    } catch (NumberFormatException e) {
+                        valid = false;
+                    }
+                    continue;
+                }
+                if ( attrs.getURI(i).length() > 0 ) continue;
+                Annotation.Field field = Annotation.FIELDS.get(name);
+                if ( field == null ) continue;
+                PdfObject object = field.parse(value);
+                if ( object == null ) {
+                    valid = false;
+                } else {
+                    annot.put( field.name, object );
+                }
+            }
+        }
+
+        private void endAnnotation() throws SAXException {
+            if ( valid && pageNum >= 1 && pageNum <= pageCount
+                 && annot.get(PdfName.RECT) != null ) {
+                annot.put( PdfName.P, reader.getPageOrigRef(pageNum) );
+                try {
+                    numbers.add( update.add(annot) );
+                } catch (IOException e) {
+                    throw new SAXException(e);
+                }
+                pages.add(pageNum);
+            } else {
+                skipped++;
+            }
+            annot = null;
+            ink = null;
+            collect = false;
+        }
+    }
+}
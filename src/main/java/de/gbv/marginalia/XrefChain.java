@@ -0,0 +1,620 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.marginalia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfObject;
+
+/**
+ * The chain of cross-reference sections of a PDF file.
+ *
+ * Each incremental update of a PDF file appends a new cross-reference
+ * section that lists the objects added, changed or deleted by this update
+ * and points to the previous section. This class follows the
+ * <code>/Prev</code> links from the end of the file and only reads the
+ * headers of the sections, without parsing any other objects. Entries are
+ * read on demand: the entries of the newest revisions are read when they
+ * are requested with {@link #getEntriesSince}, while single entries of
+ * older revisions are looked up at their fixed position in the table, so
+ * the table of a large original file is not parsed when only a few
+ * objects have changed. Both cross-reference tables and cross-reference
+ * streams are supported.
+ *
+ * The file is kept open for lookups after the headers have been read and
+ * must be closed with {@link #close}.
+ */
+public class XrefChain implements Closeable {
+
+    /** Free object */
+    public static final int FREE = 0;
+    /** Object at a byte offset */
+    public static final int IN_USE = 1;
+    /** Object in an object stream */
+    public static final int COMPRESSED = 2;
+
+    /**
+     * An entry of a cross-reference section.
+     */
+    public static class Entry {
+        public final int type;
+        /** Byte offset, or number of the object stream for compressed objects */
+        public final long offset;
+        /** Generation, or index in the object stream for compressed objects */
+        public final int generation;
+
+        Entry(int type, long offset, int generation) {
+            this.type = type;
+            this.offset = offset;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * A cross-reference section, written by one revision of the file.
+     */
+    public static class Revision {
+        /** Byte offset of the section, as given by <code>startxref</code> */
+        public final long offset;
+        /** Byte offset of the previous section, or -1 */
+        long prev = -1;
+        /** Byte offset of the stream of a hybrid file, or -1 */
+        long xrefStm = -1;
+        /** First object, number of objects and offset of the table subsections */
+        List<long[]> subsections;
+        /** Entries by object number, or null if not read yet */
+        Map<Integer,Entry> entries;
+        /** Entries of the stream of a hybrid file, or null if not read yet */
+        Map<Integer,Entry> hybrid;
+
+        Revision(long offset) {
+            this.offset = offset;
+        }
+
+        public long getPrev() {
+            return prev;
+        }
+    }
+
+    /** Number of bytes at the end of a file searched for startxref */
+    private static final int TAIL_SIZE = 1024;
+
+    /** Number of bytes first read of a stream with indirect length */
+    private static final int STREAM_CHUNK = 1 << 16;
+
+    /** Maximum size of a cross-reference stream with indirect length */
+    private static final int MAX_STREAM_SIZE = 1 << 24;
+
+    /** Size of an entry in a cross-reference table */
+    private static final int ENTRY_SIZE = 20;
+
+    /** Number of table entries read at once */
+    private static final int ENTRY_BLOCK = 4096;
+
+    private final File pdf;
+    private RandomAccessFile file;
+    private final List<Revision> revisions = new ArrayList<Revision>();
+
+    /**
+     * Read the headers of the cross-reference sections of a PDF file.
+     */
+    public XrefChain(File pdf) throws IOException {
+        this.pdf = pdf;
+        try {
+            Set<Long> seen = new HashSet<Long>();
+            long offset = startxref();
+            while ( offset >= 0 && seen.add(offset) ) {
+                Revision r = readSection(offset);
+                revisions.add(r);
+                offset = r.prev;
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Close the file. It is opened again if more entries are requested.
+     */
+    public void close() throws IOException {
+        if ( file != null ) {
+            file.close();
+            file = null;
+        }
+    }
+
+    /**
+     * Get the revisions, starting with the newest one.
+     */
+    public List<Revision> getRevisions() {
+        return revisions;
+    }
+
+    /**
+     * Get the index of the revision with a given offset, or -1.
+     */
+    public int indexOf(long offset) {
+        for ( int i = 0; i < revisions.size(); i++ ) {
+            if ( revisions.get(i).offset == offset ) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the entries of all revisions newer than a given revision. If an
+     * object has been updated more than once, the newest entry is returned.
+     * Older revisions are not read.
+     * @param base index of the base revision
+     */
+    public Map<Integer,Entry> getEntriesSince(int base) throws IOException {
+        Map<Integer,Entry> entries = new HashMap<Integer,Entry>();
+        for ( int i = Math.min( base, revisions.size() ) - 1; i >= 0; i-- ) {
+            entries.putAll( entries( revisions.get(i) ) );
+        }
+        return entries;
+    }
+
+    /**
+     * Get the entry of an object as of a given revision, or null if the
+     * object did not exist in this revision. Only the subsections of the
+     * tables that contain the object are read.
+     * @param base index of the revision
+     * @param object object number
+     */
+    public Entry getEntry(int base, int object) throws IOException {
+        for ( int i = base; i < revisions.size(); i++ ) {
+            Entry e = lookup( revisions.get(i), object );
+            if ( e != null ) return e;
+        }
+        return null;
+    }
+
+    private Entry lookup(Revision r, int object) throws IOException {
+        if ( r.entries != null ) return r.entries.get(object);
+        if ( r.subsections == null ) return entries(r).get(object);
+        for ( long[] s : r.subsections ) {
+            if ( object >= s[0] && object < s[0] + s[1] ) {
+                Entry e = readEntry( read( s[2] + (object - s[0]) * ENTRY_SIZE, ENTRY_SIZE ), 0 );
+                if ( e == null ) throw new IOException("invalid cross-reference entry at " + r.offset);
+                return e;
+            }
+        }
+        return r.xrefStm >= 0 ? hybrid(r).get(object) : null;
+    }
+
+    /**
+     * Get all entries of a revision, reading them on first access.
+     */
+    private Map<Integer,Entry> entries(Revision r) throws IOException {
+        if ( r.entries != null ) return r.entries;
+        Map<Integer,Entry> entries = new HashMap<Integer,Entry>();
+        if ( r.subsections == null ) {
+            PdfLexer lexer = new PdfLexer( this, r.offset );
+            lexer.token();
+            lexer.token();
+            lexer.token();
+            readStream( lexer, r, entries );
+        } else {
+            for ( long[] s : r.subsections ) {
+                for ( long i = 0; i < s[1]; i += ENTRY_BLOCK ) {
+                    int n = (int)Math.min( ENTRY_BLOCK, s[1] - i );
+                    byte[] block = read( s[2] + i * ENTRY_SIZE, n * ENTRY_SIZE );
+                    for ( int k = 0; k < n; k++ ) {
+                        Entry e = readEntry( block, k * ENTRY_SIZE );
+                        if ( e == null ) throw new IOException("invalid cross-reference entry at " + r.offset);
+                        int object = (int)( s[0] + i + k );
+                        if ( !entries.containsKey(object) ) entries.put( object, e );
+                    }
+                }
+            }
+            if ( r.xrefStm >= 0 ) {
+                for ( Map.Entry<Integer,Entry> e : hybrid(r).entrySet() ) {
+                    if ( !entries.containsKey( e.getKey() ) ) {
+                        entries.put( e.getKey(), e.getValue() );
+                    }
+                }
+            }
+        }
+        r.entries = entries;
+        return entries;
+    }
+
+    /**
+     * Get the entries of the stream of a hybrid file.
+     */
+    private Map<Integer,Entry> hybrid(Revision r) throws IOException {
+        if ( r.hybrid == null ) {
+            r.hybrid = new HashMap<Integer,Entry>();
+            PdfLexer stm = new PdfLexer( this, r.xrefStm );
+            stm.token();
+            stm.token();
+            if ( "obj".equals( stm.token() ) ) {
+                readStream( stm, new Revision(r.xrefStm), r.hybrid );
+            }
+        }
+        return r.hybrid;
+    }
+
+    /**
+     * Parse an entry of a cross-reference table.
+     * @return the entry or null if the bytes are not an entry of 20 bytes
+     */
+    private static Entry readEntry(byte[] data, int pos) {
+        if ( pos + ENTRY_SIZE > data.length ) return null;
+        long offset = 0;
+        int generation = 0;
+        for ( int i = 0; i < 10; i++ ) {
+            int c = data[pos + i] - '0';
+            if ( c < 0 || c > 9 ) return null;
+            offset = offset * 10 + c;
+        }
+        for ( int i = 11; i < 16; i++ ) {
+            int c = data[pos + i] - '0';
+            if ( c < 0 || c > 9 ) return null;
+            generation = generation * 10 + c;
+        }
+        int type = data[pos + 17];
+        if ( data[pos + 10] != ' ' || data[pos + 16] != ' ' || ( type != 'n' && type != 'f' )
+             || !isLineEnd( data[pos + 18] ) || !isLineEnd( data[pos + 19] ) ) {
+            return null;
+        }
+        return new Entry( type == 'n' ? IN_USE : FREE, offset, generation );
+    }
+
+    private static boolean isLineEnd(byte c) {
+        return c == ' ' || c == '\r' || c == '\n';
+    }
+
+    private long startxref() throws IOException {
+        long length = file().length();
+        int size = (int)Math.min( length, TAIL_SIZE );
+        String tail = new String( read( length - size, size ), "ISO-8859-1" );
+        int i = tail.lastIndexOf("startxref");
+        if ( i < 0 ) throw new IOException("startxref not found");
+        PdfLexer lexer = new PdfLexer( tail.substring( i + 9 ).getBytes("ISO-8859-1"), 0 );
+        String offset;
+        try {
+            offset = lexer.token();
+        } catch (PdfLexer.Truncated e) {
+            offset = "";
+        }
+        if ( !PdfLexer.isInteger(offset) ) throw new IOException("invalid startxref");
+        return Long.parseLong(offset);
+    }
+
+    private RandomAccessFile file() throws IOException {
+        if ( file == null ) file = new RandomAccessFile(pdf, "r");
+        return file;
+    }
+
+    /**
+     * Read bytes of the file. Less bytes are returned at the end of the file.
+     */
+    byte[] read(long offset, int size) throws IOException {
+        RandomAccessFile file = file();
+        size = (int)Math.max( 0, Math.min( size, file.length() - offset ) );
+        byte[] buffer = new byte[size];
+        file.seek(offset);
+        file.readFully(buffer);
+        return buffer;
+    }
+
+    /**
+     * Read the header of a cross-reference table with trailer or a
+     * cross-reference stream.
+     */
+    private Revision readSection(long offset) throws IOException {
+        Revision r = new Revision(offset);
+        PdfLexer lexer = new PdfLexer( this, offset );
+        String token = lexer.token();
+        if ( "xref".equals(token) ) {
+            long start = lexer.position();
+            if ( !readSubsections(lexer, r) ) {
+                // entries are not of 20 bytes, so the table must be parsed
+                lexer.seek(start);
+                r.subsections = null;
+                r.entries = new HashMap<Integer,Entry>();
+                readTable(lexer, r);
+            }
+        } else if ( PdfLexer.isInteger(token) ) {
+            // n g obj << ... >> stream
+            lexer.token();
+            if ( !"obj".equals( lexer.token() ) ) {
+                throw new IOException("invalid cross-reference section at " + offset);
+            }
+            PdfObject dict = lexer.object();
+            if ( !dict.isDictionary() || !lexer.streamStart() ) {
+                throw new IOException("cross-reference stream expected at " + offset);
+            }
+            r.prev = getLong( (PdfDictionary)dict, PdfName.PREV, -1 );
+        } else {
+            throw new IOException("invalid cross-reference section at " + offset);
+        }
+        return r;
+    }
+
+    /**
+     * Read the subsection headers and the trailer of a cross-reference
+     * table, skipping the entries.
+     * @return false if the entries are not of the size required by the
+     *         specification and the table must be parsed instead
+     */
+    private boolean readSubsections(PdfLexer lexer, Revision r) throws IOException {
+        List<long[]> subsections = new ArrayList<long[]>();
+        String token = lexer.token();
+        while ( PdfLexer.isInteger(token) ) {
+            String count = lexer.token();
+            if ( !PdfLexer.isInteger(count) ) return false;
+            long first = Long.parseLong(token);
+            long n = Long.parseLong(count);
+            lexer.skipWhitespace();
+            long start = lexer.position();
+            if ( n > 0 && ( readEntry( read( start, ENTRY_SIZE ), 0 ) == null
+                 || readEntry( read( start + (n-1) * ENTRY_SIZE, ENTRY_SIZE ), 0 ) == null ) ) {
+                return false;
+            }
+            subsections.add( new long[] { first, n, start } );
+            lexer.seek( start + n * ENTRY_SIZE );
+            token = lexer.token();
+        }
+        if ( !"trailer".equals(token) ) return false;
+        PdfObject trailer = lexer.object();
+        if ( !trailer.isDictionary() ) return false;
+        readTrailer( (PdfDictionary)trailer, r );
+        r.subsections = subsections;
+        return true;
+    }
+
+    private static void readTrailer(PdfDictionary trailer, Revision r) {
+        r.prev = getLong( trailer, PdfName.PREV, -1 );
+        // hybrid files have additional entries in a cross-reference stream
+        r.xrefStm = getLong( trailer, PdfName.XREFSTM, -1 );
+    }
+
+    private void readTable(PdfLexer lexer, Revision r) throws IOException {
+        String token = lexer.token();
+        while ( PdfLexer.isInteger(token) ) {
+            long first = Long.parseLong(token);
+            long count = lexer.integer();
+            for ( long i = 0; i < count; i++ ) {
+                long off = lexer.integer();
+                long gen = lexer.integer();
+                String type = lexer.token();
+                if ( !"n".equals(type) && !"f".equals(type) ) {
+                    throw new IOException("invalid cross-reference entry at " + lexer.position());
+                }
+                int object = (int)( first + i );
+                if ( !r.entries.containsKey(object) ) {
+                    r.entries.put( object, new Entry( "n".equals(type) ? IN_USE : FREE, off, (int)gen ) );
+                }
+            }
+            token = lexer.token();
+        }
+        if ( !"trailer".equals(token) ) {
+            throw new IOException("trailer not found at " + r.offset);
+        }
+        PdfObject trailer = lexer.object();
+        if ( !trailer.isDictionary() ) {
+            throw new IOException("invalid trailer at " + r.offset);
+        }
+        readTrailer( (PdfDictionary)trailer, r );
+        if ( r.xrefStm >= 0 ) {
+            for ( Map.Entry<Integer,Entry> e : hybrid(r).entrySet() ) {
+                if ( !r.entries.containsKey( e.getKey() ) ) {
+                    r.entries.put( e.getKey(), e.getValue() );
+                }
+            }
+        }
+    }
+
+    private void readStream(PdfLexer lexer, Revision r, Map<Integer,Entry> entries) throws IOException {
+        PdfObject obj = lexer.object();
+        if ( !obj.isDictionary() || !lexer.streamStart() ) {
+            throw new IOException("cross-reference stream expected at " + r.offset);
+        }
+        PdfDictionary dict = (PdfDictionary)obj;
+
+        long start = lexer.position();
+        PdfObject length = dict.get(PdfName.LENGTH);
+        byte[] data = length != null && length.isNumber()
+                    ? read( start, ((PdfNumber)length).intValue() )
+                    : readToEndstream( start, r.offset );
+
+        PdfObject filter = single( dict.get(PdfName.FILTER), r.offset );
+        if ( filter != null ) {
+            if ( !PdfName.FLATEDECODE.equals(filter) ) {
+                throw new IOException("unsupported filter " + filter);
+            }
+            data = inflate(data);
+            PdfObject parms = single( dict.get(PdfName.DECODEPARMS), r.offset );
+            if ( parms != null && parms.isDictionary() ) {
+                PdfDictionary p = (PdfDictionary)parms;
+                long predictor = getLong( p, PdfName.PREDICTOR, 1 );
+                if ( predictor >= 10 ) {
+                    data = unpredict( data, (int)getLong( p, PdfName.COLUMNS, 1 ) );
+                } else if ( predictor != 1 ) {
+                    throw new IOException("unsupported predictor " + predictor);
+                }
+            }
+        }
+
+        int[] widths = getInts( dict.get(PdfName.W) );
+        if ( widths == null || widths.length != 3 ) {
+            throw new IOException("invalid cross-reference stream at " + r.offset);
+        }
+        int rowSize = widths[0] + widths[1] + widths[2];
+
+        int[] index;
+        if ( dict.get(PdfName.INDEX) == null ) {
+            index = new int[] { 0, (int)getLong( dict, PdfName.SIZE, 0 ) };
+        } else {
+            index = getInts( dict.get(PdfName.INDEX) );
+            if ( index == null ) {
+                throw new IOException("invalid cross-reference stream at " + r.offset);
+            }
+        }
+
+        int pos = 0;
+        for ( int k = 0; k + 1 < index.length; k += 2 ) {
+            int first = index[k];
+            int count = index[k+1];
+            for ( int i = 0; i < count && pos + rowSize <= data.length; i++ ) {
+                long type = widths[0] == 0 ? 1 : field( data, pos, widths[0] );
+                pos += widths[0];
+                long f2 = field( data, pos, widths[1] );
+                pos += widths[1];
+                long f3 = field( data, pos, widths[2] );
+                pos += widths[2];
+                int object = first + i;
+                if ( type > COMPRESSED || entries.containsKey(object) ) continue;
+                entries.put( object, new Entry( (int)type, f2, (int)f3 ) );
+            }
+        }
+    }
+
+    /**
+     * Read the data of a stream with indirect length up to the keyword
+     * <code>endstream</code>. The size read is doubled until the keyword
+     * is found, so a small stream is not read with the maximum size.
+     */
+    private byte[] readToEndstream(long start, long offset) throws IOException {
+        int from = 0;
+        for ( int size = STREAM_CHUNK; size <= MAX_STREAM_SIZE; size *= 2 ) {
+            byte[] data = read( start, size );
+            String s = new String( data, from, data.length - from, "ISO-8859-1" );
+            int end = s.indexOf("endstream");
+            if ( end >= 0 ) {
+                end += from;
+                // the end-of-line marker before the keyword is no data
+                if ( end > 0 && data[end-1] == '\n' ) end--;
+                if ( end > 0 && data[end-1] == '\r' ) end--;
+                byte[] trimmed = new byte[end];
+                System.arraycopy( data, 0, trimmed, 0, end );
+                return trimmed;
+            }
+            if ( data.length < size ) break;
+            from = data.length - "endstream".length() + 1;
+        }
+        throw new IOException("endstream not found at " + offset);
+    }
+
+    private static long field(byte[] data, int pos, int width) {
+        long value = 0;
+        for ( int i = 0; i < width; i++ ) {
+            value = (value << 8) | (data[pos + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Get a direct number of a dictionary. References are not followed.
+     */
+    private static long getLong(PdfDictionary dict, PdfName key, long def) {
+        PdfObject value = dict.get(key);
+        return value != null && value.isNumber() ? (long)((PdfNumber)value).doubleValue() : def;
+    }
+
+    /**
+     * Get the numbers of an array, or null if it is no array of direct numbers.
+     */
+    private static int[] getInts(PdfObject obj) {
+        if ( obj == null || !obj.isArray() ) return null;
+        PdfArray array = (PdfArray)obj;
+        int[] values = new int[ array.size() ];
+        for ( int i = 0; i < values.length; i++ ) {
+            PdfObject value = array.getPdfObject(i);
+            if ( value == null || !value.isNumber() ) return null;
+            values[i] = ((PdfNumber)value).intValue();
+        }
+        return values;
+    }
+
+    /**
+     * Get the only element of an array of filters or decode parameters,
+     * or the object itself if it is no array.
+     */
+    private static PdfObject single(PdfObject obj, long offset) throws IOException {
+        if ( obj == null || !obj.isArray() ) return obj;
+        PdfArray array = (PdfArray)obj;
+        if ( array.size() > 1 ) throw new IOException("unsupported filters at " + offset);
+        return array.size() == 0 ? null : array.getPdfObject(0);
+    }
+
+    static byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream( data.length * 4 );
+        byte[] buffer = new byte[4096];
+        try {
+            while ( !inflater.finished() ) {
+                int n = inflater.inflate(buffer);
+                if ( n == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) ) break;
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("invalid compressed data: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Undo PNG prediction with one byte per pixel.
+     */
+    static byte[] unpredict(byte[] data, int columns) throws IOException {
+        int rows = data.length / (columns + 1);
+        byte[] out = new byte[ rows * columns ];
+        byte[] prior = new byte[columns];
+        for ( int row = 0; row < rows; row++ ) {
+            int in = row * (columns + 1);
+            int type = data[in++];
+            int base = row * columns;
+            for ( int i = 0; i < columns; i++ ) {
+                int raw = data[in + i] & 0xff;
+                int left = i > 0 ? out[base + i - 1] & 0xff : 0;
+                int up = prior[i] & 0xff;
+                int upLeft = i > 0 ? prior[i - 1] & 0xff : 0;
+                int value;
+                switch ( type ) {
+                    case 0: value = raw; break;
+                    case 1: value = raw + left; break;
+                    case 2: value = raw + up; break;
+                    case 3: value = raw + ( (left + up) >> 1 ); break;
+                    case 4: value = raw + paeth( left, up, upLeft ); break;
+                    default: throw new IOException("invalid PNG predictor " + type);
+                }
+                out[base + i] = (byte)value;
+            }
+            System.arraycopy( out, base, prior, 0, columns );
+        }
+        return out;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if ( pa <= pb && pa <= pc ) return a;
+        return pb <= pc ? b : c;
+    }
+}
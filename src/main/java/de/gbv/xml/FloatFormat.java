@@ -0,0 +1,57 @@
+/**
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ */
+package de.gbv.xml;
+
+/**
+ * Formats float values without creating intermediate strings.
+ *
+ * The format is the same as of {@link Float#toString(float)}: plain decimal
+ * notation with at least one fractional digit for values between 10^-3 and
+ * 10^7, and as few digits as needed to read back the same float. Other
+ * values are formatted with <code>Float.toString</code>.
+ */
+public final class FloatFormat {
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12
+    };
+
+    private FloatFormat() {
+    }
+
+    /**
+     * Append a float value to a StringBuilder.
+     */
+    public static StringBuilder append( StringBuilder sb, float f ) {
+        float a = Math.abs(f);
+        if ( !(a >= 1e-3f && a < 1e7f) ) {
+            return sb.append(f);
+        }
+        for ( int d = 1; d < POW10.length; d++ ) {
+            long scaled = (long)Math.rint( a * POW10[d] );
+            if ( (float)( scaled / POW10[d] ) == a ) {
+                if ( f < 0 ) sb.append('-');
+                long p = (long)POW10[d];
+                sb.append( scaled / p );
+                sb.append('.');
+                long frac = scaled % p;
+                // leading zeros of the fractional part
+                for ( long q = p / 10; q > frac && q > 1; q /= 10 ) {
+                    sb.append('0');
+                }
+                sb.append(frac);
+                return sb;
+            }
+        }
+        return sb.append(f);
+    }
+
+    /**
+     * Format a float value.
+     */
+    public static String toString( float f ) {
+        return append( new StringBuilder(16), f ).toString();
+    }
+}
@@ -21,6 +21,10 @@ import java.util.Stack;
  * 2. No processing instructions and unparsed entities
  * 3. Namespace prefixes are defined but not changed
  * 4. All attributes are CDATA and don't have namespaces
+ *
+ * Attributes can either be passed as Map or appended with {@link #attr}
+ * before the element is started. Appended attributes are kept in a buffer
+ * that is reused for all elements, in the order they were appended.
  */
 public class SimpleXMLCreator {
     private final ContentHandler target;
@@ -42,6 +46,19 @@ public class SimpleXMLCreator {
 
     private Stack<Element> elements = new Stack<Element>();
 
+    /** Elements by prefix and local name, created once per creator. */
+    private final Map<String,Map<String,Element>> names
+        = new HashMap<String,Map<String,Element>>();
+
+    /** Attributes of the next element. */
+    private final AttributesImpl attributes = new AttributesImpl();
+
+    /** Buffer for character content. */
+    private char[] chars = new char[256];
+
+    /** Buffer for formatting numbers. */
+    private final StringBuilder number = new StringBuilder(16);
+
     public SimpleXMLCreator(ContentHandler target, Map<String,String> namespaces, boolean xmlns ) 
       throws SAXException {
         this.target = target;
@@ -60,16 +77,62 @@ public class SimpleXMLCreator {
         this.xmlns = false;
     }
 
+    /**
+     * Get the element with a given prefix and local name.
+     */
+    private Element element( String prefix, String name ) {
+        Map<String,Element> byName = names.get(prefix);
+        if ( byName == null ) {
+            byName = new HashMap<String,Element>();
+            names.put( prefix, byName );
+        }
+        Element e = byName.get(name);
+        if ( e == null ) {
+            e = new Element( prefix, name );
+            byName.put( name, e );
+        }
+        return e;
+    }
+
+    /**
+     * Append an attribute to the next element that is started.
+     */
+    public SimpleXMLCreator attr( String name, String value ) {
+        attributes.addAttribute( "", name, name, "CDATA", value );
+        return this;
+    }
+
+    /**
+     * Append an integer attribute to the next element that is started.
+     */
+    public SimpleXMLCreator attr( String name, int value ) {
+        return attr( name, Integer.toString(value) );
+    }
+
+    /**
+     * Append a float attribute to the next element that is started.
+     * The value is formatted with {@link FloatFormat}.
+     */
+    public SimpleXMLCreator attr( String name, float value ) {
+        number.setLength(0);
+        return attr( name, FloatFormat.append( number, value ).toString() );
+    }
+
     public SimpleXMLCreator startElement( String prefix, String name, Map<String,String> attributes ) 
       throws SAXException {
-        Element e = new Element( prefix, name );
-        AttributesImpl a = new AttributesImpl();
+        Element e = element( prefix, name );
+        AttributesImpl a = this.attributes;
 
         if ( xmlns ) { // TODO: move this to XMLWriter?
+            a = new AttributesImpl();
             for ( String nsPrefix : namespaces.keySet() ) {
                 String s = nsPrefix.equals("") ? "xmlns" : "xmlns:" + nsPrefix;
                 a.addAttribute( "", "", s, "CDATA", namespaces.get(nsPrefix) );
             }
+            for ( int i = 0; i < this.attributes.getLength(); i++ ) {
+                a.addAttribute( "", this.attributes.getLocalName(i),
+                    this.attributes.getQName(i), "CDATA", this.attributes.getValue(i) );
+            }
             xmlns = false;
         }
 
@@ -80,6 +143,7 @@ public class SimpleXMLCreator {
         }
 
         target.startElement( e.uri, e.localName, e.qName, a );
+        this.attributes.clear();
         elements.push(e);
 
         return this;
@@ -102,10 +166,36 @@ public class SimpleXMLCreator {
     public SimpleXMLCreator contentElement( String prefix, String name, 
       String content, Map<String,String> attributes ) throws SAXException {
         startElement( prefix, name, attributes );
-        target.characters( content.toCharArray(), 0, content.length() );
+        int length = content.length();
+        if ( length > chars.length ) {
+            chars = new char[ Math.max( length, 2 * chars.length ) ];
+        }
+        content.getChars( 0, length, chars, 0 );
+        target.characters( chars, 0, length );
+        return endElement();
+    }
+
+    /**
+     * Emit an element with character content from a StringBuilder. The
+     * content is copied into a reused buffer without creating a String.
+     */
+    public SimpleXMLCreator contentElement( String prefix, String name,
+      StringBuilder content ) throws SAXException {
+        startElement( prefix, name, null );
+        int length = content.length();
+        if ( length > chars.length ) {
+            chars = new char[ Math.max( length, 2 * chars.length ) ];
+        }
+        content.getChars( 0, length, chars, 0 );
+        target.characters( chars, 0, length );
         return endElement();
     }
 
+    public SimpleXMLCreator contentElement( String name, StringBuilder content )
+      throws SAXException {
+        return contentElement( "", name, content );
+    }
+
     public SimpleXMLCreator contentElement( String prefix, String name, String content ) 
       throws SAXException {
         return contentElement( prefix, name, content, null );
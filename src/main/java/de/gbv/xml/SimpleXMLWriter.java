@@ -9,112 +9,271 @@ import org.xml.sax.helpers.DefaultHandler;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 
 /**
  * Simple XML Printer for data-centric XML.
+ *
+ * Output is collected in an internal buffer. Runs of characters that need
+ * no escaping are copied in bulk and I/O errors are only checked when the
+ * buffer is flushed. When writing to an OutputStream, characters are
+ * directly encoded as UTF-8.
  */
 public class SimpleXMLWriter extends DefaultHandler {
     private final PrintWriter writer;
+    private final OutputStream out;
     private boolean hasCharacters;
     private boolean hasChilds;
     private int indent = 0;
     private String indentString = "  ";
 
+    private static final String NEWLINE = System.getProperty("line.separator");
+    private static final int BUFFER_SIZE = 8192;
+
+    private final char[] buf = new char[BUFFER_SIZE];
+    private int pos = 0;
+    private byte[] bytes;
+
     public SimpleXMLWriter( PrintWriter writer ) {
         this.writer = writer;
+        this.out = null;
+    }
+
+    /**
+     * Creates a writer for a fragment that starts at a given nesting depth.
+     * The output of such a writer can be inserted into a document written
+     * by another writer at the same depth.
+     */
+    public SimpleXMLWriter( PrintWriter writer, int indent ) {
+        this.writer = writer;
+        this.out = null;
+        this.indent = indent;
+    }
+
+    /**
+     * Creates a writer that encodes UTF-8 to an OutputStream.
+     */
+    public SimpleXMLWriter( OutputStream out ) {
+        this.writer = null;
+        this.out = out;
+        this.bytes = new byte[ 4 * BUFFER_SIZE ];
     }
 
     public void startDocument () throws SAXException {
-        writer.print("<?xml version='1.0' encoding='UTF-8'?>");
-        if (writer.checkError()) throw new SAXException("I/O error");
+        print("<?xml version='1.0' encoding='UTF-8'?>");
     }
 
-    public void startElement( String uri, String localName, String qName, Attributes attrs ) 
+    public void startElement( String uri, String localName, String qName, Attributes attrs )
       throws SAXException {
         hasCharacters = false;
         printIndent();
-        writer.print('<');
-        writer.print( "".equals(qName) ? localName : qName );
+        print('<');
+        print( "".equals(qName) ? localName : qName );
         for ( int i = 0; i < attrs.getLength (); i++ ) {
             String aName = attrs.getLocalName(i);
             if ("".equals(aName))
                 aName = attrs.getQName(i);
-            writer.print(" " + aName + "=\"");
-            String value = attrs.getValue(i);
-            int length = value.length();
-            for (int j = 0; j < length; j++) {
-                printEscaped( value.charAt(j), true );
-            }
-            writer.print("\"");
+            print(' ');
+            print(aName);
+            print("=\"");
+            printEscaped( attrs.getValue(i), true );
+            print('"');
         }
-        writer.print('>');
+        print('>');
         indent++;
-        if (writer.checkError()) throw new SAXException("I/O error");
     }
 
-    public void endElement( String uri, String localName, String qName ) {
+    public void endElement( String uri, String localName, String qName )
+      throws SAXException {
         indent--;
         if ( hasCharacters ) {
             hasCharacters = false;
         } else {
             printIndent();
         }
-        writer.print("</");
-        writer.print( "".equals(qName) ? localName : qName );
-        writer.print(">");
+        print("</");
+        print( "".equals(qName) ? localName : qName );
+        print('>');
     }
 
     /**
      * Print character data inside an element.
      */
-    public void characters (char[] ch, int start, int length) 
+    public void characters (char[] ch, int start, int length)
       throws SAXException {
         hasCharacters = true;
-        for (int i = 0; i < length; i++) {
-            printEscaped( ch[start+i], false );
+        int end = start + length;
+        int run = start;
+        for (int i = start; i < end; i++) {
+            String entity = escape( ch[i], false );
+            if ( entity != null ) {
+                print( ch, run, i - run );
+                print( entity );
+                run = i + 1;
+            }
         }
-        if (writer.checkError()) throw new SAXException("I/O error");
+        print( ch, run, end - run );
     }
 
     /**
      * Flushes the writer.
      */
     public void endDocument () throws SAXException {
-        writer.println("");
-        writer.flush();
-        if (writer.checkError()) throw new SAXException("I/O error");
+        print(NEWLINE);
+        flush();
+    }
+
+    /**
+     * Insert serialized XML, for instance the output of another writer
+     * that was created for a fragment at the current nesting depth.
+     */
+    public void printRaw( String xml ) throws SAXException {
+        print(xml);
+    }
+
+    /**
+     * Write buffered output and flush the underlying writer or stream.
+     */
+    public void flush() throws SAXException {
+        flushBuffer(true);
+        if ( writer != null ) {
+            writer.flush();
+            if (writer.checkError()) throw new SAXException("I/O error");
+        } else {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new SAXException(e);
+            }
+        }
     }
 
     // ---- internal methods ----
 
-    protected void printIndent() {
-        writer.println("");
+    protected void printIndent() throws SAXException {
+        print(NEWLINE);
         for ( int i = 0; i < indent; i++ ) {
-            writer.print(indentString);
+            print(indentString);
         }
     }
 
-    protected void printEscaped( char c, boolean isAttr ) {
+    /**
+     * Get the entity for a character that must be escaped, or null.
+     */
+    protected static String escape( char c, boolean isAttr ) {
         switch (c) {
             case '<':
-                writer.print("&lt;");
-                break;
+                return "&lt;";
             case '>':
-                writer.print("&gt;");
-                break;
+                return "&gt;";
             case '&':
-                writer.print("&amp;");
-                break;
+                return "&amp;";
             case '"':
-                writer.print( isAttr ? "&quot;" : "\"" );
-               break;
+                return isAttr ? "&quot;" : null;
             case '\r':
-                writer.print("&#xD;");
-                break;
+                return "&#xD;";
             default:
-                writer.print(c);
+                return null;
+        }
+    }
+
+    protected void printEscaped( String s, boolean isAttr ) throws SAXException {
+        int length = s.length();
+        int run = 0;
+        for (int i = 0; i < length; i++) {
+            String entity = escape( s.charAt(i), isAttr );
+            if ( entity != null ) {
+                print( s, run, i );
+                print( entity );
+                run = i + 1;
+            }
         }
+        print( s, run, length );
     }
 
-}
\ No newline at end of file
+    private void print( char c ) throws SAXException {
+        if ( pos == buf.length ) flushBuffer(false);
+        buf[pos++] = c;
+    }
+
+    private void print( String s ) throws SAXException {
+        print( s, 0, s.length() );
+    }
+
+    private void print( String s, int start, int end ) throws SAXException {
+        while ( start < end ) {
+            if ( pos == buf.length ) flushBuffer(false);
+            int n = Math.min( end - start, buf.length - pos );
+            s.getChars( start, start + n, buf, pos );
+            pos += n;
+            start += n;
+        }
+    }
+
+    private void print( char[] ch, int start, int length ) throws SAXException {
+        while ( length > 0 ) {
+            if ( pos == buf.length ) flushBuffer(false);
+            int n = Math.min( length, buf.length - pos );
+            System.arraycopy( ch, start, buf, pos, n );
+            pos += n;
+            start += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Write the buffer to the underlying writer or encode it as UTF-8.
+     * @param all Whether to also write a trailing high surrogate
+     */
+    private void flushBuffer( boolean all ) throws SAXException {
+        if ( writer != null ) {
+            writer.write( buf, 0, pos );
+            pos = 0;
+            if (writer.checkError()) throw new SAXException("I/O error");
+            return;
+        }
+
+        int n = 0;
+        int i = 0;
+        while ( i < pos ) {
+            char c = buf[i];
+            if ( c < 0x80 ) {
+                bytes[n++] = (byte)c;
+            } else if ( c < 0x800 ) {
+                bytes[n++] = (byte)(0xC0 | (c >> 6));
+                bytes[n++] = (byte)(0x80 | (c & 0x3F));
+            } else if ( Character.isHighSurrogate(c) ) {
+                if ( i + 1 == pos && !all ) break; // keep for the next flush
+                if ( i + 1 < pos && Character.isLowSurrogate(buf[i+1]) ) {
+                    char d = buf[i+1];
+                    int cp = Character.toCodePoint(c, d);
+                    bytes[n++] = (byte)(0xF0 | (cp >> 18));
+                    bytes[n++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+                    bytes[n++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+                    bytes[n++] = (byte)(0x80 | (cp & 0x3F));
+                    i++;
+                } else {
+                    bytes[n++] = (byte)'?';
+                }
+            } else if ( Character.isLowSurrogate(c) ) {
+                bytes[n++] = (byte)'?';
+            } else {
+                bytes[n++] = (byte)(0xE0 | (c >> 12));
+                bytes[n++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                bytes[n++] = (byte)(0x80 | (c & 0x3F));
+            }
+            i++;
+        }
+        try {
+            out.write( bytes, 0, n );
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+        // a high surrogate at the end of the buffer is kept
+        int rest = pos - i;
+        if ( rest > 0 ) buf[0] = buf[i];
+        pos = rest;
+    }
+}
@@ -0,0 +1,152 @@
+package de.gbv.marginalia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import java.util.Locale;
+
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfString;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Selects annotations by page, author and date.
+ */
+public class AnnotationFilterTest extends TestCase {
+    private File sample;
+
+    public AnnotationFilterTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( AnnotationFilterTest.class );
+    }
+
+    protected void setUp() throws Exception {
+        sample = File.createTempFile("filter", ".pdf");
+        FileOutputStream out = new FileOutputStream(sample);
+        try {
+            SampleDocument.create(out, 2);
+        } finally {
+            out.close();
+        }
+    }
+
+    protected void tearDown() {
+        sample.delete();
+    }
+
+    public void testPageRanges() {
+        AnnotationFilter filter = new AnnotationFilter();
+        filter.setPages("3, 5-7,10-");
+        assertTrue( filter.acceptsPage(3) );
+        assertFalse( filter.acceptsPage(4) );
+        assertTrue( filter.acceptsPage(6) );
+        assertTrue( filter.acceptsPage(100) );
+        try {
+            filter.setPages("3-1");
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testNextPage() {
+        AnnotationFilter filter = new AnnotationFilter();
+        filter.setPages("5-7,3");
+        assertEquals( 3, AnnotationFilter.nextPage(filter, 1) );
+        assertEquals( 5, AnnotationFilter.nextPage(filter, 4) );
+        assertEquals( 7, AnnotationFilter.nextPage(filter, 7) );
+        assertEquals( Integer.MAX_VALUE, AnnotationFilter.nextPage(filter, 8) );
+        assertEquals( 8, AnnotationFilter.nextPage(null, 8) );
+    }
+
+    public void testDates() {
+        assertEquals( "20100301000000", AnnotationFilter.normalizeDate("2010-03", true) );
+        assertEquals( "20100302134500",
+            AnnotationFilter.normalizeDate("D:20100302134500+01'00'", true) );
+        assertNull( AnnotationFilter.normalizeDate("D:201", false) );
+
+        AnnotationFilter filter = new AnnotationFilter();
+        filter.setDates("2010-03", "2010-04-01");
+        PdfDictionary annot = new PdfDictionary(PdfName.ANNOT);
+        assertFalse( filter.accepts(annot) );
+        annot.put( PdfName.M, new PdfString("D:20100331235959Z") );
+        assertTrue( filter.accepts(annot) );
+        annot.put( PdfName.M, new PdfString("D:20100401") );
+        assertFalse( filter.accepts(annot) );
+    }
+
+    public void testSubtypeLocale() {
+        Locale locale = Locale.getDefault();
+        Locale.setDefault( new Locale("tr", "TR") );
+        try {
+            AnnotationFilter filter = new AnnotationFilter();
+            filter.setSubtypes("INK,Circle");
+            PdfDictionary annot = new PdfDictionary(PdfName.ANNOT);
+            annot.put( PdfName.SUBTYPE, PdfName.INK );
+            assertTrue( filter.accepts(annot) );
+            annot.put( PdfName.SUBTYPE, PdfName.CIRCLE );
+            assertTrue( filter.accepts(annot) );
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    public void testKey() {
+        AnnotationFilter a = new AnnotationFilter();
+        a.setAuthors("Bob,Alice");
+        AnnotationFilter b = new AnnotationFilter();
+        b.setAuthors("Alice, Bob");
+        assertEquals( a.getKey(), b.getKey() );
+        b.setPages("1");
+        assertFalse( a.getKey().equals( b.getKey() ) );
+    }
+
+    public void testPageKey() {
+        AnnotationFilter a = new AnnotationFilter();
+        a.setPages("3,1");
+        AnnotationFilter b = new AnnotationFilter();
+        b.setPages("1,3");
+        assertEquals( a.getKey(), b.getKey() );
+        // the same pages
+        a.setPages("5-,2-3,1,4");
+        b.setPages("1-10,8-");
+        assertEquals( a.getKey(), b.getKey() );
+        b.setPages("1-3,5-");
+        assertFalse( a.getKey().equals( b.getKey() ) );
+    }
+
+    public void testExport() throws Exception {
+        Options options = new Options();
+        options.partial = true;
+        options.filter = new AnnotationFilter();
+        options.filter.setPages("2");
+        options.filter.setAuthors("Alice");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Marginalia.export( out, sample.getPath(), options );
+        String xml = out.toString("UTF-8");
+        assertEquals( 1, xml.split("<highlight ").length - 1 );
+        assertFalse( xml.contains("page=\"1\"") );
+        assertFalse( xml.contains("Bob") );
+    }
+
+    public void testIndex() throws Exception {
+        Options options = new Options();
+        options.filter = new AnnotationFilter();
+        options.filter.setAuthors("Alice");
+        File file = File.createTempFile("filter", ".mrix");
+        try {
+            assertEquals( 0, Marginalia.buildIndex( file, new String[] { sample.getPath() }, options ) );
+            RegionIndex index = new RegionIndex(file);
+            assertEquals( 2, index.size() );
+        } finally {
+            file.delete();
+        }
+    }
+}
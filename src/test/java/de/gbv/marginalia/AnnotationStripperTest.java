@@ -0,0 +1,129 @@
+package de.gbv.marginalia;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfReader;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Removes annotations from a sample document with incremental updates.
+ */
+public class AnnotationStripperTest extends TestCase {
+    private File dir;
+    private File sample;
+
+    public AnnotationStripperTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( AnnotationStripperTest.class );
+    }
+
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("strip", "");
+        dir.delete();
+        dir.mkdir();
+        sample = new File( dir, "sample.pdf" );
+        FileOutputStream out = new FileOutputStream(sample);
+        try {
+            SampleDocument.create(out, 2);
+        } finally {
+            out.close();
+        }
+    }
+
+    protected void tearDown() {
+        for ( File file : dir.listFiles() ) {
+            if ( file.isDirectory() ) {
+                for ( File f : file.listFiles() ) f.delete();
+            }
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    public void testCopy() throws Exception {
+        long length = sample.length();
+        File out = new File( dir, "out" );
+        out.mkdir();
+        AnnotationFilter filter = new AnnotationFilter();
+        filter.setAuthors("Alice");
+        AnnotationStripper stripper = new AnnotationStripper( filter, 1, out );
+        assertEquals( 2, stripper.strip( sample.getPath() ) );
+        assertEquals( length, sample.length() );
+
+        File copy = new File( out, "sample.pdf" );
+        assertTrue( copy.length() > length );
+        assertEquals( 2, new XrefChain(copy).getRevisions().size() );
+        PdfReader reader = new PdfReader( copy.getPath() );
+        try {
+            for ( int pageNum = 1; pageNum <= 2; pageNum++ ) {
+                PdfArray annots = reader.getPageN(pageNum).getAsArray(PdfName.ANNOTS);
+                assertEquals( 2, annots.size() );
+                for ( int i = 0; i < annots.size(); i++ ) {
+                    PdfDictionary annot = (PdfDictionary)annots.getDirectObject(i);
+                    assertFalse( PdfName.HIGHLIGHT.equals( annot.getAsName(PdfName.SUBTYPE) ) );
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testInPlace() throws Exception {
+        AnnotationFilter filter = new AnnotationFilter();
+        filter.setPages("2");
+        AnnotationStripper stripper = new AnnotationStripper( filter, 1, null );
+        assertEquals( 3, stripper.strip( sample.getPath() ) );
+
+        PdfReader reader = new PdfReader( sample.getPath() );
+        try {
+            assertEquals( 3, reader.getPageN(1).getAsArray(PdfName.ANNOTS).size() );
+            assertNull( reader.getPageN(2).getAsArray(PdfName.ANNOTS) );
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testNothingToRemove() throws Exception {
+        long length = sample.length();
+        AnnotationFilter filter = new AnnotationFilter();
+        filter.setSubtypes("underline");
+        assertEquals( 0, new AnnotationStripper( filter, 1, null ).strip( sample.getPath() ) );
+        assertEquals( length, sample.length() );
+    }
+
+    public void testCollision() throws Exception {
+        File other = new File( dir, "other" );
+        other.mkdir();
+        File twin = new File( other, "sample.pdf" );
+        AnnotationStripper.copy( sample, twin );
+        File out = new File( dir, "out" );
+        out.mkdir();
+
+        AnnotationStripper stripper = new AnnotationStripper( new AnnotationFilter(), 1, out );
+        try {
+            stripper.stripAll( System.out, new String[] { sample.getPath(), twin.getPath() } );
+            fail("collision not detected");
+        } catch (IOException e) {
+            assertTrue( e.getMessage().endsWith("sample.pdf") );
+        }
+        assertEquals( 0, out.listFiles().length );
+
+        BatchInspector.checkOutputNames( new String[] { "a/x.pdf", "b/y.pdf" }, "xml" );
+        try {
+            BatchInspector.checkOutputNames( new String[] { "a/x.pdf", "b/x.PDF" }, "xml" );
+            fail("collision not detected");
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package de.gbv.marginalia;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfString;
+
+import de.gbv.xml.SimpleXMLCreator;
+import de.gbv.xml.SimpleXMLWriter;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks which attributes the plan of each subtype emits.
+ */
+public class AnnotationTest extends TestCase {
+
+    public AnnotationTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( AnnotationTest.class );
+    }
+
+    private static final Pattern ATTR = Pattern.compile(" ([\\w-]+)=\"");
+
+    /** Attributes that apply to some subtypes only */
+    private static final String[] SPECIFIC = {
+        "coords", "icon", "state", "statemodel", "interior-color", "fringe",
+        "leaderLength", "caption", "Highlight", "overlay-text"
+    };
+
+    /**
+     * Serialize an annotation that has a value for every field and return
+     * the names of the attributes of its element.
+     */
+    private static Set<String> attributes(PdfName subtype) throws Exception {
+        PdfDictionary dict = new PdfDictionary(PdfName.ANNOT);
+        dict.put( PdfName.SUBTYPE, subtype );
+        dict.put( PdfName.RECT, new PdfArray( new float[] { 10, 20, 30, 40 } ) );
+        dict.put( PdfName.C, new PdfArray( new float[] { 1, 0, 0 } ) );
+        dict.put( PdfName.M, new PdfString("D:20100301120000Z") );
+        dict.put( PdfName.F, new PdfNumber(4) );
+        dict.put( PdfName.NM, new PdfString("a1") );
+        dict.put( PdfName.T, new PdfString("Alice") );
+        dict.put( new PdfName("CreationDate"), new PdfString("D:20100301110000Z") );
+        dict.put( PdfName.CA, new PdfNumber(0.5f) );
+        dict.put( new PdfName("Subj"), new PdfString("subject") );
+        dict.put( new PdfName("IT"), new PdfString("intent") );
+        dict.put( new PdfName("RT"), new PdfString("R") );
+        dict.put( PdfName.ROTATE, new PdfNumber(90) );
+        dict.put( new PdfName("QuadPoints"),
+            new PdfArray( new float[] { 10, 40, 30, 40, 10, 20, 30, 20 } ) );
+        dict.put( PdfName.NAME, new PdfString("Note") );
+        dict.put( new PdfName("State"), new PdfString("Accepted") );
+        dict.put( new PdfName("StateModel"), new PdfString("Review") );
+        dict.put( new PdfName("IC"), new PdfArray( new float[] { 0, 0, 1 } ) );
+        dict.put( new PdfName("RD"), new PdfArray( new float[] { 1, 1, 1, 1 } ) );
+        dict.put( new PdfName("LL"), new PdfNumber(5) );
+        dict.put( new PdfName("Cap"), new PdfString("true") );
+        dict.put( PdfName.H, new PdfString("I") );
+        dict.put( new PdfName("OverlayText"), new PdfString("redacted") );
+
+        StringWriter buffer = new StringWriter();
+        SimpleXMLWriter handler = new SimpleXMLWriter( new PrintWriter(buffer) );
+        new Annotation( dict, 1 ).serializeXML(
+            new SimpleXMLCreator( handler, Annotation.namespaces ) );
+        handler.flush();
+        String xml = buffer.toString();
+        String start = xml.substring( xml.indexOf('<'), xml.indexOf('>') );
+
+        Set<String> attrs = new HashSet<String>();
+        Matcher m = ATTR.matcher(start);
+        while ( m.find() ) attrs.add( m.group(1) );
+        assertTrue( attrs.containsAll( Arrays.asList( "page", "color", "date", "flags",
+            "name", "rect", "title", "creationdate", "opacity", "subject", "intent",
+            "replyTo", "rotation" ) ) );
+        return attrs;
+    }
+
+    /**
+     * Assert that exactly the given subtype specific attributes are emitted.
+     */
+    private static void assertEmits(PdfName subtype, String... expected) throws Exception {
+        Set<String> attrs = attributes(subtype);
+        for ( String attr : SPECIFIC ) {
+            boolean emitted = attrs.contains(attr);
+            assertEquals( subtype + " " + attr, Arrays.asList(expected).contains(attr), emitted );
+        }
+    }
+
+    public void testMarkup() throws Exception {
+        assertEmits( PdfName.HIGHLIGHT, "coords" );
+        assertEmits( PdfName.UNDERLINE, "coords" );
+        assertEmits( PdfName.STRIKEOUT, "coords" );
+    }
+
+    public void testText() throws Exception {
+        assertEmits( PdfName.TEXT, "icon", "state", "statemodel" );
+        assertEmits( PdfName.STAMP, "icon" );
+        assertEmits( PdfName.FREETEXT, "fringe" );
+    }
+
+    public void testShapes() throws Exception {
+        assertEmits( PdfName.INK );
+        assertEmits( PdfName.POPUP );
+        assertEmits( PdfName.SQUARE, "interior-color", "fringe" );
+        assertEmits( PdfName.POLYGON, "interior-color" );
+        assertEmits( PdfName.LINE, "interior-color", "leaderLength", "caption" );
+    }
+
+    public void testOther() throws Exception {
+        assertEmits( PdfName.LINK, "Highlight", "coords" );
+        assertEmits( new PdfName("Redact"), "interior-color", "overlay-text", "coords" );
+        // unknown subtypes get all fields
+        assertEmits( new PdfName("Unknown"), SPECIFIC );
+    }
+}
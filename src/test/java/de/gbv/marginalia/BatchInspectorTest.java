@@ -0,0 +1,114 @@
+package de.gbv.marginalia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Inspects several files, one of them broken.
+ */
+public class BatchInspectorTest extends TestCase {
+    private File dir;
+    private String[] filenames;
+
+    /** Index of the broken file */
+    private static final int BROKEN = 3;
+
+    public BatchInspectorTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( BatchInspectorTest.class );
+    }
+
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("batch", "");
+        dir.delete();
+        dir.mkdir();
+        filenames = new String[7];
+        for ( int i = 0; i < filenames.length; i++ ) {
+            File file = new File( dir, "file" + i + ".pdf" );
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                if ( i == BROKEN ) {
+                    out.write( "%PDF-1.4\nbroken".getBytes("ISO-8859-1") );
+                } else {
+                    // different sizes, so results do not finish in order
+                    SampleDocument.create( out, 1 + (i * 5) % 7 );
+                }
+            } finally {
+                out.close();
+            }
+            filenames[i] = file.getPath();
+        }
+    }
+
+    protected void tearDown() {
+        for ( File file : dir.listFiles() ) {
+            if ( file.isDirectory() ) {
+                for ( File f : file.listFiles() ) f.delete();
+            }
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private byte[] export(int i, Options options) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Marginalia.export( out, filenames[i], options );
+        return out.toByteArray();
+    }
+
+    public void testOrder() throws Exception {
+        Options options = new Options();
+        options.format = Options.Format.JSONL;
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for ( int i = 0; i < filenames.length; i++ ) {
+            if ( i != BROKEN ) expected.write( export(i, options) );
+        }
+
+        assertTrue( expected.size() > 0 );
+
+        for ( int threads = 1; threads <= 4; threads++ ) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            BatchInspector batch = new BatchInspector( threads, options, null );
+            assertEquals( 1, batch.inspectAll( out, filenames ) );
+            assertEquals( expected.toString("UTF-8"), out.toString("UTF-8") );
+        }
+    }
+
+    public void testOutputDir() throws Exception {
+        Options options = new Options();
+        File results = new File( dir, "results" );
+        results.mkdir();
+        BatchInspector batch = new BatchInspector( 3, options, results );
+        assertEquals( 1, batch.inspectAll( null, filenames ) );
+        for ( int i = 0; i < filenames.length; i++ ) {
+            if ( i == BROKEN ) continue;
+            File file = new File( results, "file" + i + ".xml" );
+            assertTrue( Arrays.equals( export(i, options), read(file) ) );
+        }
+    }
+
+    private static byte[] read(File file) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] b = new byte[4096];
+            int n;
+            while ( (n = in.read(b)) > 0 ) buffer.write(b, 0, n);
+        } finally {
+            in.close();
+        }
+        return buffer.toByteArray();
+    }
+}
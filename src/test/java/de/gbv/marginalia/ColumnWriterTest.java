@@ -0,0 +1,85 @@
+package de.gbv.marginalia;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfString;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Writes binary column blocks and reads them back.
+ */
+public class ColumnWriterTest extends TestCase {
+
+    public ColumnWriterTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( ColumnWriterTest.class );
+    }
+
+    public void testRoundTrip() throws Exception {
+        PdfDictionary highlight = new PdfDictionary( PdfName.ANNOT );
+        highlight.put( PdfName.SUBTYPE, PdfName.HIGHLIGHT );
+        highlight.put( PdfName.RECT, new PdfArray( new float[] { 1, 2, 3, 4 } ) );
+        highlight.put( PdfName.QUADPOINTS, new PdfArray( new float[] { 1, 4, 3, 4, 1, 2, 3, 2 } ) );
+        highlight.put( PdfName.T, new PdfString("Alice") );
+        highlight.put( PdfName.C, new PdfArray( new float[] { 1, 0, 0 } ) );
+        highlight.put( PdfName.F, new PdfNumber(4) );
+
+        PdfDictionary ink = new PdfDictionary( PdfName.ANNOT );
+        ink.put( PdfName.SUBTYPE, PdfName.INK );
+        PdfArray inklist = new PdfArray();
+        inklist.add( new PdfArray( new float[] { 10, 20, 30, 40 } ) );
+        inklist.add( new PdfArray( new float[] { 50, 60 } ) );
+        ink.put( new PdfName("InkList"), inklist );
+
+        File file = File.createTempFile( "marginalia", ".mcol" );
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        ColumnWriter writer = new ColumnWriter(out);
+        writer.annotation( new Annotation( highlight, 1 ) );
+        writer.annotation( new Annotation( ink, 3 ) );
+        writer.writeDocument("a.pdf");
+        writer.writeDocument("b.pdf");
+        out.close();
+
+        ColumnReader reader = new ColumnReader(file);
+        ColumnReader.Block block = reader.next();
+        assertEquals( "a.pdf", block.filename );
+        assertEquals( 2, block.size );
+
+        assertEquals( "highlight", block.subtype(0) );
+        assertEquals( 1, block.page(0) );
+        assertEquals( 4, block.flags(0) );
+        assertEquals( "Alice", block.author(0) );
+        assertEquals( 0xff0000, block.color(0) );
+        assertEquals( 4f, block.rect(0, 3), 0f );
+        assertEquals( 8, block.quadPoints(0).remaining() );
+        assertEquals( 0, block.gestures(0) );
+
+        assertEquals( "ink", block.subtype(1) );
+        assertEquals( 3, block.page(1) );
+        assertNull( block.author(1) );
+        assertEquals( -1, block.color(1) );
+        assertTrue( Float.isNaN( block.rect(1, 0) ) );
+        assertEquals( 0, block.quadPoints(1).remaining() );
+        assertEquals( 2, block.gestures(1) );
+        assertEquals( 4, block.gesture(1, 0).remaining() );
+        assertEquals( 60f, block.gesture(1, 1).get(1), 0f );
+
+        block = reader.next();
+        assertEquals( "b.pdf", block.filename );
+        assertEquals( 0, block.size );
+        assertNull( reader.next() );
+        reader.close();
+    }
+}
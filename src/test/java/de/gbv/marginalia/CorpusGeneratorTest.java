@@ -0,0 +1,138 @@
+package de.gbv.marginalia;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfReader;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Generates annotated PDF files.
+ */
+public class CorpusGeneratorTest extends TestCase {
+
+    public CorpusGeneratorTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( CorpusGeneratorTest.class );
+    }
+
+    public void testDeterministic() throws Exception {
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.pages = 3;
+        generator.appearances = CorpusGenerator.Appearance.OWN;
+        byte[] pdf = generator.generate(42);
+        assertTrue( Arrays.equals( pdf, generator.generate(42) ) );
+        assertFalse( Arrays.equals( pdf, generator.generate(43) ) );
+        assertEquals( "%PDF-1.6", new String( pdf, 0, 8, "ISO-8859-1" ) );
+    }
+
+    public void testAnnotations() throws Exception {
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.pages = 4;
+        generator.density = 3;
+        generator.authors = 1;
+        generator.inkPoints = 5;
+        generator.revisions = 1;
+        generator.setMix("ink");
+        PdfReader reader = new PdfReader( generator.generate(11) );
+        try {
+            assertEquals( 4, reader.getNumberOfPages() );
+            int count = 0;
+            for ( int pageNum = 1; pageNum <= 4; pageNum++ ) {
+                PdfArray annots = reader.getPageN(pageNum).getAsArray(PdfName.ANNOTS);
+                if ( annots == null ) continue;
+                for ( int i = 0; i < annots.size(); i++ ) {
+                    PdfDictionary annot = annots.getAsDict(i);
+                    assertEquals( PdfName.INK, annot.getAsName(PdfName.SUBTYPE) );
+                    assertEquals( "Alice", annot.getAsString(PdfName.T).toUnicodeString() );
+                    assertTrue( annot.getAsString(PdfName.M).toString()
+                        .matches("D:20[0-9]{12}Z") );
+                    assertEquals( 4, annot.getAsArray(PdfName.RECT).size() );
+                    PdfArray inklist = annot.getAsArray( new PdfName("InkList") );
+                    assertEquals( 10, inklist.getAsArray(0).size() );
+                    count++;
+                }
+            }
+            assertTrue( count > 0 );
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testDateLocale() {
+        Locale locale = Locale.getDefault();
+        try {
+            // Thai digits
+            Locale.setDefault( new Locale("th", "TH", "TH") );
+            assertEquals( "D:20100101000000Z", CorpusGenerator.pdfDate(1262304000000L) );
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    public void testRevisions() throws Exception {
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.pages = 5;
+        generator.revisions = 3;
+        generator.appearances = CorpusGenerator.Appearance.SHARED;
+        File file = File.createTempFile("corpus", ".pdf");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            long size = generator.generate( out, 7 );
+            out.close();
+            assertEquals( file.length(), size );
+
+            XrefChain chain = new XrefChain(file);
+            assertEquals( 4, chain.getRevisions().size() );
+            assertTrue( chain.getEntriesSince(1).size() > 0 );
+            assertTrue( chain.getEntriesSince(3).size() > chain.getEntriesSince(1).size() );
+            chain.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testDirectory() throws Exception {
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.pages = 1;
+        File dir = File.createTempFile("corpus", "");
+        dir.delete();
+        try {
+            List<File> files = generator.generate( dir, 0, 3, 0 );
+            assertEquals( 3, files.size() );
+            assertEquals( "corpus-00002.pdf", files.get(2).getName() );
+        } finally {
+            for ( File file : dir.listFiles() ) file.delete();
+            dir.delete();
+        }
+    }
+
+    public void testMix() {
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.setMix("Ink:2, highlight");
+        try {
+            generator.setMix("ink,circle");
+            fail("unknown subtype");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            generator.setMix("ink:0");
+            fail("empty mix");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
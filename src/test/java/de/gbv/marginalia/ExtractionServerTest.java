@@ -0,0 +1,163 @@
+package de.gbv.marginalia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+
+import java.util.Locale;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Sends requests to a local extraction server.
+ */
+public class ExtractionServerTest extends TestCase {
+    private ExtractionServer server;
+
+    public ExtractionServerTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( ExtractionServerTest.class );
+    }
+
+    protected void setUp() throws Exception {
+        server = new ExtractionServer( 0, 2, 4, new Options() );
+        server.start();
+    }
+
+    protected void tearDown() {
+        server.stop();
+    }
+
+    private HttpURLConnection open(String path) throws Exception {
+        URL url = new URL( "http://127.0.0.1:" + server.getPort() + path );
+        return (HttpURLConnection)url.openConnection();
+    }
+
+    private static String read(HttpURLConnection c) throws Exception {
+        InputStream in = c.getResponseCode() < 400 ? c.getInputStream() : c.getErrorStream();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] b = new byte[1024];
+        int n;
+        while ( (n = in.read(b)) > 0 ) buffer.write(b, 0, n);
+        in.close();
+        return buffer.toString("UTF-8");
+    }
+
+    public void testStatus() throws Exception {
+        // several requests, possibly on the same connection
+        for ( int i = 0; i < 3; i++ ) {
+            HttpURLConnection c = open("/status");
+            assertEquals( 200, c.getResponseCode() );
+            assertEquals( "ok\n", read(c) );
+        }
+        HttpURLConnection c = open("/unknown");
+        assertEquals( 404, c.getResponseCode() );
+        read(c);
+    }
+
+    public void testBadRequests() throws Exception {
+        HttpURLConnection c = open("/inspect");
+        assertEquals( 400, c.getResponseCode() );
+        read(c);
+
+        c = open("/inspect?format=pdf&path=x.pdf");
+        assertEquals( 400, c.getResponseCode() );
+        assertEquals( "unknown format: pdf\n", read(c) );
+
+        c = open("/inspect");
+        c.setRequestMethod("POST");
+        c.setDoOutput(true);
+        c.setFixedLengthStreamingMode(8);
+        OutputStream out = c.getOutputStream();
+        out.write( "no PDF!!".getBytes("ISO-8859-1") );
+        out.close();
+        assertEquals( 422, c.getResponseCode() );
+        read(c);
+    }
+
+    public void testInspect() throws Exception {
+        ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+        SampleDocument.create(pdf, 1);
+
+        HttpURLConnection c = open("/inspect?name=sample.pdf");
+        c.setRequestMethod("POST");
+        c.setDoOutput(true);
+        c.setFixedLengthStreamingMode( pdf.size() );
+        OutputStream out = c.getOutputStream();
+        pdf.writeTo(out);
+        out.close();
+        assertEquals( 200, c.getResponseCode() );
+        assertTrue( c.getContentType().startsWith("application/xml") );
+        String posted = read(c);
+        assertTrue( posted.contains("<annots") );
+        assertEquals( 1, posted.split("<highlight ").length - 1 );
+        assertTrue( posted.contains("title=\"Alice\"") );
+
+        File file = File.createTempFile("server", ".pdf");
+        try {
+            FileOutputStream fileOut = new FileOutputStream(file);
+            pdf.writeTo(fileOut);
+            fileOut.close();
+            c = open( "/inspect?path=" + URLEncoder.encode( file.getPath(), "UTF-8" ) );
+            assertEquals( 200, c.getResponseCode() );
+            assertEquals( posted, read(c) );
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testFormatLocale() throws Exception {
+        Locale locale = Locale.getDefault();
+        Locale.setDefault( new Locale("tr", "TR") );
+        try {
+            // "binary" must not become "B\u0130NARY"
+            HttpURLConnection c = open("/inspect?format=binary&path=missing.pdf");
+            assertTrue( c.getResponseCode() != 400 );
+            read(c);
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    public void testIdleConnection() throws Exception {
+        server.stop();
+        server = new ExtractionServer( 0, 1, 4, new Options() );
+        server.start();
+
+        // keep a connection open after one request
+        Socket idle = new Socket( "127.0.0.1", server.getPort() );
+        try {
+            idle.getOutputStream().write(
+                "GET /status HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("ISO-8859-1") );
+            InputStream in = idle.getInputStream();
+            StringBuilder response = new StringBuilder();
+            int b;
+            while ( !response.toString().endsWith("ok\n") && (b = in.read()) >= 0 ) {
+                response.append( (char)b );
+            }
+            assertTrue( response.toString().contains("keep-alive") );
+
+            // the only worker must not wait for the idle connection
+            long time = System.currentTimeMillis();
+            HttpURLConnection c = open("/status");
+            assertEquals( 200, c.getResponseCode() );
+            read(c);
+            assertTrue( System.currentTimeMillis() - time < 2000 );
+            assertTrue( in.read() < 0 );
+        } finally {
+            idle.close();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package de.gbv.marginalia;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Appends incremental updates to a sample document.
+ */
+public class IncrementalUpdateTest extends TestCase {
+    private File sample;
+
+    public IncrementalUpdateTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( IncrementalUpdateTest.class );
+    }
+
+    protected void setUp() throws Exception {
+        sample = File.createTempFile("update", ".pdf");
+        FileOutputStream out = new FileOutputStream(sample);
+        try {
+            SampleDocument.create(out, 1);
+        } finally {
+            out.close();
+        }
+    }
+
+    protected void tearDown() {
+        sample.delete();
+    }
+
+    /**
+     * Append an update with a stream of the given size.
+     * @return offset of the new cross-reference section
+     */
+    private long appendStream(int size) throws Exception {
+        PdfReader reader = Marginalia.openReader( sample.getPath(), true );
+        IncrementalUpdate update;
+        try {
+            update = new IncrementalUpdate(reader);
+            update.add( new PdfStream( new byte[size] ) );
+        } finally {
+            reader.close();
+        }
+        update.appendTo(sample);
+        List<XrefChain.Revision> revisions = new XrefChain(sample).getRevisions();
+        return revisions.get(0).offset;
+    }
+
+    public void testLargeOffset() throws Exception {
+        // an odd offset above 2^24 cannot be represented as float
+        long length = sample.length();
+        int size = 17 << 20;
+        long xref = appendStream(size);
+        if ( xref % 2 == 0 ) {
+            setUp();
+            xref = appendStream(size + 1);
+        }
+        assertTrue( xref > (1 << 24) && xref % 2 == 1 );
+
+        AnnotationFilter filter = new AnnotationFilter();
+        filter.setAuthors("Alice");
+        assertEquals( 1, new AnnotationStripper( filter, 1, null ).strip( sample.getPath() ) );
+
+        List<XrefChain.Revision> revisions = new XrefChain(sample).getRevisions();
+        assertEquals( 3, revisions.size() );
+        assertEquals( xref, revisions.get(0).getPrev() );
+        assertEquals( xref, revisions.get(1).offset );
+        assertTrue( sample.length() > length + size );
+
+        PdfReader reader = new PdfReader( sample.getPath() );
+        try {
+            assertEquals( 2, reader.getPageN(1).getAsArray(PdfName.ANNOTS).size() );
+        } finally {
+            reader.close();
+        }
+    }
+}
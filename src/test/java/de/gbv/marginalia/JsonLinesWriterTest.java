@@ -0,0 +1,82 @@
+package de.gbv.marginalia;
+
+import java.io.StringWriter;
+
+import java.util.Locale;
+
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfString;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for JsonLinesWriter.
+ */
+public class JsonLinesWriterTest extends TestCase {
+
+    public JsonLinesWriterTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( JsonLinesWriterTest.class );
+    }
+
+    public void testAnnotation() throws Exception {
+        PdfDictionary dict = new PdfDictionary( PdfName.ANNOT );
+        dict.put( PdfName.SUBTYPE, PdfName.TEXT );
+        dict.put( PdfName.RECT, new PdfArray( new float[] { 1, 2, 3.5f, 4 } ) );
+        dict.put( PdfName.T, new PdfString("Bob \"B\"") );
+        dict.put( PdfName.CONTENTS, new PdfString("line 1\nline 2") );
+
+        StringWriter buffer = new StringWriter();
+        JsonLinesWriter writer = new JsonLinesWriter( buffer, "a.pdf" );
+        writer.annotation( new Annotation( dict, 2 ) );
+        writer.annotation( new Annotation( dict, 3 ) );
+
+        String[] lines = buffer.toString().split("\n");
+        assertEquals( 2, lines.length );
+        assertEquals( "{\"file\":\"a.pdf\",\"page\":2,\"rotate\":0,"
+            + "\"mediabox\":[0.0,0.0,0.0,0.0],\"type\":\"text\","
+            + "\"title\":\"Bob \\\"B\\\"\",\"rect\":[1.0,2.0,3.5,4.0],"
+            + "\"content\":\"line 1\\nline 2\"}", lines[0] );
+        assertTrue( lines[1].startsWith("{\"file\":\"a.pdf\",\"page\":3,") );
+    }
+
+    public void testNotFinite() throws Exception {
+        PdfDictionary dict = new PdfDictionary( PdfName.ANNOT );
+        dict.put( PdfName.SUBTYPE, PdfName.HIGHLIGHT );
+        dict.put( PdfName.RECT, new PdfArray( new float[] { 1, 2, 3, 4 } ) );
+        PdfArray quads = new PdfArray( new float[] { 1, 4, 3, 4, 1, 2, 3 } );
+        // too large for a float
+        quads.add( new PdfNumber("1000000000000000000000000000000000000000000") );
+        dict.put( PdfName.QUADPOINTS, quads );
+
+        StringWriter buffer = new StringWriter();
+        new JsonLinesWriter( buffer, "a.pdf" ).annotation( new Annotation( dict, 1 ) );
+        assertTrue( buffer.toString().contains(
+            "\"coords\":[1.0,4.0,3.0,4.0,1.0,2.0,3.0,null]") );
+    }
+
+    public void testTurkishLocale() throws Exception {
+        PdfDictionary dict = new PdfDictionary( PdfName.ANNOT );
+        dict.put( PdfName.SUBTYPE, PdfName.CIRCLE );
+        Locale locale = Locale.getDefault();
+        try {
+            // dotless i in lower case
+            Locale.setDefault( new Locale("tr", "TR") );
+            assertEquals( "circle", new Annotation( dict, 1 ).getSubtypeName() );
+            dict.put( PdfName.SUBTYPE, new PdfName("FileAttachment") );
+            assertEquals( "fileattachment", new Annotation( dict, 1 ).getSubtypeName() );
+            dict.put( PdfName.SUBTYPE, PdfName.STRIKEOUT );
+            assertEquals( "strikeout", new Annotation( dict, 1 ).getSubtypeName() );
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+}
@@ -1,5 +1,13 @@
 package de.gbv.marginalia;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -30,4 +38,48 @@ public class MarginaliaTest extends TestCase {
     public void testApp() {
         assertTrue( true );
     }
+
+    private static final Pattern PAGES = Pattern.compile("(?s)\\s*<m:pages>.*</m:pages>");
+
+    private static String inspect(File file, boolean stream) throws Exception {
+        Options options = new Options();
+        options.stream = stream;
+        StringWriter buffer = new StringWriter();
+        PrintWriter writer = new PrintWriter(buffer);
+        Marginalia.inspect( writer, file.getPath(), options );
+        writer.close();
+        return buffer.toString();
+    }
+
+    public void testStream() throws Exception {
+        File file = File.createTempFile("stream", ".pdf");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                SampleDocument.create(out, 5);
+            } finally {
+                out.close();
+            }
+            String plain = inspect(file, false);
+            String stream = inspect(file, true);
+
+            Matcher m = PAGES.matcher(plain);
+            assertTrue( m.find() );
+            String pages = m.group();
+            assertEquals( 5, pages.split("<m:page ").length - 1 );
+
+            // the same page table trails the annotations
+            m = PAGES.matcher(stream);
+            assertTrue( m.find() );
+            assertEquals( pages, m.group() );
+            assertTrue( stream.indexOf("<highlight ") < m.start() );
+            assertTrue( stream.substring( m.end() ).trim().equals("</annots>") );
+
+            // and the annotations are the same
+            assertEquals( PAGES.matcher(plain).replaceFirst(""),
+                          PAGES.matcher(stream).replaceFirst("") );
+        } finally {
+            file.delete();
+        }
+    }
 }
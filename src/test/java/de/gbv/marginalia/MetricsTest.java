@@ -0,0 +1,90 @@
+package de.gbv.marginalia;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Records timings and counters.
+ */
+public class MetricsTest extends TestCase {
+
+    public MetricsTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( MetricsTest.class );
+    }
+
+    public void testHistogramBuckets() {
+        for ( long v : new long[] { 0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789L, Long.MAX_VALUE } ) {
+            int i = Metrics.Histogram.index(v);
+            assertTrue( i < Metrics.Histogram.BUCKETS );
+            assertTrue( v <= Metrics.Histogram.highest(i) );
+            if ( i > 0 ) assertTrue( v > Metrics.Histogram.highest(i - 1) );
+        }
+        assertEquals( 15, Metrics.Histogram.highest( Metrics.Histogram.index(15) ) );
+    }
+
+    public void testPercentiles() {
+        Metrics.Histogram h = new Metrics.Histogram();
+        assertEquals( 0, h.getPercentile(50) );
+        for ( long v = 1; v <= 1000; v++ ) h.record( v * 1000 );
+        assertEquals( 1000, h.getCount() );
+        assertEquals( 1000000, h.getMax() );
+        assertEquals( 500500.0, h.getMean(), 1e-6 );
+        long p50 = h.getPercentile(50);
+        assertTrue( p50 >= 500000 && p50 <= 500000 * 1.07 );
+        long p99 = h.getPercentile(99);
+        assertTrue( p99 >= 990000 && p99 <= 1000000 );
+        assertEquals( 1000000, h.getPercentile(100) );
+        h.reset();
+        assertEquals( 0, h.getCount() );
+    }
+
+    public void testFiles() {
+        Metrics metrics = new Metrics(2);
+        metrics.file( "a.pdf", 1000000, 100, true );
+        metrics.file( "b.pdf", 2000000, 200, false );
+        metrics.file( "c\"d.pdf", 3000000, 300, true );
+        assertEquals( 3, metrics.getFiles() );
+        assertEquals( 1, metrics.getFailures() );
+        assertEquals( 600, metrics.getBytesWritten() );
+        assertEquals( 2, metrics.getFileTimings().size() );
+        assertEquals( "b.pdf", metrics.getFileTimings().get(0).file );
+        assertEquals( 3, metrics.getHistogram( Metrics.Phase.FILE ).getCount() );
+
+        String summary = metrics.appendSummary( new StringBuilder(), true ).toString();
+        assertTrue( summary.startsWith("{\"files\":3,\"failures\":1,") );
+        assertTrue( summary.contains("\"file\":{\"count\":3,") );
+        assertTrue( summary.contains("{\"file\":\"c\\\"d.pdf\",\"ms\":3.0,\"bytes\":300,\"ok\":true}") );
+        assertFalse( metrics.getSummary().contains("file_timings") );
+
+        metrics.reset();
+        assertEquals( 0, metrics.getFiles() );
+        assertEquals( 0, metrics.getFileTimings().size() );
+    }
+
+    public void testMBean() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.record( Metrics.Phase.DECODE, 5000 );
+        String name = "de.gbv.marginalia:type=Metrics,name=test";
+        metrics.register(name);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(name);
+        try {
+            long[] counts = (long[])server.getAttribute( objectName, "PhaseCounts" );
+            assertEquals( 1, counts[ Metrics.Phase.DECODE.ordinal() ] );
+            assertEquals( "decode", ((String[])server.getAttribute( objectName, "Phases" ))
+                [ Metrics.Phase.DECODE.ordinal() ] );
+        } finally {
+            server.unregisterMBean(objectName);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package de.gbv.marginalia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Compares the output of parallel and sequential inspection.
+ */
+public class ParallelInspectorTest extends TestCase {
+    private File generated;
+    private File sample;
+
+    public ParallelInspectorTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( ParallelInspectorTest.class );
+    }
+
+    protected void setUp() throws Exception {
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.pages = 23;
+        generated = File.createTempFile("parallel", ".pdf");
+        FileOutputStream out = new FileOutputStream(generated);
+        try {
+            generator.generate(out, 1);
+        } finally {
+            out.close();
+        }
+
+        sample = File.createTempFile("parallel", ".pdf");
+        out = new FileOutputStream(sample);
+        try {
+            SampleDocument.create(out, 7);
+        } finally {
+            out.close();
+        }
+    }
+
+    protected void tearDown() {
+        generated.delete();
+        sample.delete();
+    }
+
+    private static byte[] sequential(File file, Options options) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintWriter writer = new PrintWriter( new OutputStreamWriter(buffer, "UTF-8") );
+        Marginalia.inspect( writer, file.getPath(), options );
+        writer.close();
+        return buffer.toByteArray();
+    }
+
+    private static byte[] parallel(File file, Options options, int threads) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintWriter writer = new PrintWriter( new OutputStreamWriter(buffer, "UTF-8") );
+        new ParallelInspector(threads).inspect( writer, file.getPath(), options );
+        writer.close();
+        return buffer.toByteArray();
+    }
+
+    private static void assertSameOutput(File file, Options options) throws Exception {
+        byte[] expected = sequential(file, options);
+        assertTrue( expected.length > 0 );
+        for ( int threads = 1; threads <= 4; threads++ ) {
+            byte[] actual = parallel(file, options, threads);
+            // compare as strings first for a readable failure message
+            assertEquals( new String(expected, "UTF-8"), new String(actual, "UTF-8") );
+            assertTrue( Arrays.equals(expected, actual) );
+        }
+
+        // encoded directly to a stream
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Marginalia.inspect( out, file.getPath(), options );
+        assertTrue( Arrays.equals( expected, out.toByteArray() ) );
+        out.reset();
+        new ParallelInspector(2).inspect( out, file.getPath(), options );
+        assertTrue( Arrays.equals( expected, out.toByteArray() ) );
+    }
+
+    public void testDefault() throws Exception {
+        assertSameOutput( generated, new Options() );
+        assertSameOutput( sample, new Options() );
+    }
+
+    public void testStream() throws Exception {
+        Options options = new Options();
+        options.stream = true;
+        assertSameOutput( generated, options );
+        assertSameOutput( sample, options );
+    }
+
+    public void testText() throws Exception {
+        Options options = new Options();
+        options.text = true;
+        assertSameOutput( generated, options );
+        assertSameOutput( sample, options );
+    }
+
+    public void testFilter() throws Exception {
+        Options options = new Options();
+        options.filter = new AnnotationFilter();
+        options.filter.setPages("2-4,9,20-");
+        assertSameOutput( generated, options );
+        options.stream = true;
+        assertSameOutput( sample, options );
+    }
+}
@@ -0,0 +1,71 @@
+package de.gbv.marginalia;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Builds a region index and queries it.
+ */
+public class RegionIndexTest extends TestCase {
+
+    public RegionIndexTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( RegionIndexTest.class );
+    }
+
+    public void testQuery() throws Exception {
+        RegionIndexWriter writer = new RegionIndexWriter(4);
+        writer.startDocument("a.pdf");
+        // a grid of 10x10 small boxes on page 1
+        for ( int i = 0; i < 100; i++ ) {
+            float x = 50 * (i % 10), y = 50 * (i / 10);
+            writer.add( 1, i, new float[] { x, y, x + 10, y + 10 }, null );
+        }
+        writer.startDocument("b.pdf");
+        // highlight with two quads, the rectangle covers the gap between them
+        writer.add( 1, 0, new float[] { 0, 0, 100, 100 },
+            new float[] { 0, 100, 40, 100, 0, 90, 40, 90,
+                          60, 10, 100, 10, 60, 0, 100, 0 } );
+        writer.add( 2, 0, new float[] { 0, 0, 10, 10 }, null );
+        writer.add( 2, 1, null, null ); // no geometry
+        assertEquals( 102, writer.size() );
+
+        File file = File.createTempFile( "marginalia", ".mrix" );
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        writer.write(out);
+        out.close();
+
+        RegionIndex index = new RegionIndex(file);
+        assertEquals( 102, index.size() );
+        assertEquals( 2, index.documents().length );
+
+        List<RegionIndex.Hit> hits = index.query( 1, 105, 105 );
+        assertEquals( 1, hits.size() );
+        assertEquals( "a.pdf", hits.get(0).document );
+        assertEquals( 22, hits.get(0).ordinal );
+
+        // gap between the quads of the highlight
+        assertEquals( 0, index.query( 1, 45, 45, 48, 48 ).size() );
+        hits = index.query( 1, 70, 5 );
+        assertEquals( 1, hits.size() );
+        assertEquals( "b.pdf", hits.get(0).document );
+
+        assertEquals( 3, index.query( 1, 0, 0, 60, 10 ).size() );
+        assertEquals( 1, index.query( 2, 5, 5 ).size() );
+        assertEquals( 2, index.query( 0, 5, 5 ).size() );
+        assertEquals( 0, index.query( 3, 5, 5 ).size() );
+
+        // all boxes of page 1
+        assertEquals( 101, index.query( 1, -1, -1, 1000, 1000 ).size() );
+    }
+}
@@ -0,0 +1,114 @@
+package de.gbv.marginalia;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import com.itextpdf.text.pdf.PRIndirectReference;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfBoolean;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfString;
+
+import de.gbv.xml.SimpleXMLCreator;
+import de.gbv.xml.SimpleXMLWriter;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for ReplyIndex.
+ */
+public class ReplyIndexTest extends TestCase {
+
+    public ReplyIndexTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( ReplyIndexTest.class );
+    }
+
+    private PdfReader reader;
+
+    protected void setUp() throws Exception {
+        // references are resolved by the reader they belong to
+        reader = new PdfReader( SampleDocument.create(1) );
+    }
+
+    protected void tearDown() {
+        reader.close();
+    }
+
+    private static PdfDictionary annot(PdfName subtype) {
+        PdfDictionary dict = new PdfDictionary( PdfName.ANNOT );
+        dict.put( PdfName.SUBTYPE, subtype );
+        dict.put( PdfName.RECT, new PdfArray( new float[] { 10, 20, 30, 40 } ) );
+        return dict;
+    }
+
+    private static String serialize(Annotation a) throws Exception {
+        StringWriter buffer = new StringWriter();
+        SimpleXMLWriter handler = new SimpleXMLWriter( new PrintWriter(buffer) );
+        a.serializeXML( new SimpleXMLCreator( handler, Annotation.namespaces ) );
+        handler.flush();
+        return buffer.toString();
+    }
+
+    public void testThread() throws Exception {
+        PdfDictionary parent = annot( PdfName.HIGHLIGHT );
+        PdfDictionary reply = annot( PdfName.TEXT );
+        PdfDictionary popup = annot( PdfName.POPUP );
+        PRIndirectReference parentRef = reader.addPdfObject(parent);
+        PRIndirectReference replyRef = reader.addPdfObject(reply);
+        PRIndirectReference popupRef = reader.addPdfObject(popup);
+        String parentName = parentRef.getNumber() + " 0 R";
+
+        parent.put( PdfName.POPUP, popupRef );
+        reply.put( ReplyIndex.IRT, parentRef );
+        reply.put( new PdfName("NM"), new PdfString("r1") );
+        popup.put( PdfName.PARENT, parentRef );
+        popup.put( PdfName.OPEN, PdfBoolean.PDFTRUE );
+
+        Annotation[] annots = {
+            new Annotation( reply, 1 ), new Annotation( parent, 1 ), new Annotation( popup, 1 ) };
+        ReplyIndex index = new ReplyIndex();
+        index.add( annots[0], replyRef );
+        index.add( annots[1], parentRef );
+        index.add( annots[2], popupRef );
+        for ( Annotation a : annots ) index.resolve(a);
+
+        assertEquals( parentName, annots[0].getInReplyTo() );
+        assertEquals( "r1", annots[0].getName() );
+        assertNull( annots[1].getInReplyTo() );
+        assertFalse( annots[1].isNested() );
+        assertTrue( annots[2].isNested() );
+        assertSame( annots[1], index.get(parentRef) );
+        assertNull( index.get( reader.getPageOrigRef(1) ) );
+
+        assertTrue( serialize( annots[0] ).contains("inreplyto=\"" + parentName + "\"") );
+        String xml = serialize( annots[1] );
+        assertTrue( xml.contains("name=\"" + parentName + "\"") );
+        assertTrue( xml.contains("<popup open=\"yes\" page=\"1\" rect=\"10.0,20.0,30.0,40.0\"") );
+    }
+
+    public void testEndPage() throws Exception {
+        PdfDictionary parent = annot( PdfName.HIGHLIGHT );
+        parent.put( new PdfName("NM"), new PdfString("p1") );
+        PdfDictionary reply = annot( PdfName.TEXT );
+        PRIndirectReference parentRef = reader.addPdfObject(parent);
+        reply.put( ReplyIndex.IRT, parentRef );
+
+        ReplyIndex index = new ReplyIndex();
+        index.add( new Annotation( parent, 1 ), parentRef );
+        index.endPage();
+        assertNull( index.get(parentRef) );
+
+        Annotation a = new Annotation( reply, 2 );
+        index.add( a, reader.addPdfObject(reply) );
+        index.resolve(a);
+        assertEquals( "p1", a.getInReplyTo() );
+    }
+}
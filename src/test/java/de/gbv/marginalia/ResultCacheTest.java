@@ -0,0 +1,126 @@
+package de.gbv.marginalia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for ResultCache.
+ */
+public class ResultCacheTest extends TestCase {
+    private File dir;
+
+    public ResultCacheTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( ResultCacheTest.class );
+    }
+
+    protected void setUp() throws IOException {
+        dir = File.createTempFile( "marginalia", "cache" );
+        dir.delete();
+        dir.mkdir();
+    }
+
+    protected void tearDown() {
+        delete(dir);
+    }
+
+    public void testLookup() throws Exception {
+        ResultCache cache = new ResultCache( new File(dir, "cache"), 0 );
+        File pdf = write( "a.pdf", "%PDF-1.4\ntrailer\n<</ID [<01> <02>]>>\n%%EOF\n" );
+        assertEquals( "[<01><02>]", ResultCache.trailerID(pdf) );
+        assertNull( cache.lookup(pdf, "xml") );
+
+        cache.store( pdf, "xml", new ResultCache.Stat(pdf), write( "cache/results/r.tmp", "<annots/>" ) );
+        File result = cache.lookup(pdf, "xml");
+        assertNotNull( result );
+        assertEquals( 9, result.length() );
+        assertNull( cache.lookup(pdf, "jsonl") );
+
+        // touched but not modified
+        pdf.setLastModified( pdf.lastModified() - 10000 );
+        assertEquals( result, cache.lookup(pdf, "xml") );
+
+        // modified
+        write( "a.pdf", "%PDF-1.4\ntrailer\n<</ID [<01> <03>]>>\n%%EOF\n" );
+        assertNull( cache.lookup(pdf, "xml") );
+    }
+
+    public void testEvict() throws Exception {
+        // path entries are counted as well but are much smaller than results
+        ResultCache cache = new ResultCache( new File(dir, "cache"), 2800 );
+        File a = write( "a.pdf", "a" );
+        File b = write( "b.pdf", "b" );
+        cache.store( a, "xml", new ResultCache.Stat(a), write( "cache/results/a.tmp", result(1000) ) );
+        long past = System.currentTimeMillis() - 10000;
+        cache.lookup(a, "xml").setLastModified(past);
+        for ( File f : new File(dir, "cache/paths").listFiles() ) f.setLastModified( past - 10000 );
+        cache.store( b, "xml", new ResultCache.Stat(b), write( "cache/results/b.tmp", result(1000) ) );
+        assertEquals( 2, new File(dir, "cache/paths").listFiles().length );
+
+        File c = write( "c.pdf", "c" );
+        cache.store( c, "xml", new ResultCache.Stat(c), write( "cache/results/c.tmp", result(1000) ) );
+        assertNull( cache.lookup(a, "xml") );
+        assertNotNull( cache.lookup(b, "xml") );
+        assertNotNull( cache.lookup(c, "xml") );
+        // the entry of a has been removed before its result
+        assertEquals( 2, new File(dir, "cache/paths").listFiles().length );
+    }
+
+    public void testCopies() throws Exception {
+        File a = new File(dir, "a.pdf");
+        FileOutputStream out = new FileOutputStream(a);
+        SampleDocument.create(out, 1);
+        out.close();
+        File b = new File(dir, "b.pdf");
+        AnnotationStripper.copy(a, b);
+
+        Options options = new Options();
+        options.format = Options.Format.JSONL;
+        options.cache = new ResultCache( new File(dir, "cache"), 0 );
+        for ( int i = 0; i < 2; i++ ) {
+            for ( File pdf : new File[] { a, b } ) {
+                ByteArrayOutputStream result = new ByteArrayOutputStream();
+                Marginalia.export( result, pdf.getPath(), options );
+                String json = result.toString("UTF-8");
+                assertTrue( json.startsWith( "{\"file\":" + JsonLinesWriter.appendString(
+                    new StringBuilder(), pdf.getPath() ) ) );
+            }
+        }
+        // one result per name, the XML result is shared
+        options.format = Options.Format.XML;
+        Marginalia.export( new ByteArrayOutputStream(), a.getPath(), options );
+        Marginalia.export( new ByteArrayOutputStream(), b.getPath(), options );
+        assertEquals( 3, new File(dir, "cache/results").listFiles().length );
+    }
+
+    private static String result(int size) {
+        StringBuilder s = new StringBuilder(size);
+        while ( s.length() < size ) s.append('x');
+        return s.toString();
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write( content.getBytes("ISO-8859-1") );
+        out.close();
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if ( files != null ) {
+            for ( File f : files ) delete(f);
+        }
+        file.delete();
+    }
+}
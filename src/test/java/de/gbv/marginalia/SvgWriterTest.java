@@ -0,0 +1,77 @@
+package de.gbv.marginalia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import com.itextpdf.text.pdf.PdfReader;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Renders pages and annotations of a generated document as SVG.
+ */
+public class SvgWriterTest extends TestCase {
+
+    public SvgWriterTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( SvgWriterTest.class );
+    }
+
+    private static byte[] sample() throws Exception {
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.pages = 2;
+        generator.density = 20;
+        generator.setMix("highlight,ink,text");
+        // seed 1 gives no highlights
+        return generator.generate(3);
+    }
+
+    public void testCombined() throws Exception {
+        Options options = new Options();
+        options.format = Options.Format.SVG;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PdfReader reader = new PdfReader( sample() );
+        try {
+            Marginalia.render( out, reader, "sample.pdf", options );
+        } finally {
+            reader.close();
+        }
+        String svg = out.toString("UTF-8");
+        assertTrue( svg.startsWith("<?xml") );
+        assertTrue( svg.contains("<svg xmlns=\"http://www.w3.org/2000/svg\" height=\"1684.0\" width=\"595.0\">") );
+        assertTrue( svg.contains("<svg y=\"842.0\" height=\"842.0\" width=\"595.0\">") );
+        assertEquals( 3, svg.split("<svg ").length - 1 );
+        assertTrue( svg.contains("<g transform=\"scale(1, -1) translate(0,-842.0)\">") );
+        assertTrue( svg.contains("<polygon stroke=\"none\"") );
+        assertTrue( svg.contains("<polyline points=\"") );
+        assertTrue( svg.contains("stroke-dasharray=\"9,5\"") );
+        assertTrue( svg.trim().endsWith("</svg>") );
+    }
+
+    public void testPages() throws Exception {
+        File dir = File.createTempFile("svg", "");
+        dir.delete();
+        dir.mkdir();
+        try {
+            PdfReader reader = new PdfReader( sample() );
+            try {
+                SvgWriter svg = new SvgWriter( dir, "sample" );
+                Marginalia.walk( reader, svg );
+                svg.finish();
+            } finally {
+                reader.close();
+            }
+            assertTrue( new File( dir, "sample-1.svg" ).length() > 0 );
+            assertTrue( new File( dir, "sample-2.svg" ).length() > 0 );
+            assertEquals( 2, dir.listFiles().length );
+        } finally {
+            for ( File file : dir.listFiles() ) file.delete();
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package de.gbv.marginalia;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for TextIndex.
+ */
+public class TextIndexTest extends TestCase {
+
+    public TextIndexTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( TextIndexTest.class );
+    }
+
+    private static void addLine(TextIndex index, String text, float x, float y) {
+        for ( int i = 0; i < text.length(); i++ ) {
+            index.add( x + 5 * i + 2.5f, y + 1, text.charAt(i), i == 0 );
+        }
+    }
+
+    public void testFind() {
+        TextIndex index = new TextIndex(36f);
+        addLine( index, "Hello world", 100, 700 );
+        addLine( index, "second line", 100, 686 );
+        assertEquals( 22, index.size() );
+
+        // "world" on the first line
+        float[] quad = { 130, 710, 155, 710, 130, 698, 155, 698 };
+        assertEquals( "world", index.find(quad) );
+
+        // end of first line and start of second line
+        float[] quads = { 130, 710, 155, 710, 130, 698, 155, 698,
+                          100, 696, 130, 696, 100, 684, 130, 684 };
+        assertEquals( "world second", index.find(quads) );
+
+        assertEquals( "", index.find( new float[] { 0, 10, 10, 10, 0, 0, 10, 0 } ) );
+    }
+
+    public void testHugeQuads() {
+        TextIndex index = new TextIndex(1f);
+        addLine( index, "Hello", 100, 700 );
+
+        // would visit about 10^18 cells without clamping
+        float[] quad = { -1e9f, 1e9f, 1e9f, 1e9f, -1e9f, -1e9f, 1e9f, -1e9f };
+        assertEquals( "Hello", index.find(quad) );
+        quad = new float[] { 0, Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+                             0, 0, Float.MAX_VALUE, 0 };
+        assertEquals( "Hello", index.find(quad) );
+
+        float[] quads = { Float.NaN, 710, 130, 710, 100, 698, 130, 698,
+                          100, 710, Float.POSITIVE_INFINITY, 710, 100, 698, 130, 698 };
+        assertEquals( "", index.find(quads) );
+        assertEquals( "", new TextIndex(1f).find(quad) );
+    }
+}
@@ -0,0 +1,108 @@
+package de.gbv.marginalia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfString;
+
+import de.gbv.xml.SimpleXMLCreator;
+import de.gbv.xml.SimpleXMLWriter;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for ValueTable.
+ */
+public class ValueTableTest extends TestCase {
+
+    public ValueTableTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( ValueTableTest.class );
+    }
+
+    private static Annotation highlight(String author) {
+        PdfDictionary dict = new PdfDictionary( PdfName.ANNOT );
+        dict.put( PdfName.SUBTYPE, PdfName.HIGHLIGHT );
+        dict.put( PdfName.T, new PdfString(author) );
+        dict.put( PdfName.C, new PdfArray( new float[] { 1, 1, 0 } ) );
+        return new Annotation( dict, 1 );
+    }
+
+    public void testResolve() throws Exception {
+        ValueTable table = new ValueTable();
+        Annotation a = highlight("Alice");
+        table.resolve(a);
+        table.resolve( highlight("Bob") );
+        table.resolve( highlight("Alice") );
+
+        assertEquals( 2, table.size(0) );
+        assertEquals( "Alice", table.get(0, 0) );
+        assertEquals( 2, table.count(0, 0) );
+        assertEquals( 1, table.size(1) );
+        assertEquals( "#ffff00", table.get(1, 0) );
+        assertEquals( 3, table.count(1, 0) );
+        assertEquals( 0, table.size(3) );
+
+        StringWriter buffer = new StringWriter();
+        SimpleXMLWriter handler = new SimpleXMLWriter( new PrintWriter(buffer) );
+        SimpleXMLCreator xml = new SimpleXMLCreator( handler, Annotation.namespaces );
+        a.serializeXML(xml);
+        handler.flush();
+        String s = buffer.toString();
+        assertTrue( s.contains("title-ref=\"0\"") );
+        assertTrue( s.contains("color-ref=\"0\"") );
+        assertFalse( s.contains("title=") );
+    }
+
+    public void testSourceKey() {
+        assertEquals( ValueTable.sourceKey( new PdfString("Alice") ),
+                      ValueTable.sourceKey( new PdfString("Alice") ) );
+        assertEquals( ValueTable.sourceKey( new PdfArray( new float[] { 1, 0.5f, 0 } ) ),
+                      ValueTable.sourceKey( new PdfArray( new float[] { 1, 0.5f, 0 } ) ) );
+        assertFalse( ValueTable.sourceKey( new PdfNumber(4) ).equals(
+                     ValueTable.sourceKey( new PdfNumber(6) ) ) );
+        assertNull( ValueTable.sourceKey( PdfName.TEXT ) );
+    }
+
+    public void testExport() throws Exception {
+        Options options = new Options();
+        options.values = true;
+        File file = File.createTempFile("values", ".pdf");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            SampleDocument.create(out, 3);
+            out.close();
+
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            Marginalia.export( xml, file.getPath(), options );
+            String s = xml.toString("UTF-8");
+            assertTrue( s.contains("<m:value name=\"title\" index=\"0\" count=\"3\">Alice</m:value>") );
+            assertTrue( s.indexOf("<m:values>") < s.indexOf("<highlight ") );
+            assertEquals( 3, s.split("title-ref=\"0\"").length - 1 );
+
+            // the same table precedes streamed annotations
+            options.stream = true;
+            xml.reset();
+            Marginalia.export( xml, file.getPath(), options );
+            String streamed = xml.toString("UTF-8");
+            assertTrue( streamed.indexOf("<m:values>") < streamed.indexOf("<highlight ") );
+            assertEquals( s.substring( s.indexOf("<m:values>"), s.indexOf("</m:values>") ),
+                streamed.substring( streamed.indexOf("<m:values>"), streamed.indexOf("</m:values>") ) );
+            assertEquals( 3, streamed.split("title-ref=\"0\"").length - 1 );
+        } finally {
+            file.delete();
+        }
+    }
+}
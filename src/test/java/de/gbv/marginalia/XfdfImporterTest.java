@@ -0,0 +1,136 @@
+package de.gbv.marginalia;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfReader;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Imports XFDF into a sample document and exports it again.
+ */
+public class XfdfImporterTest extends TestCase {
+    private File dir;
+    private File sample;
+
+    public XfdfImporterTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( XfdfImporterTest.class );
+    }
+
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("import", "");
+        dir.delete();
+        dir.mkdir();
+        sample = new File( dir, "sample.pdf" );
+        FileOutputStream out = new FileOutputStream(sample);
+        try {
+            SampleDocument.create(out, 2);
+        } finally {
+            out.close();
+        }
+    }
+
+    protected void tearDown() {
+        for ( File file : dir.listFiles() ) file.delete();
+        dir.delete();
+    }
+
+    private String export(File pdf) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Marginalia.export( out, pdf.getPath(), new Options() );
+        return out.toString("UTF-8");
+    }
+
+    public void testRoundTrip() throws Exception {
+        String xml = export(sample);
+        File xfdf = new File( dir, "sample.xml" );
+        FileOutputStream out = new FileOutputStream(xfdf);
+        out.write( xml.getBytes("UTF-8") );
+        out.close();
+
+        // replace all annotations with the exported ones
+        XfdfImporter importer = new XfdfImporter( xfdf, new AnnotationFilter(), 1, null );
+        assertEquals( 6, importer.importFile( sample.getPath() ) );
+        assertEquals( 2, new XrefChain(sample).getRevisions().size() );
+        assertEquals( xml, export(sample) );
+    }
+
+    public void testAdd() throws Exception {
+        long length = sample.length();
+        String xml = "<annots xmlns=\"http://ns.adobe.com/xfdf/\">"
+            + "<ink page=\"2\" rect=\"10.0,10.0,20.0,20.0\" title=\"Carol\">"
+            + "<inklist><gesture>10.0,10.0;20.0,20.0</gesture></inklist></ink>"
+            + "<text page=\"3\" rect=\"0,0,1,1\"/></annots>";
+        PdfReader reader = new PdfReader( sample.getPath() );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            IncrementalUpdate update = new IncrementalUpdate( reader, out, length );
+            XfdfImporter importer = new XfdfImporter( dir, null, 1, null );
+            assertEquals( 1, importer.apply( reader,
+                new ByteArrayInputStream( xml.getBytes("UTF-8") ), update ) );
+            update.finish();
+        } finally {
+            reader.close();
+        }
+        FileOutputStream file = new FileOutputStream( sample, true );
+        out.writeTo(file);
+        file.close();
+
+        reader = new PdfReader( sample.getPath() );
+        try {
+            assertEquals( 3, reader.getPageN(1).getAsArray(PdfName.ANNOTS).size() );
+            PdfArray annots = reader.getPageN(2).getAsArray(PdfName.ANNOTS);
+            assertEquals( 4, annots.size() );
+            PdfDictionary ink = (PdfDictionary)annots.getDirectObject(3);
+            assertEquals( PdfName.INK, ink.getAsName(PdfName.SUBTYPE) );
+            assertEquals( "Carol", ink.getAsString(PdfName.T).toUnicodeString() );
+            assertEquals( 4, ink.getAsArray( new PdfName("InkList") ).getAsArray(0).size() );
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testExternalEntity() throws Exception {
+        File secret = new File( dir, "secret.txt" );
+        FileOutputStream out = new FileOutputStream(secret);
+        out.write( "Mallory".getBytes("UTF-8") );
+        out.close();
+        String xml = "<?xml version=\"1.0\"?><!DOCTYPE annots [<!ENTITY secret SYSTEM \""
+            + secret.toURI() + "\">]><annots xmlns=\"http://ns.adobe.com/xfdf/\">"
+            + "<text page=\"1\" rect=\"0,0,1,1\"><content>&secret;</content></text></annots>";
+
+        PdfReader reader = new PdfReader( sample.getPath() );
+        ByteArrayOutputStream update = new ByteArrayOutputStream();
+        try {
+            IncrementalUpdate u = new IncrementalUpdate( reader, update, sample.length() );
+            assertEquals( 1, new XfdfImporter( dir, null, 1, null ).apply( reader,
+                new ByteArrayInputStream( xml.getBytes("UTF-8") ), u ) );
+            u.finish();
+        } finally {
+            reader.close();
+        }
+        FileOutputStream file = new FileOutputStream( sample, true );
+        update.writeTo(file);
+        file.close();
+        assertFalse( export(sample).contains("Mallory") );
+    }
+
+    public void testNumbers() {
+        StringBuilder s = new StringBuilder();
+        assertTrue( XfdfImporter.appendNumbers( "1.5,-2;3 4", s ) );
+        assertEquals( "1.5 -2 3 4", s.toString() );
+        assertFalse( XfdfImporter.appendNumbers( "1,(x)", new StringBuilder() ) );
+    }
+}
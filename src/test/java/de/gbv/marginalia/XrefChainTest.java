@@ -0,0 +1,221 @@
+package de.gbv.marginalia;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfIndirectReference;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfObject;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Reads the cross-reference chain of incrementally updated files.
+ */
+public class XrefChainTest extends TestCase {
+
+    public XrefChainTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( XrefChainTest.class );
+    }
+
+    public void testTables() throws Exception {
+        StringBuilder pdf = new StringBuilder("%PDF-1.4\n");
+        int annot = pdf.length();
+        pdf.append("1 0 obj\n<< /Type /Annot /Subtype /Text /Rect [0 0 1 1] >>\nendobj\n");
+        int first = pdf.length();
+        pdf.append("xref\n0 2\n0000000000 65535 f \n")
+           .append( offset(annot) ).append(" 00000 n \n")
+           .append("trailer\n<< /Size 2 /ID [<01><02>] >>\nstartxref\n")
+           .append(first).append("\n%%EOF\n");
+        int added = pdf.length();
+        pdf.append("2 0 obj\n<< /Subtype /Highlight /Rect [0 0 1 1] >>\nendobj\n");
+        int second = pdf.length();
+        pdf.append("xref\n0 1\n0000000000 65535 f \n1 2\n0000000000 00001 f \n")
+           .append( offset(added) ).append(" 00000 n \n")
+           .append("trailer\n<< /Size 3 /Prev ").append(first)
+           .append(" >>\nstartxref\n").append(second).append("\n%%EOF\n");
+
+        File file = write( pdf.toString().getBytes("ISO-8859-1") );
+        XrefChain chain = new XrefChain(file);
+        List<XrefChain.Revision> revisions = chain.getRevisions();
+        assertEquals( 2, revisions.size() );
+        assertEquals( second, revisions.get(0).offset );
+        assertEquals( first, revisions.get(0).getPrev() );
+        assertEquals( 1, chain.indexOf(first) );
+
+        Map<Integer,XrefChain.Entry> entries = chain.getEntriesSince(1);
+        assertEquals( XrefChain.FREE, entries.get(1).type );
+        assertEquals( XrefChain.IN_USE, entries.get(2).type );
+        assertEquals( added, entries.get(2).offset );
+        assertEquals( XrefChain.IN_USE, chain.getEntry(1, 1).type );
+        assertNull( chain.getEntry(1, 2) );
+
+        ObjectLoader loader = new ObjectLoader(chain);
+        assertTrue( DeltaInspector.isAnnotation( (PdfDictionary)loader.parse(annot) ) );
+        assertTrue( DeltaInspector.isAnnotation( (PdfDictionary)loader.parse(added) ) );
+        chain.close();
+    }
+
+    public void testStream() throws Exception {
+        // rows of type (1 byte), offset (2 bytes), generation (1 byte)
+        byte[] rows = {
+            0, 0, 0, (byte)255,
+            1, 0, 9, 0,
+            2, 0, 5, 3 };
+        // PNG up predictor, five columns including the type byte
+        ByteArrayOutputStream predicted = new ByteArrayOutputStream();
+        byte[] prior = new byte[4];
+        for ( int r = 0; r < 3; r++ ) {
+            predicted.write(2);
+            for ( int i = 0; i < 4; i++ ) {
+                predicted.write( rows[r*4+i] - prior[i] );
+                prior[i] = rows[r*4+i];
+            }
+        }
+        Deflater deflater = new Deflater();
+        deflater.setInput( predicted.toByteArray() );
+        deflater.finish();
+        byte[] compressed = new byte[256];
+        int length = deflater.deflate(compressed);
+
+        ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+        pdf.write( "%PDF-1.5\n".getBytes("ISO-8859-1") );
+        int xref = pdf.size();
+        pdf.write( ( "7 0 obj\n<< /Type /XRef /Size 3 /W [1 2 1] /Filter /FlateDecode"
+            + " /DecodeParms << /Predictor 12 /Columns 4 >> /Length " + length
+            + " >>\nstream\n" ).getBytes("ISO-8859-1") );
+        pdf.write( compressed, 0, length );
+        pdf.write( ( "\nendstream\nendobj\nstartxref\n" + xref + "\n%%EOF\n" ).getBytes("ISO-8859-1") );
+
+        XrefChain chain = new XrefChain( write( pdf.toByteArray() ) );
+        assertEquals( 1, chain.getRevisions().size() );
+        Map<Integer,XrefChain.Entry> entries = chain.getEntriesSince(1);
+        assertEquals( XrefChain.FREE, entries.get(0).type );
+        assertEquals( XrefChain.IN_USE, entries.get(1).type );
+        assertEquals( 9, entries.get(1).offset );
+        assertEquals( XrefChain.COMPRESSED, entries.get(2).type );
+        assertEquals( 5, entries.get(2).offset );
+        assertEquals( 3, entries.get(2).generation );
+        chain.close();
+    }
+
+    public void testShortEntries() throws Exception {
+        // entries ending with a single newline are not of 20 bytes
+        StringBuilder pdf = new StringBuilder("%PDF-1.4\n");
+        int annot = pdf.length();
+        pdf.append("1 0 obj\n<< /Type /Annot /Subtype /Text /Rect [0 0 1 1] >>\nendobj\n");
+        int first = pdf.length();
+        pdf.append("xref\n0 3\n0000000000 65535 f\n")
+           .append( offset(annot) ).append(" 00000 n\n")
+           .append( offset(annot) ).append(" 00000 n\n")
+           .append("trailer\n<< /Size 3 >>\nstartxref\n")
+           .append(first).append("\n%%EOF\n");
+
+        XrefChain chain = new XrefChain( write( pdf.toString().getBytes("ISO-8859-1") ) );
+        assertEquals( 1, chain.getRevisions().size() );
+        assertEquals( -1, chain.getRevisions().get(0).getPrev() );
+        assertEquals( annot, chain.getEntry(0, 2).offset );
+        assertEquals( XrefChain.FREE, chain.getEntry(0, 0).type );
+        assertNull( chain.getEntry(0, 3) );
+        chain.close();
+    }
+
+    public void testIndirectLength() throws Exception {
+        byte[] rows = { 0, 0, 0, 1, 0, 9 };
+        ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+        pdf.write( "%PDF-1.5\n".getBytes("ISO-8859-1") );
+        int xref = pdf.size();
+        pdf.write( ( "7 0 obj\n<< /Type /XRef /Size 2 /W [1 2 0] /Length 8 0 R"
+            + " >>\nstream\n" ).getBytes("ISO-8859-1") );
+        pdf.write( rows );
+        pdf.write( ( "\nendstream\nendobj\n8 0 obj\n6\nendobj\nstartxref\n"
+            + xref + "\n%%EOF\n" ).getBytes("ISO-8859-1") );
+
+        XrefChain chain = new XrefChain( write( pdf.toByteArray() ) );
+        Map<Integer,XrefChain.Entry> entries = chain.getEntriesSince(1);
+        assertEquals( 2, entries.size() );
+        assertEquals( XrefChain.IN_USE, entries.get(1).type );
+        assertEquals( 9, entries.get(1).offset );
+        chain.close();
+    }
+
+    public void testInvalidTable() throws Exception {
+        // entries of the wrong size with a name instead of an offset
+        StringBuilder pdf = new StringBuilder("%PDF-1.4\n");
+        int first = pdf.length();
+        pdf.append("xref\n0 2\n0000000000 65535 f\n/Name 00000 n\n")
+           .append("trailer\n<< /Size 2 >>\nstartxref\n")
+           .append(first).append("\n%%EOF\n");
+        try {
+            new XrefChain( write( pdf.toString().getBytes("ISO-8859-1") ) );
+            fail();
+        } catch (IOException e) {
+        }
+
+        // a trailer that is no dictionary
+        pdf.setLength( first );
+        pdf.append("xref\n0 1\n0000000000 65535 f\ntrailer\n[ 1 ]\nstartxref\n")
+           .append(first).append("\n%%EOF\n");
+        try {
+            new XrefChain( write( pdf.toString().getBytes("ISO-8859-1") ) );
+            fail();
+        } catch (IOException e) {
+        }
+    }
+
+    public void testLexer() throws Exception {
+        // objects are read in chunks of the file
+        StringBuilder pdf = new StringBuilder("%PDF-1.4\n");
+        int object = pdf.length();
+        pdf.append("1 0 obj\n<< /Kids [");
+        // the first chunk of the object ends after "34 ", which is no reference
+        while ( pdf.length() - object < 4096 - 3 ) pdf.append(' ');
+        pdf.append("34 5 12 0 R ] /Name /A#20B /Title (a\\)b) >>\nendobj\n");
+        int first = pdf.length();
+        pdf.append("xref\n0 2\n0000000000 65535 f \n")
+           .append( offset(object) ).append(" 00000 n \n")
+           .append("trailer\n<< /Size 2 >>\nstartxref\n")
+           .append(first).append("\n%%EOF\n");
+
+        XrefChain chain = new XrefChain( write( pdf.toString().getBytes("ISO-8859-1") ) );
+        PdfObject obj = new ObjectLoader(chain).parse(object);
+        chain.close();
+        PdfDictionary dict = (PdfDictionary)obj;
+        PdfArray kids = (PdfArray)dict.get(PdfName.KIDS);
+        assertEquals( 3, kids.size() );
+        assertEquals( 34, ((PdfNumber)kids.getPdfObject(0)).intValue() );
+        assertEquals( 5, ((PdfNumber)kids.getPdfObject(1)).intValue() );
+        assertEquals( 12, ((PdfIndirectReference)kids.getPdfObject(2)).getNumber() );
+        assertEquals( new PdfName("A B"), dict.get(PdfName.NAME) );
+        assertEquals( "a)b", dict.get(PdfName.TITLE).toString() );
+    }
+
+    private static String offset(int offset) {
+        String s = "000000000" + offset;
+        return s.substring( s.length() - 10 );
+    }
+
+    private static File write(byte[] data) throws IOException {
+        File file = File.createTempFile( "marginalia", ".pdf" );
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+}
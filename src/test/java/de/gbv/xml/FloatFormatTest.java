@@ -0,0 +1,45 @@
+package de.gbv.xml;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for FloatFormat.
+ */
+public class FloatFormatTest extends TestCase {
+
+    public FloatFormatTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( FloatFormatTest.class );
+    }
+
+    public void testCoordinates() {
+        float[] values = { 52.559917f, 437.8619f, 595f, 0.5f, -12.25f,
+            0.05f, 1e-3f, 9999999f, 1e7f, 1e-4f, 0f, -0f, -456.890625f };
+        for ( float f : values ) {
+            assertEquals( Float.toString(f), FloatFormat.toString(f) );
+        }
+    }
+
+    public void testRoundTrip() {
+        Random random = new Random(42);
+        for ( int i = 0; i < 100000; i++ ) {
+            float f = (float)( random.nextDouble() * 2000 - 1000 );
+            String s = FloatFormat.toString(f);
+            assertEquals( f, Float.parseFloat(s), 0f );
+        }
+    }
+
+    public void testAppend() {
+        StringBuilder s = new StringBuilder("x=");
+        FloatFormat.append( s, 1.5f ).append(',');
+        FloatFormat.append( s, -2f );
+        assertEquals( "x=1.5,-2.0", s.toString() );
+    }
+}
@@ -0,0 +1,64 @@
+package de.gbv.xml;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import java.util.Map;
+import java.util.HashMap;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for SimpleXMLCreator.
+ */
+public class SimpleXMLCreatorTest extends TestCase {
+    private static final String NL = System.getProperty("line.separator");
+
+    private StringWriter buffer;
+    private SimpleXMLWriter writer;
+
+    public SimpleXMLCreatorTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( SimpleXMLCreatorTest.class );
+    }
+
+    protected void setUp() {
+        buffer = new StringWriter();
+        writer = new SimpleXMLWriter( new PrintWriter(buffer) );
+    }
+
+    private String output() throws Exception {
+        writer.flush();
+        return buffer.toString();
+    }
+
+    public void testAttributeOrder() throws Exception {
+        Map<String,String> namespaces = new HashMap<String,String>();
+        namespaces.put( "m", "http://example.com/" );
+        SimpleXMLCreator xml = new SimpleXMLCreator( writer, namespaces );
+
+        xml.attr( "z", "1" ).attr( "a", 2 ).attr( "m", "3" ).startElement( "x" );
+        xml.attr( "left", "0.5" ).emptyElement( "m", "rect" );
+        xml.emptyElement( "m", "rect" );
+        xml.endAllElements();
+
+        assertEquals( NL + "<x z=\"1\" a=\"2\" m=\"3\">"
+            + NL + "  <m:rect left=\"0.5\"></m:rect>"
+            + NL + "  <m:rect></m:rect>"
+            + NL + "</x>", output() );
+    }
+
+    public void testMapAttributes() throws Exception {
+        SimpleXMLCreator xml = new SimpleXMLCreator( writer, new HashMap<String,String>() );
+        Map<String,String> attrs = new HashMap<String,String>();
+        attrs.put( "a", "&" );
+        xml.contentElement( "x", "<>", attrs );
+
+        assertEquals( NL + "<x a=\"&amp;\">&lt;&gt;</x>", output() );
+    }
+}
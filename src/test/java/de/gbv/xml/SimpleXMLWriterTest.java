@@ -0,0 +1,75 @@
+package de.gbv.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for SimpleXMLWriter.
+ */
+public class SimpleXMLWriterTest extends TestCase {
+    private static final String NL = System.getProperty("line.separator");
+
+    public SimpleXMLWriterTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( SimpleXMLWriterTest.class );
+    }
+
+    private static void writeSample( ContentHandler h ) throws Exception {
+        h.startDocument();
+        AttributesImpl a = new AttributesImpl();
+        a.addAttribute( "", "title", "title", "CDATA", "\"A\" & <B>\r" );
+        h.startElement( "", "annots", "annots", a );
+        h.startElement( "", "content", "content", new AttributesImpl() );
+        String s = "x < y & \"z\" \u00e9\u20ac\ud83d\ude00";
+        h.characters( s.toCharArray(), 0, s.length() );
+        h.endElement( "", "content", "content" );
+        h.startElement( "", "empty", "m:empty", new AttributesImpl() );
+        h.endElement( "", "empty", "m:empty" );
+        h.endElement( "", "annots", "annots" );
+        h.endDocument();
+    }
+
+    private static final String SAMPLE =
+        "<?xml version='1.0' encoding='UTF-8'?>" + NL
+        + "<annots title=\"&quot;A&quot; &amp; &lt;B&gt;&#xD;\">" + NL
+        + "  <content>x &lt; y &amp; \"z\" \u00e9\u20ac\ud83d\ude00</content>" + NL
+        + "  <m:empty>" + NL
+        + "  </m:empty>" + NL
+        + "</annots>" + NL;
+
+    public void testEscaping() throws Exception {
+        StringWriter buffer = new StringWriter();
+        writeSample( new SimpleXMLWriter( new PrintWriter(buffer) ) );
+        assertEquals( SAMPLE, buffer.toString() );
+    }
+
+    public void testUTF8() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeSample( new SimpleXMLWriter(out) );
+        assertEquals( SAMPLE, new String( out.toByteArray(), "UTF-8" ) );
+    }
+
+    public void testLongContent() throws Exception {
+        StringBuilder s = new StringBuilder();
+        for ( int i = 0; i < 10000; i++ ) {
+            s.append( "a&\ud83d\ude00" );
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SimpleXMLWriter writer = new SimpleXMLWriter(out);
+        writer.characters( s.toString().toCharArray(), 0, s.length() );
+        writer.flush();
+        String expected = s.toString().replace( "&", "&amp;" );
+        assertEquals( expected, new String( out.toByteArray(), "UTF-8" ) );
+    }
+}